@@ -0,0 +1,293 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import org.elasticsearch.apps.support.ModuleFactory;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.CloseableIndexComponent;
+import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.plugins.Plugin;
+
+/**
+ * The apps that are active in a scope, the node or an index, with their
+ * module and service classes.
+ *
+ * The module and service classes are computed once, as immutable lists.
+ * Modules are dispatched to the apps through a table from the module class
+ * to the calls to make, computed on first use. A new instance is created
+ * whenever the apps change, so readers never see a partial update. The
+ * time each app takes to spawn and process modules is recorded in the
+ * app costs.
+ *
+ * @author joerg
+ */
+public class ActiveApps {
+
+    private final static ESLogger logger = Loggers.getLogger(ActiveApps.class);
+
+    private final Collection<App> apps;
+    private final Map<App, List<AppService.OnModuleReference>> references;
+    private final AppCosts costs;
+    private final ConcurrentMap<Class<?>, ModuleCall[]> dispatch = ConcurrentCollections.newConcurrentMap();
+    private final Collection<Class<? extends Module>> modules;
+    private final Collection<Class<? extends LifecycleComponent>> services;
+    private final Collection<Class<? extends Module>> indexModules;
+    private final Collection<Class<? extends CloseableIndexComponent>> indexServices;
+    private final Collection<Class<? extends Module>> shardModules;
+    private final Collection<Class<? extends CloseableIndexComponent>> shardServices;
+
+    ActiveApps(Collection<App> apps, Map<App, List<AppService.OnModuleReference>> references, AppCosts costs) {
+        this.apps = ImmutableList.copyOf(apps);
+        this.references = references;
+        this.costs = costs;
+        ImmutableList.Builder<Class<? extends Module>> modules = ImmutableList.builder();
+        ImmutableList.Builder<Class<? extends LifecycleComponent>> services = ImmutableList.builder();
+        ImmutableList.Builder<Class<? extends Module>> indexModules = ImmutableList.builder();
+        ImmutableList.Builder<Class<? extends CloseableIndexComponent>> indexServices = ImmutableList.builder();
+        ImmutableList.Builder<Class<? extends Module>> shardModules = ImmutableList.builder();
+        ImmutableList.Builder<Class<? extends CloseableIndexComponent>> shardServices = ImmutableList.builder();
+        for (App app : this.apps) {
+            modules.addAll(app.modules());
+            services.addAll(app.services());
+            indexModules.addAll(app.indexModules());
+            indexServices.addAll(app.indexServices());
+            shardModules.addAll(app.shardModules());
+            shardServices.addAll(app.shardServices());
+        }
+        this.modules = modules.build();
+        this.services = services.build();
+        this.indexModules = indexModules.build();
+        this.indexServices = indexServices.build();
+        this.shardModules = shardModules.build();
+        this.shardServices = shardServices.build();
+    }
+
+    public Collection<App> apps() {
+        return apps;
+    }
+
+    public Collection<Class<? extends Module>> modules() {
+        return modules;
+    }
+
+    public Collection<Module> modules(Settings settings) {
+        List<Module> list = Lists.newArrayList();
+        for (App app : apps) {
+            list.addAll(app.modules(settings));
+        }
+        return list;
+    }
+
+    public Collection<Class<? extends LifecycleComponent>> services() {
+        return services;
+    }
+
+    public Collection<Class<? extends Module>> indexModules() {
+        return indexModules;
+    }
+
+    public Collection<Module> indexModules(Settings settings) {
+        List<Module> list = Lists.newArrayList();
+        for (App app : apps) {
+            list.addAll(app.indexModules(settings));
+        }
+        return list;
+    }
+
+    public Collection<Class<? extends CloseableIndexComponent>> indexServices() {
+        return indexServices;
+    }
+
+    public Collection<Class<? extends Module>> shardModules() {
+        return shardModules;
+    }
+
+    public Collection<Module> shardModules(Settings settings) {
+        List<Module> list = Lists.newArrayList();
+        for (App app : apps) {
+            list.addAll(app.shardModules(settings));
+        }
+        return list;
+    }
+
+    public Collection<Class<? extends CloseableIndexComponent>> shardServices() {
+        return shardServices;
+    }
+
+    /**
+     * Create the modules of the apps for an injector, from the module
+     * classes and the module instances of the scope
+     *
+     * @param scope the scope of the injector, node, index or shard
+     * @param moduleFactory the module factory
+     * @param settings the settings of the scope
+     * @return the modules
+     */
+    public List<Module> spawnModules(String scope, ModuleFactory moduleFactory, Settings settings) {
+        List<Module> modules = Lists.newArrayList();
+        for (App app : apps) {
+            long t0 = System.nanoTime();
+            List<Module> spawned = Lists.newArrayList();
+            if (AppCosts.NODE.equals(scope)) {
+                for (Class<? extends Module> moduleClass : app.modules()) {
+                    spawned.add(moduleFactory.createModule(moduleClass, settings));
+                }
+                spawned.addAll(app.modules(settings));
+            } else if (AppCosts.INDEX.equals(scope)) {
+                for (Class<? extends Module> moduleClass : app.indexModules()) {
+                    spawned.add(moduleFactory.createModule(moduleClass, settings));
+                }
+                spawned.addAll(app.indexModules(settings));
+            } else if (AppCosts.SHARD.equals(scope)) {
+                for (Class<? extends Module> moduleClass : app.shardModules()) {
+                    spawned.add(moduleFactory.createModule(moduleClass, settings));
+                }
+                spawned.addAll(app.shardModules(settings));
+            }
+            if (costs != null) {
+                costs.spawned(scope, app, spawned, System.nanoTime() - t0);
+            }
+            modules.addAll(spawned);
+        }
+        return modules;
+    }
+
+    /**
+     * Let the apps process a module, by their processModule method and by
+     * their onModule methods accepting the module
+     *
+     * @param module the module
+     */
+    public void processModule(Module module) {
+        processModule(AppCosts.NODE, module);
+    }
+
+    /**
+     * Let the apps process a module of an injector
+     *
+     * @param scope the scope of the injector
+     * @param module the module
+     */
+    public void processModule(String scope, Module module) {
+        ModuleCall[] calls = dispatch.get(module.getClass());
+        if (calls == null) {
+            calls = moduleCalls(module.getClass());
+            dispatch.put(module.getClass(), calls);
+        }
+        for (ModuleCall call : calls) {
+            long t0 = System.nanoTime();
+            if (call.method == null) {
+                call.app.processModule(module);
+            } else {
+                try {
+                    call.method.invoke(call.target, module);
+                } catch (Exception e) {
+                    logger.warn("app {}, failed to invoke custom onModule method", e, call.app.name());
+                }
+            }
+            if (costs != null) {
+                costs.processed(scope, call.app, module, System.nanoTime() - t0, call.method != null);
+            }
+        }
+    }
+
+    /**
+     * The calls to make for a module class, in the order of the apps.
+     * Apps whose plugin does not override processModule are left out, as
+     * are onModule methods for other module classes.
+     *
+     * @param moduleClass the module class
+     * @return the calls
+     */
+    private ModuleCall[] moduleCalls(Class<?> moduleClass) {
+        List<ModuleCall> calls = Lists.newArrayList();
+        for (App app : apps) {
+            Object target = target(app);
+            if (overridesProcessModule(target)) {
+                calls.add(new ModuleCall(app, target, null));
+            }
+            List<AppService.OnModuleReference> list = references != null ? references.get(app) : null;
+            if (list != null) {
+                for (AppService.OnModuleReference reference : list) {
+                    if (reference.moduleClass.isAssignableFrom(moduleClass)) {
+                        calls.add(new ModuleCall(app, target, reference.onModuleMethod));
+                    }
+                }
+            }
+        }
+        return calls.toArray(new ModuleCall[calls.size()]);
+    }
+
+    /**
+     * The object implementing the hooks of an app, the wrapped plugin for
+     * artifact and plugin apps
+     *
+     * @param app the app
+     * @return the plugin or the app
+     */
+    static Object target(App app) {
+        Plugin plugin = null;
+        if (app instanceof ArtifactApp) {
+            plugin = ((ArtifactApp) app).getPlugin();
+        } else if (app instanceof PluginApp) {
+            plugin = ((PluginApp) app).getPlugin();
+        }
+        return plugin != null ? plugin : app;
+    }
+
+    private static boolean overridesProcessModule(Object target) {
+        if (!(target instanceof Plugin)) {
+            return true;
+        }
+        try {
+            return target.getClass().getMethod("processModule", Module.class).getDeclaringClass() != AbstractPlugin.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    /**
+     * A call to an app for a module, either processModule or an onModule
+     * method
+     */
+    private static class ModuleCall {
+
+        final App app;
+        final Object target;
+        final Method method;
+
+        ModuleCall(App app, Object target, Method method) {
+            this.app = app;
+            this.target = target;
+            this.method = method;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.inject.Binding;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.inject.spi.Element;
+import org.elasticsearch.common.inject.spi.Elements;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * The cost of the apps in building the injectors of the node, the
+ * indices, the shards and the rivers.
+ *
+ * For each app and scope, the number of injectors the app took part in,
+ * the modules it spawned, the time spent creating them, and the time
+ * spent in its processModule and onModule methods are counted. Counting
+ * the bindings of the spawned modules configures them a second time, so
+ * it is only done if apps.stats.bindings is enabled.
+ *
+ * @author joerg
+ */
+public class AppCosts {
+
+    private final static ESLogger logger = Loggers.getLogger(AppCosts.class);
+
+    /**
+     * The node injector
+     */
+    public final static String NODE = "node";
+    /**
+     * The injector of an index
+     */
+    public final static String INDEX = "index";
+    /**
+     * The injector of a shard
+     */
+    public final static String SHARD = "shard";
+    /**
+     * The injector of a river
+     */
+    public final static String RIVER = "river";
+
+    private final boolean countBindings;
+
+    private final ConcurrentMap<String, Cost> costs = ConcurrentCollections.newConcurrentMap();
+
+    public AppCosts(boolean countBindings) {
+        this.countBindings = countBindings;
+    }
+
+    /**
+     * Record the modules an app spawned into an injector
+     *
+     * @param scope the scope of the injector
+     * @param app the app
+     * @param modules the spawned modules
+     * @param nanos the time spent creating the modules
+     */
+    void spawned(String scope, App app, Collection<Module> modules, long nanos) {
+        Cost cost = cost(scope, app);
+        cost.injectors.incrementAndGet();
+        cost.modules.addAndGet(modules.size());
+        cost.spawnNanos.addAndGet(nanos);
+        int bindings = -1;
+        if (countBindings && !modules.isEmpty()) {
+            try {
+                bindings = 0;
+                for (Element element : Elements.getElements(modules)) {
+                    if (element instanceof Binding) {
+                        bindings++;
+                    }
+                }
+                cost.bindings.addAndGet(bindings);
+            } catch (Exception e) {
+                logger.debug("[{}] app [{}] failed to count bindings", e, scope, app.name());
+            }
+        }
+        if (logger.isDebugEnabled() && !modules.isEmpty()) {
+            logger.debug("[{}] app [{}] spawned {} modules with {} bindings in {}", scope, app.name(),
+                    modules.size(), bindings >= 0 ? bindings : "?", TimeValue.timeValueNanos(nanos));
+        }
+    }
+
+    /**
+     * Record a call of processModule or an onModule method of an app
+     *
+     * @param scope the scope of the injector
+     * @param app the app
+     * @param module the processed module
+     * @param nanos the time of the call
+     * @param onModule true for an onModule method
+     */
+    void processed(String scope, App app, Module module, long nanos, boolean onModule) {
+        Cost cost = cost(scope, app);
+        if (onModule) {
+            cost.onModuleCalls.incrementAndGet();
+            cost.onModuleNanos.addAndGet(nanos);
+        } else {
+            cost.processCalls.incrementAndGet();
+            cost.processNanos.addAndGet(nanos);
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("[{}] app [{}] {} [{}] in {}", scope, app.name(), onModule ? "onModule" : "processModule",
+                    module.getClass().getName(), TimeValue.timeValueNanos(nanos));
+        }
+    }
+
+    /**
+     * The costs by app and scope
+     *
+     * @return the costs
+     */
+    public Collection<Cost> costs() {
+        return ImmutableList.copyOf(costs.values());
+    }
+
+    private Cost cost(String scope, App app) {
+        String key = scope + "/" + app.name();
+        Cost cost = costs.get(key);
+        if (cost == null) {
+            Cost newCost = new Cost(scope, app.name());
+            cost = costs.putIfAbsent(key, newCost);
+            if (cost == null) {
+                cost = newCost;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * The cost of an app in one scope
+     */
+    public static class Cost {
+
+        private final String scope;
+
+        private final String app;
+
+        private final AtomicLong injectors = new AtomicLong();
+
+        private final AtomicLong modules = new AtomicLong();
+
+        private final AtomicLong bindings = new AtomicLong();
+
+        private final AtomicLong spawnNanos = new AtomicLong();
+
+        private final AtomicLong processCalls = new AtomicLong();
+
+        private final AtomicLong processNanos = new AtomicLong();
+
+        private final AtomicLong onModuleCalls = new AtomicLong();
+
+        private final AtomicLong onModuleNanos = new AtomicLong();
+
+        Cost(String scope, String app) {
+            this.scope = scope;
+            this.app = app;
+        }
+
+        /**
+         * The scope, node, index, shard or river
+         */
+        public String getScope() {
+            return scope;
+        }
+
+        /**
+         * The name of the app
+         */
+        public String getApp() {
+            return app;
+        }
+
+        /**
+         * The number of injectors the app spawned modules for
+         */
+        public long getInjectors() {
+            return injectors.get();
+        }
+
+        /**
+         * The number of spawned modules
+         */
+        public long getModules() {
+            return modules.get();
+        }
+
+        /**
+         * The number of bindings of the spawned modules, if counted
+         */
+        public long getBindings() {
+            return bindings.get();
+        }
+
+        /**
+         * The time spent creating the modules
+         */
+        public TimeValue getSpawnTime() {
+            return TimeValue.timeValueNanos(spawnNanos.get());
+        }
+
+        /**
+         * The number of processModule calls
+         */
+        public long getProcessCalls() {
+            return processCalls.get();
+        }
+
+        /**
+         * The time spent in processModule
+         */
+        public TimeValue getProcessTime() {
+            return TimeValue.timeValueNanos(processNanos.get());
+        }
+
+        /**
+         * The number of onModule calls
+         */
+        public long getOnModuleCalls() {
+            return onModuleCalls.get();
+        }
+
+        /**
+         * The time spent in onModule methods
+         */
+        public TimeValue getOnModuleTime() {
+            return TimeValue.timeValueNanos(onModuleNanos.get());
+        }
+    }
+}
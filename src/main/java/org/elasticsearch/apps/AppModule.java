@@ -19,17 +19,14 @@
 
 package org.elasticsearch.apps;
 
-import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.apps.rest.RestAppsStatsAction;
+import org.elasticsearch.cluster.settings.ClusterDynamicSettingsModule;
 import org.elasticsearch.common.inject.AbstractModule;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.inject.PreProcessModule;
 import org.elasticsearch.common.inject.SpawnModules;
 import org.elasticsearch.common.settings.Settings;
-
-import java.util.Collection;
-import java.util.List;
-
-import static org.elasticsearch.common.inject.Modules.createModule;
+import org.elasticsearch.rest.RestModule;
 
 /**
  *
@@ -47,18 +44,18 @@ public class AppModule extends AbstractModule implements SpawnModules, PreProces
 
     @Override
     public Iterable<? extends Module> spawnModules() {
-        List<Module> modules = Lists.newArrayList();
-        Collection<Class<? extends Module>> modulesClasses = appService.modules();
-        for (Class<? extends Module> moduleClass : modulesClasses) {
-            modules.add(createModule(moduleClass, settings));
-        }
-        modules.addAll(appService.modules(settings));
-        return modules;
+        return appService.activeApps().spawnModules(AppCosts.NODE, appService.moduleFactory(), settings);
     }
 
     @Override
     public void processModule(Module module) {
-        appService.processModule(module);
+        if (module instanceof ClusterDynamicSettingsModule) {
+            ((ClusterDynamicSettingsModule) module).addDynamicSettings(AppSettingsUpdater.DYNAMIC_SETTINGS);
+        }
+        if (module instanceof RestModule) {
+            ((RestModule) module).addRestAction(RestAppsStatsAction.class);
+        }
+        appService.activeApps().processModule(AppCosts.NODE, module);
     }
 
     @Override
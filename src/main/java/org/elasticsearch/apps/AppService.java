@@ -18,54 +18,101 @@
  */
 package org.elasticsearch.apps;
 
+import org.elasticsearch.apps.http.ConsoleDownloadListener;
+import org.elasticsearch.apps.http.DownloadStats;
+import org.elasticsearch.apps.http.HttpDownloader;
+import org.elasticsearch.apps.resolver.CircuitBreaker;
+import org.elasticsearch.apps.resolver.EffectiveSettings;
+import org.elasticsearch.apps.resolver.HedgedDownloader;
+import org.elasticsearch.apps.resolver.LatencyStats;
+import org.elasticsearch.apps.resolver.MetadataCache;
+import org.elasticsearch.apps.resolver.RemoteRepository;
+import org.elasticsearch.apps.resolver.RepositorySettings;
+import org.elasticsearch.apps.resolver.RepositoryStats;
+import org.elasticsearch.apps.support.AppLockFile;
+import org.elasticsearch.apps.support.ArtifactInfo;
+import org.elasticsearch.apps.support.Checksums;
+import org.elasticsearch.apps.support.ComponentCloser;
+import org.elasticsearch.apps.support.ContentStore;
 import org.elasticsearch.apps.support.DependencyInfo;
+import org.elasticsearch.apps.support.TeeInputStream;
+import org.elasticsearch.apps.support.ZipExtractor;
 import static org.elasticsearch.common.collect.Maps.newHashMap;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.zip.ZipEntry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ElasticSearchInterruptedException;
+import org.elasticsearch.ElasticSearchTimeoutException;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.apps.support.ExceptionFormatter;
+import org.elasticsearch.apps.support.ModuleFactory;
+import org.elasticsearch.apps.support.RepositoryLock;
+import org.elasticsearch.apps.support.RetryQueue;
+import org.elasticsearch.apps.support.SingleFlight;
+import org.elasticsearch.apps.support.Throttle;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.classloader.URIClassLoader;
 import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.collect.MapBuilder;
+import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.component.LifecycleComponent;
-import org.elasticsearch.common.http.client.HttpDownloadHelper;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.io.FileSystemUtils;
-import org.elasticsearch.common.io.Streams;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.CloseableIndexComponent;
+import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.jboss.shrinkwrap.resolver.api.maven.Maven;
 import org.jboss.shrinkwrap.resolver.api.maven.MavenResolvedArtifact;
-import org.jboss.shrinkwrap.resolver.api.maven.PackagingType;
 import org.jboss.shrinkwrap.resolver.api.maven.ScopeType;
 import org.jboss.shrinkwrap.resolver.api.maven.coordinate.MavenDependencies;
 import org.jboss.shrinkwrap.resolver.api.maven.coordinate.MavenDependency;
@@ -83,6 +130,14 @@ public class AppService extends AbstractComponent {
      * The resource that identifies a plugin when it's found on the classpath
      */
     public final static String DEFAULT_RESOURCE = "es-plugin.properties";
+    /**
+     * The kinds of analysis components that activate lazy apps
+     */
+    private final static String[] ANALYSIS_KINDS = {"analyzer", "tokenizer", "filter", "char_filter"};
+    /**
+     * The settings groups declaring apps by name
+     */
+    private final static String[] DECLARATION_GROUPS = {"apps.dependencies.", "apps.plugins.", "apps.sites."};
     /**
      * The default Maven settings that is loaded for dependency resolution. The
      * Maven mvn tool uses a combination of global and user local settings, most
@@ -95,6 +150,23 @@ public class AppService extends AbstractComponent {
      * needs to be excluded.
      */
     public final static String[] DEFAULT_EXCLUDE = new String[]{"org.elasticsearch:elasticsearch"};
+    /**
+     * The name of the app lock file in the plugins folder
+     */
+    public final static String DEFAULT_LOCK_FILE = "apps.lock";
+    /**
+     * The name of the folder for the state of the app service in the plugins
+     * folder. Folders starting with a dot are never loaded as plugins.
+     */
+    public final static String DEFAULT_STATE_DIR = ".apps";
+    /**
+     * The default staging folder for unpacking zips, in the plugins folder
+     */
+    public final static String DEFAULT_STAGING_DIR = ".staging";
+    /**
+     * The default folder of the content store, in the plugins folder
+     */
+    public final static String DEFAULT_CAS_DIR = ".cas";
     /**
      * The enviroment where the plugins folder is definde
      */
@@ -110,7 +182,7 @@ public class AppService extends AbstractComponent {
     /**
      * A map for all apps
      */
-    private Map<String, App> apps = newHashMap();
+    private volatile Map<String, App> apps = newHashMap();
     /**
      * A map for apps that are maven artifacts
      */
@@ -122,15 +194,162 @@ public class AppService extends AbstractComponent {
     /**
      * A map for apps that are sites
      */
-    private Map<String, SiteApp> siteApps = newHashMap();
+    private volatile Map<String, SiteApp> siteApps = newHashMap();
     /**
      * A map for apps that have module method (artifacts plus plugins)
      */
-    private Map<String, App> moduleApps = newHashMap();
+    private volatile Map<String, App> moduleApps = newHashMap();
+    /**
+     * The artifact apps declared as lazy, activated by the first index
+     * using them
+     */
+    private volatile Map<String, LazyApp> lazyApps = newHashMap();
+    /**
+     * The lazy declarations of the last refresh
+     */
+    private String lazyFingerprint;
+    /**
+     * The class loaders of the lazy river apps, by name and dependency
+     */
+    private final ConcurrentMap<String, URIClassLoader> riverClassLoaders = ConcurrentCollections.newConcurrentMap();
+    /**
+     * The lazy river apps being resolved, by name and dependency
+     */
+    private final SingleFlight<String, URIClassLoader> riverLoads = new SingleFlight<String, URIClassLoader>();
+    /**
+     * The module apps with their modules and services, replaced whenever
+     * the module apps change
+     */
+    private volatile ActiveApps activeApps = new ActiveApps(Collections.<App>emptyList(), null, null);
+    /**
+     * The module apps active in indices with app filters, by filter
+     */
+    private volatile ConcurrentMap<String, ActiveApps> indexApps = ConcurrentCollections.newConcurrentMap();
+    /**
+     * The factory for the modules of the apps
+     */
+    private final ModuleFactory moduleFactory = new ModuleFactory();
+    /**
+     * The cost of the apps in building injectors
+     */
+    private final AppCosts appCosts;
+    /**
+     * The closer for the index and shard services of the apps
+     */
+    private ComponentCloser componentCloser;
+    /**
+     * True while the site apps wait for the background refresh after the
+     * node has started
+     */
+    private boolean deferSites;
+    /**
+     * The status of the declared site apps
+     */
+    private final Map<String, String> siteStatus = ConcurrentCollections.newConcurrentMap();
+    /**
+     * The settings declaring the apps, the node settings unless apps are
+     * refreshed with new declarations, with the app profile of the node
+     * applied
+     */
+    private Settings declarations;
+    /**
+     * The names of the plugin and site apps that are declared, but not part
+     * of the app profile of the node
+     */
+    private Set<String> outOfProfile;
+    /**
+     * The declared plugin apps of the last refresh
+     */
+    private Map<String, Settings> declaredPlugins;
+    /**
+     * The declared site apps of the last refresh
+     */
+    private Map<String, Settings> declaredSites;
+    /**
+     * The fingerprint of the declared artifact apps of the last refresh
+     */
+    private String artifactFingerprint;
+    /**
+     * The artifacts loaded by the last refresh
+     */
+    private List<ArtifactInfo> loadedArtifacts;
+    /**
+     * The URIs added to the class loader
+     */
+    private final Set<URI> classPath = Sets.newHashSet();
+    /**
+     * The URIs of plugin folders that were uninstalled, but may still be
+     * visible through the class loader
+     */
+    private final Set<URI> uninstalled = Sets.newHashSet();
+    /**
+     * The SSL context accepting all certificates
+     */
+    private static SSLContext sslContext;
+    /**
+     * The downloader for plugin and site zips
+     */
+    private HttpDownloader httpDownloader;
+    /**
+     * The extractor for plugin and site zips
+     */
+    private ZipExtractor zipExtractor;
+    /**
+     * The content store for zips and jars, if enabled
+     */
+    private ContentStore contentStore;
+    /**
+     * The repository settings, read from the Maven settings file
+     */
+    private RepositorySettings repositorySettings;
+    /**
+     * The metadata cache shared by all resolutions
+     */
+    private MetadataCache metadataCache;
+    /**
+     * The repository stats shared by all resolutions
+     */
+    private RepositoryStats repositoryStats;
     /**
-     * TODO replace the HTTP download helper by a Netty based implementation
+     * The hedged downloader for artifacts, if enabled
      */
-    private final HttpDownloadHelper downloadHelper = new HttpDownloadHelper();
+    private HedgedDownloader hedgedDownloader;
+    /**
+     * The circuit breakers of the remote repositories
+     */
+    private CircuitBreaker circuitBreaker;
+    /**
+     * The background retries of failed resolutions
+     */
+    private RetryQueue retryQueue;
+    /**
+     * The lock on the local repository
+     */
+    private RepositoryLock repositoryLock;
+    /**
+     * The throttle of plugin and site downloads
+     */
+    private final Throttle downloadThrottle;
+    /**
+     * The throttle of zip extraction
+     */
+    private final Throttle extractThrottle;
+    /**
+     * The resolutions in progress, by requested coordinates
+     */
+    private final SingleFlight<String, MavenResolvedArtifact[]> resolutions =
+            new SingleFlight<String, MavenResolvedArtifact[]>();
+    /**
+     * The executor for resolutions under a deadline
+     */
+    private ExecutorService resolveExecutor;
+    /**
+     * The lock held while the apps are refreshed or installed. The refresh
+     * stages run on threads of their own and create the helpers of this
+     * service under its monitor, so the refresh must not hold the monitor
+     * while waiting for them.
+     */
+    private final Object refreshLock = new Object();
 
     /**
      * Installing a SSL trust manager to accept HTTPS connections when
@@ -157,6 +376,7 @@ public class AppService extends AbstractComponent {
             SSLContext sc = SSLContext.getInstance("SSL");
             sc.init(null, trustAllCerts, new SecureRandom());
             HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
+            sslContext = sc;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -173,10 +393,33 @@ public class AppService extends AbstractComponent {
      * @param refresh true if all apps should be refreshed
      */
     public AppService(Settings settings, Environment environment, boolean refresh) {
+        this(settings, environment, refresh, false);
+    }
+
+    /**
+     * Constructs a new AppService.
+     *
+     * Site apps contribute no modules or services. If they are deferred,
+     * they are not installed while constructing, but by
+     * {@link #refreshSiteApps()} in the background, after the node has
+     * started.
+     *
+     * @param settings the settings
+     * @param environment the environment
+     * @param refresh true if all apps should be refreshed
+     * @param deferSites true if site apps should be refreshed later
+     */
+    public AppService(Settings settings, Environment environment, boolean refresh, boolean deferSites) {
         super(settings);
         // give us a fresh class loader, please
         this.classLoader = new URIClassLoader(settings.getClassLoader());
         this.environment = environment;
+        this.declarations = withProfile(settings);
+        this.outOfProfile = outOfProfile(settings, declarations);
+        this.appCosts = new AppCosts(settings.getAsBoolean("apps.stats.bindings", Boolean.FALSE));
+        this.deferSites = deferSites;
+        this.downloadThrottle = new Throttle(settings.getAsBytesSize("apps.download.max_bytes_per_sec", null));
+        this.extractThrottle = new Throttle(settings.getAsBytesSize("apps.extract.max_bytes_per_sec", null));
         if (refresh) {
             // refresh all apps
             refreshAllApps();
@@ -185,7 +428,11 @@ public class AppService extends AbstractComponent {
             // log loaded app state
             logger.info("loaded artifact apps {}", artifactApps.keySet());
             logger.info("loaded plugin apps {}", pluginApps.keySet());
-            logger.info("loaded site apps {}", siteApps.keySet());
+            if (deferSites) {
+                logger.info("site apps {} pending", siteStatus.keySet());
+            } else {
+                logger.info("loaded site apps {}", siteApps.keySet());
+            }
         }
     }
 
@@ -244,36 +491,217 @@ public class AppService extends AbstractComponent {
     }
 
     /**
-     * Refresh all apps
+     * Refresh the apps for new declarations. Only apps that were added or
+     * whose declaration has changed are resolved, downloaded and
+     * instantiated. Apps whose declaration was removed are dropped, and
+     * their plugin or site folders are deleted. Classes that have already
+     * been loaded can not be unloaded, so changed code of plugins takes
+     * effect only after a restart.
+     *
+     * @param declarations the settings with the apps declarations, the app
+     * profile of the node is applied to them
+     */
+    public void refreshApps(Settings declarations) {
+        synchronized (refreshLock) {
+            this.declarations = withProfile(declarations);
+            this.outOfProfile = outOfProfile(declarations, this.declarations);
+            updateThrottles(declarations);
+            refreshAllApps();
+        }
+    }
+
+    /**
+     * Change the rate limits of downloads and zip extraction. Running
+     * downloads and extractions follow the new limits at once. Limits that
+     * are not given in the settings are not changed.
+     *
+     * @param settings the settings with apps.download.max_bytes_per_sec
+     * and apps.extract.max_bytes_per_sec, 0 for unlimited
+     */
+    public void updateThrottles(Settings settings) {
+        ByteSizeValue download = settings.getAsBytesSize("apps.download.max_bytes_per_sec", null);
+        if (download != null && download.bytes() != downloadThrottle.getRate().bytes()) {
+            logger.info("updating apps.download.max_bytes_per_sec from [{}] to [{}]", downloadThrottle.getRate(), download);
+            downloadThrottle.setRate(download);
+        }
+        ByteSizeValue extract = settings.getAsBytesSize("apps.extract.max_bytes_per_sec", null);
+        if (extract != null && extract.bytes() != extractThrottle.getRate().bytes()) {
+            logger.info("updating apps.extract.max_bytes_per_sec from [{}] to [{}]", extractThrottle.getRate(), extract);
+            extractThrottle.setRate(extract);
+        }
+    }
+
+    /**
+     * Refresh all apps. The first refresh loads all declared apps, later
+     * refreshes only load the difference to the last refresh.
      *
      */
-    public synchronized void refreshAllApps() {
+    public void refreshAllApps() {
+        synchronized (refreshLock) {
+            refresh();
+        }
+    }
 
-        this.artifactApps = refreshArtifactApps();
-        this.pluginApps = refreshPluginApps();
-        this.siteApps = refreshSiteApps();
+    private void refresh() {
+        final List<ArtifactInfo> previousArtifacts = loadedArtifacts;
+        // resolving artifacts, downloading plugins and downloading sites are independent
+        final ExecutorService downloads = Executors.newFixedThreadPool(
+                Math.max(1, settings.getAsInt("apps.refresh.concurrency", 4)),
+                EsExecutors.daemonThreadFactory("apps_download"));
+        ExecutorService stages = Executors.newFixedThreadPool(3, EsExecutors.daemonThreadFactory("apps_refresh"));
+        try {
+            Future<List<ArtifactInfo>> artifacts = stages.submit(new Callable<List<ArtifactInfo>>() {
+                @Override
+                public List<ArtifactInfo> call() {
+                    return resolveArtifactApps();
+                }
+            });
+            Future<Object> plugins = stages.submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    downloadPluginApps(downloads);
+                    return null;
+                }
+            });
+            Future<Map<String, SiteApp>> sites = null;
+            if (deferSites) {
+                for (String name : declarations.getGroups("apps.sites").keySet()) {
+                    siteStatus.put(name, AppsStats.PENDING);
+                }
+            } else {
+                sites = stages.submit(new Callable<Map<String, SiteApp>>() {
+                    @Override
+                    public Map<String, SiteApp> call() {
+                        return downloadSiteApps(downloads);
+                    }
+                });
+            }
+            // the class loader is populated sequentially, artifacts first
+            List<ArtifactInfo> resolved = get(artifacts);
+            Map<String, String> lazyDeclarations = lazyDeclarations();
+            String lazy = lazyDeclarations.toString();
+            if (resolved == null || resolved != previousArtifacts || !lazy.equals(lazyFingerprint)) {
+                Map<String, LazyApp> lazyMap = newHashMap();
+                this.artifactApps = loadArtifacts(resolved, lazyDeclarations, lazyMap);
+                this.lazyApps = lazyMap;
+                this.loadedArtifacts = resolved;
+                this.lazyFingerprint = lazy;
+            } else {
+                logger.debug("declared artifact apps unchanged");
+            }
+            get(plugins);
+            this.pluginApps = loadPlugins(environment.pluginsFile());
+            if (sites != null) {
+                this.siteApps = get(sites);
+            }
+        } finally {
+            stages.shutdownNow();
+            downloads.shutdownNow();
+        }
 
-        this.apps = newHashMap();
-        apps.putAll(artifactApps);
-        apps.putAll(pluginApps);
-        apps.putAll(siteApps);
+        Map<String, App> all = newHashMap();
+        all.putAll(artifactApps);
+        all.putAll(pluginApps);
+        all.putAll(siteApps);
+        this.apps = all;
 
-        this.moduleApps = newHashMap();
-        moduleApps.putAll(artifactApps);
-        moduleApps.putAll(pluginApps);
+        Map<String, App> withModules = newHashMap();
+        withModules.putAll(artifactApps);
+        withModules.putAll(pluginApps);
+        this.moduleApps = withModules;
 
         checkMandatory();
 
         // TODO check versions
 
+        Map<App, List<OnModuleReference>> previousRefs = onModuleReferences;
         MapBuilder<App, List<OnModuleReference>> refs = MapBuilder.newMapBuilder();
         for (App app : moduleApps.values()) {
-            List<OnModuleReference> list = onModuleRefs(app);
+            // apps kept from the last refresh are the same instances
+            List<OnModuleReference> list = previousRefs != null && previousRefs.containsKey(app)
+                    ? previousRefs.get(app) : onModuleRefs(app);
             if (!list.isEmpty()) {
                 refs.put(app, list);
             }
         }
         this.onModuleReferences = refs.map();
+        publish();
+    }
+
+    /**
+     * Publish the module apps, replacing the module and service lists and
+     * the dispatch tables of the node and of all indices
+     */
+    private void publish() {
+        this.activeApps = new ActiveApps(moduleApps.values(), onModuleReferences, appCosts);
+        this.indexApps = ConcurrentCollections.newConcurrentMap();
+    }
+
+    /**
+     * Download and unpack the declared site apps in the background. Each
+     * site becomes available as soon as it is unpacked, the node does not
+     * wait for them. The progress is reported by {@link #stats()}.
+     */
+    public void refreshSiteApps() {
+        Thread thread = EsExecutors.daemonThreadFactory("apps_sites").newThread(new Runnable() {
+            @Override
+            public void run() {
+                ExecutorService downloads = Executors.newFixedThreadPool(
+                        Math.max(1, settings.getAsInt("apps.refresh.concurrency", 4)),
+                        EsExecutors.daemonThreadFactory("apps_download"));
+                try {
+                    Map<String, SiteApp> sites = downloadSiteApps(downloads);
+                    synchronized (refreshLock) {
+                        siteApps = sites;
+                        Map<String, App> all = newHashMap();
+                        all.putAll(artifactApps);
+                        all.putAll(pluginApps);
+                        all.putAll(sites);
+                        apps = all;
+                        deferSites = false;
+                        Set<String> missingApps = missingMandatory();
+                        if (!missingApps.isEmpty()) {
+                            logger.error("missing mandatory apps [{}]",
+                                    Strings.collectionToDelimitedString(missingApps, ", "));
+                        }
+                    }
+                    logger.info("loaded site apps {}", sites.keySet());
+                } catch (Throwable t) {
+                    logger.error("failed to refresh site apps", t);
+                } finally {
+                    downloads.shutdownNow();
+                }
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * The state of the apps
+     *
+     * @return the apps stats
+     */
+    public AppsStats stats() {
+        HttpDownloader downloader;
+        RetryQueue retries;
+        synchronized (this) {
+            downloader = httpDownloader;
+            retries = retryQueue;
+        }
+        Map<String, String> lazy = newHashMap();
+        for (LazyApp app : lazyApps.values()) {
+            lazy.put(app.getName(), app.isActive() ? AppsStats.ACTIVE : AppsStats.INACTIVE);
+        }
+        for (Map.Entry<String, Settings> entry : lazyRivers().entrySet()) {
+            boolean loaded = riverClassLoaders.containsKey(entry.getKey() + "/" + entry.getValue().get("dependency"));
+            lazy.put(entry.getKey(), loaded ? AppsStats.ACTIVE : AppsStats.INACTIVE);
+        }
+        RepositoryStats repositories = repositoryStats();
+        return new AppsStats(artifactApps.size(), pluginApps.size(), siteStatus, lazy,
+                downloader != null ? downloader.stats() : null,
+                retries != null ? retries.items() : Collections.<RetryQueue.Item>emptyList(),
+                downloadThrottle, extractThrottle, appCosts.costs(),
+                repositories != null ? repositories.latencies() : Collections.<String, LatencyStats>emptyMap());
     }
 
     /**
@@ -287,8 +715,6 @@ public class AppService extends AbstractComponent {
      * @return the resolved Maven artifacts
      */
     public MavenResolvedArtifact[] resolveArtifact(String dependency, String scope, String[] excludes) {
-        final String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
-        final boolean useMavenCentral = settings.getAsBoolean("apps.usemavencentral", Boolean.TRUE);
         final String[] defaultExcludes = settings.getAsArray("apps.excludes", DEFAULT_EXCLUDE);
         final MavenDependencyExclusion[] exclusions =
                 new MavenDependencyExclusion[defaultExcludes.length + (excludes != null ? excludes.length : 0)];
@@ -303,14 +729,63 @@ public class AppService extends AbstractComponent {
         ScopeType scopeType = scope != null ? ScopeType.fromScopeType(scope) : ScopeType.RUNTIME;
         // optional = false
         MavenDependency dep = MavenDependencies.createDependency(dependency, scopeType, false, exclusions);
-        return Maven
-                .configureResolver()
-                .fromFile(mavenSettingsFile)
-                .addDependencies(dep)
-                .resolve()
-                .withMavenCentralRepo(useMavenCentral)
-                .using(new AcceptScopesStrategy(scopeType))
-                .asResolvedArtifact();
+        return resolve(Collections.singletonList(dep), scopeType);
+    }
+
+    /**
+     * The class loader for a river type declared by a lazy river app. On
+     * the first call for the app, its dependency is resolved and its jars
+     * are put into a class loader of their own, with the class loader of
+     * the apps as parent. The jars are not searched for plugins. Concurrent
+     * first calls for the same app wait for one resolution, calls for
+     * other apps do not wait.
+     *
+     * @param type the river type
+     * @return the class loader, or null if the type is not declared by a
+     * lazy river app
+     */
+    public ClassLoader riverClassLoader(final String type) {
+        for (Map.Entry<String, Settings> entry : lazyRivers().entrySet()) {
+            final Settings declaration = entry.getValue();
+            if (!Arrays.asList(declaration.getAsArray("rivers")).contains(type)) {
+                continue;
+            }
+            final String name = entry.getKey();
+            final String dependency = declaration.get("dependency");
+            final String key = name + "/" + dependency;
+            URIClassLoader loader = riverClassLoaders.get(key);
+            if (loader != null) {
+                return loader;
+            }
+            // resolve outside of any lock, stats and other river types must not wait
+            return riverLoads.execute(key, new Callable<URIClassLoader>() {
+                @Override
+                public URIClassLoader call() {
+                    URIClassLoader riverLoader = riverClassLoaders.get(key);
+                    if (riverLoader != null) {
+                        // loaded by a call that completed meanwhile
+                        return riverLoader;
+                    }
+                    long t0 = System.nanoTime();
+                    MavenResolvedArtifact[] artifacts =
+                            resolveArtifact(dependency, "runtime", declaration.getAsArray("exclude"));
+                    riverLoader = new URIClassLoader(classLoader);
+                    for (ArtifactInfo artifact : ArtifactInfo.of(artifacts)) {
+                        if (artifact.isJar()) {
+                            riverLoader.addUri(artifact.getFile().toURI());
+                        }
+                    }
+                    URIClassLoader existing = riverClassLoaders.putIfAbsent(key, riverLoader);
+                    if (existing != null) {
+                        return existing;
+                    }
+                    logger.info("loaded river app [{}] for river type [{}] in {}", name, type,
+                            TimeValue.timeValueNanos(System.nanoTime() - t0));
+                    return riverLoader;
+                }
+            });
+        }
+        return null;
     }
 
     /**
@@ -322,7 +797,7 @@ public class AppService extends AbstractComponent {
      */
     public ArtifactApp toArtifactApp(String dependency, String[] excludes) {
         MavenResolvedArtifact[] artifacts = resolveArtifact(dependency, "runtime", excludes);
-        Iterator<ArtifactApp> it = loadArtifacts(artifacts).values().iterator();
+        Iterator<ArtifactApp> it = loadArtifacts(ArtifactInfo.of(artifacts)).values().iterator();
         // return first artifact, it's the parent artifact, the app
         return it.hasNext() ? it.next() : null;
     }
@@ -333,23 +808,29 @@ public class AppService extends AbstractComponent {
      * @param settings
      * @param dependency
      */
-    public void removeArtifacts(String dependency) {
-        String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
-        MavenDependency dep = MavenDependencies.createDependency(dependency,
-                ScopeType.RUNTIME, false);
-        File[] artifactFiles = Maven.configureResolver().fromFile(mavenSettingsFile)
-                .offline()
-                .addDependency(dep)
-                .resolve()
-                .withoutTransitivity()
-                .asFile();
-        if (artifactFiles != null) {
-            for (File artifactFile : artifactFiles) {
-                // parent is the version file, a directory
-                logger.warn("deleting {}", artifactFile.getParent());
-                deleteDirectory(artifactFile.getParentFile());
+    public void removeArtifacts(final String dependency) {
+        repositoryLock().execute(new Callable<Object>() {
+            @Override
+            public Object call() {
+                String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
+                MavenDependency dep = MavenDependencies.createDependency(dependency,
+                        ScopeType.RUNTIME, false);
+                File[] artifactFiles = Maven.configureResolver().fromFile(mavenSettingsFile)
+                        .offline()
+                        .addDependency(dep)
+                        .resolve()
+                        .withoutTransitivity()
+                        .asFile();
+                if (artifactFiles != null) {
+                    for (File artifactFile : artifactFiles) {
+                        // parent is the version file, a directory
+                        logger.warn("deleting {}", artifactFile.getParent());
+                        deleteDirectory(artifactFile.getParentFile());
+                    }
+                }
+                return null;
             }
-        }
+        });
     }
 
     /**
@@ -362,6 +843,12 @@ public class AppService extends AbstractComponent {
         if (app == null) {
             return null;
         }
+        synchronized (refreshLock) {
+            return install(app);
+        }
+    }
+
+    private App install(App app) {
         App oldApp = null;
         if (app instanceof ArtifactApp) {
             oldApp = artifactApps.put(app.getCanonicalForm(), (ArtifactApp) app);
@@ -370,10 +857,27 @@ public class AppService extends AbstractComponent {
         } else if (app instanceof SiteApp) {
             oldApp = siteApps.put(app.getCanonicalForm(), (SiteApp) app);
         }
-        apps.put(app.getCanonicalForm(), app);
-        List<OnModuleReference> list = onModuleRefs(app);
-        if (!list.isEmpty()) {
-            onModuleReferences.put(app, list);
+        // readers see either the old or the new state, never a mix
+        Map<String, App> all = newHashMap(apps);
+        all.put(app.getCanonicalForm(), app);
+        this.apps = all;
+        if (app instanceof ArtifactApp || app instanceof PluginApp) {
+            Map<String, App> withModules = newHashMap(moduleApps);
+            withModules.put(app.getCanonicalForm(), app);
+            this.moduleApps = withModules;
+            Map<App, List<OnModuleReference>> refs = newHashMap();
+            if (onModuleReferences != null) {
+                refs.putAll(onModuleReferences);
+            }
+            if (oldApp != null) {
+                refs.remove(oldApp);
+            }
+            List<OnModuleReference> list = onModuleRefs(app);
+            if (!list.isEmpty()) {
+                refs.put(app, list);
+            }
+            this.onModuleReferences = refs;
+            publish();
         }
         return oldApp;
     }
@@ -389,21 +893,13 @@ public class AppService extends AbstractComponent {
     }
 
     private Set<DependencyInfo> dependencyTree(String dependency, Set<DependencyInfo> visited, int level) {
-        final String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
-        final boolean useMavenCentral = settings.getAsBoolean("apps.usemavencentral", Boolean.TRUE);
         final String[] defaultExcludes = settings.getAsArray("apps.excludes", DEFAULT_EXCLUDE);
         MavenDependencyExclusion[] exclusions = new MavenDependencyExclusion[defaultExcludes.length];
         for (int i = 0; i < defaultExcludes.length; i++) {
             exclusions[i] = MavenDependencies.createExclusion(defaultExcludes[i]);
         }
         MavenDependency dep = MavenDependencies.createDependency(dependency, ScopeType.RUNTIME, false, exclusions);
-        MavenResolvedArtifact[] artifacts = Maven.configureResolver()
-                .fromFile(mavenSettingsFile)
-                .addDependencies(dep)
-                .resolve()
-                .withMavenCentralRepo(useMavenCentral)
-                .withTransitivity()
-                .asResolvedArtifact();
+        MavenResolvedArtifact[] artifacts = resolve(Collections.singletonList(dep), null);
         Set<DependencyInfo> foundDeps = Sets.newLinkedHashSet();
         if (artifacts != null && artifacts.length > 0) {
             DependencyInfo info = new DependencyInfo(artifacts[0], level);
@@ -434,8 +930,6 @@ public class AppService extends AbstractComponent {
     }
 
     private Set<App> whatRequires(String dependency, Set<String> visited) {
-        final String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
-        final boolean useMavenCentral = settings.getAsBoolean("apps.usemavencentral", Boolean.TRUE);
         final String[] defaultExcludes = settings.getAsArray("apps.excludes", DEFAULT_EXCLUDE);
         Set<App> foundDeps = Sets.newHashSet();
         for (App app : artifactApps.values()) {
@@ -444,13 +938,7 @@ public class AppService extends AbstractComponent {
                 exclusions[i] = MavenDependencies.createExclusion(defaultExcludes[i]);
             }
             MavenDependency dep = MavenDependencies.createDependency(app.getCanonicalForm(), ScopeType.RUNTIME, false, exclusions);
-            MavenResolvedArtifact[] artifacts = Maven.configureResolver()
-                    .fromFile(mavenSettingsFile)
-                    .addDependencies(dep)
-                    .resolve()
-                    .withMavenCentralRepo(useMavenCentral)
-                    .withTransitivity()
-                    .asResolvedArtifact();
+            MavenResolvedArtifact[] artifacts = resolve(Collections.singletonList(dep), null);
             if (artifacts != null && artifacts.length > 0) {
                 visited.add(artifacts[0].getCoordinate().toCanonicalForm());
                 for (MavenResolvedArtifact artifact : artifacts) {
@@ -468,181 +956,1455 @@ public class AppService extends AbstractComponent {
     }
 
     /**
-     * Helper method for downloading a plugin with a verbode progress bar
+     * Resolve dependencies within the resolve timeout
      *
-     * @param name the plugin name
-     * @param url the URL
-     * @return true is plugin zip could be downloaded and unpacked
+     * @param dependencies the dependencies
+     * @param acceptScope the scope to accept, or null for transitive
+     * resolution
+     * @return the resolved artifacts
      */
-    public boolean downloadAndUnpackPlugin(String name, URL url) throws IOException {
-        final String pluginGroupId = settings.get("apps.plugingroup", PluginApp.GROUP_ID);
-        String version = "0"; // dummy version
-        PluginApp app = new PluginApp(pluginGroupId, name, version, url);
-        File appFile = app.getInstallPath(environment);
-        if (appFile.exists()) {
-            return false;
-        } else {
-            appFile.mkdirs();
-            // only zip supported
-            File zipFile = new File(environment.pluginsFile(), name + ".zip");
-            downloadHelper.download(url, zipFile, new HttpDownloadHelper.VerboseProgress(System.out));
-            // extract zip
-            unzip(environment, new ZipFile(zipFile), app.getInstallPath(environment), app.getPathName());
-            zipFile.delete();
-            return true;
+    private MavenResolvedArtifact[] resolve(Collection<MavenDependency> dependencies, ScopeType acceptScope) {
+        return resolve(dependencies, acceptScope, deadline());
+    }
+
+    /**
+     * Resolve dependencies. This is the entry point to the Maven resolver
+     * for all resolutions of this service. The resolution must complete
+     * before the deadline. If it does not, or if the network is down, the
+     * Maven resolver runs offline against the local repository, so a node
+     * always comes up in bounded time with the artifacts at hand. A refresh
+     * passes one deadline to all of its resolutions.
+     *
+     * Concurrent requests for the same coordinates and exclusions, like a
+     * refresh and a console command, are resolved once, and all callers
+     * share the result.
+     *
+     * @param dependencies the dependencies
+     * @param acceptScope the scope to accept, or null for transitive
+     * resolution
+     * @param deadline the deadline, in nanoseconds as of
+     * {@link System#nanoTime()}, or Long.MAX_VALUE for none
+     * @return the resolved artifacts
+     */
+    private MavenResolvedArtifact[] resolve(final Collection<MavenDependency> dependencies, final ScopeType acceptScope,
+            final long deadline) {
+        Set<String> coordinates = Sets.newTreeSet();
+        for (MavenDependency dependency : dependencies) {
+            // the same coordinates with other exclusions resolve to another graph
+            Set<String> exclusions = Sets.newTreeSet();
+            for (MavenDependencyExclusion exclusion : dependency.getExclusions()) {
+                exclusions.add(exclusion.getGroupId() + ":" + exclusion.getArtifactId());
+            }
+            coordinates.add(dependency.toCanonicalForm() + " exclude " + exclusions);
         }
+        return resolutions.execute(acceptScope + " " + coordinates, new Callable<MavenResolvedArtifact[]>() {
+            @Override
+            public MavenResolvedArtifact[] call() {
+                return resolveWithDeadline(dependencies, acceptScope, deadline);
+            }
+        });
     }
 
     /**
-     * Delete a plugin from the legacy location
+     * The deadline for resolutions started now, from apps.resolve.timeout
      *
-     * @param name the plugin name
-     * @throws IOException
+     * @return the deadline, in nanoseconds as of {@link System#nanoTime()},
+     * or Long.MAX_VALUE if there is no timeout
      */
-    public void removePlugin(String name) throws IOException {
-        File pluginToDelete = new File(environment.pluginsFile(), name);
-        if (pluginToDelete.exists()) {
-            FileSystemUtils.deleteRecursively(pluginToDelete, true);
+    private long deadline() {
+        TimeValue timeout = settings.getAsTime("apps.resolve.timeout", TimeValue.timeValueMinutes(2));
+        return timeout.millis() > 0 ? System.nanoTime() + timeout.nanos() : Long.MAX_VALUE;
+    }
+
+    /**
+     * The time left until a deadline
+     *
+     * @param deadline the deadline
+     * @return the nanoseconds left, 0 or less if the deadline has passed
+     */
+    private static long remaining(long deadline) {
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+
+    private MavenResolvedArtifact[] resolveWithDeadline(final Collection<MavenDependency> dependencies,
+            final ScopeType acceptScope, final long deadline) {
+        final List<String> keys = Lists.newArrayList();
+        for (MavenDependency dependency : dependencies) {
+            keys.add(dependency.getGroupId() + ":" + dependency.getArtifactId());
         }
-        pluginToDelete = new File(environment.pluginsFile(), name + ".zip");
-        if (pluginToDelete.exists()) {
-            pluginToDelete.delete();
+        String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
+        if (networkDown()) {
+            logger.debug("no repository reachable, resolving {} offline", keys);
+            return resolve(dependencies, acceptScope, true, mavenSettingsFile);
         }
-        File binLocation = new File(new File(environment.homeFile(), "bin"), name);
-        if (binLocation.exists()) {
-            FileSystemUtils.deleteRecursively(binLocation);
+        long remaining = remaining(deadline);
+        if (remaining <= 0L) {
+            logger.debug("deadline has passed, resolving {} offline", keys);
+            return resolve(dependencies, acceptScope, true, mavenSettingsFile);
+        }
+        Future<MavenResolvedArtifact[]> future = resolveExecutor().submit(new Callable<MavenResolvedArtifact[]>() {
+            @Override
+            public MavenResolvedArtifact[] call() {
+                return resolveOnline(dependencies, acceptScope, keys, deadline);
+            }
+        });
+        try {
+            return deadline == Long.MAX_VALUE ? future.get() : future.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            // the deadline of the refresh is not a failure of any repository, the breakers
+            // only count the connection failures of the repositories themselves
+            future.cancel(true);
+            logger.warn("resolution of {} did not complete within {}, resolving offline", keys,
+                    TimeValue.timeValueNanos(remaining));
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ElasticSearchInterruptedException("interrupted while resolving " + keys);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ElasticSearchTimeoutException) {
+                // an abandoned resolution still holds the lock on the local repository
+                logger.warn("resolution of {} did not get the lock on the local repository in time, resolving offline",
+                        keys);
+                return resolve(dependencies, acceptScope, true, mavenSettingsFile);
+            }
+            if (!isNetworkFailure(cause)) {
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new ElasticSearchException("failed to resolve " + keys, cause);
+            }
+            logger.warn("network failure while resolving {}, resolving offline: {}", keys, cause.getMessage());
         }
+        return resolve(dependencies, acceptScope, true, mavenSettingsFile);
+    }
+
+    /**
+     * Resolve dependencies with access to the remote repositories. The remote
+     * metadata of the dependencies, and of the artifacts of their last
+     * resolution, is revalidated through the metadata cache first. If it has
+     * not changed, the Maven resolver runs offline against
+     * the local repository, and goes online only if the offline resolution
+     * fails. When online, the repositories are asked in the order of their
+     * observed hit rate and latency for the requested groups, skipping
+     * repositories with an open circuit breaker.
+     *
+     * @param dependencies the dependencies
+     * @param acceptScope the scope to accept, or null for transitive
+     * resolution
+     * @param keys the dependencies in groupId:artifactId form
+     * @param deadline the deadline for taking the lock on the local
+     * repository
+     * @return the resolved artifacts
+     */
+    private MavenResolvedArtifact[] resolveOnline(Collection<MavenDependency> dependencies, ScopeType acceptScope,
+            List<String> keys, long deadline) {
+        MetadataCache cache = metadataCache();
+        RepositoryStats stats = repositoryStats();
+        String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
+        try {
+            if (cache != null && !cache.revalidate(keys, repositorySettings().getRepositories())) {
+                try {
+                    MavenResolvedArtifact[] artifacts = resolve(dependencies, acceptScope, true, mavenSettingsFile);
+                    logger.debug("resolved {} offline, remote metadata has not changed", keys);
+                    return artifacts;
+                } catch (RuntimeException e) {
+                    logger.debug("offline resolution of {} failed, resolving online: {}", keys, e.getMessage());
+                }
+            }
+            if (networkDown()) {
+                logger.warn("no repository reachable, resolving {} offline", keys);
+                return resolve(dependencies, acceptScope, true, mavenSettingsFile);
+            }
+            try {
+                String onlineSettingsFile = effectiveSettingsFile(keys, true);
+                MavenResolvedArtifact[] artifacts;
+                try {
+                    artifacts = resolve(dependencies, acceptScope, false, onlineSettingsFile, deadline);
+                } catch (RuntimeException e) {
+                    String allSettingsFile = effectiveSettingsFile(keys, false);
+                    if (isNetworkFailure(e) || allSettingsFile.equals(onlineSettingsFile)) {
+                        throw e;
+                    }
+                    // a transitive dependency may live in a repository left out for known misses
+                    logger.debug("resolution of {} failed without the repositories of known misses, retrying: {}",
+                            keys, e.getMessage());
+                    artifacts = resolve(dependencies, acceptScope, false, allSettingsFile, deadline);
+                }
+                if (cache != null) {
+                    // revalidate the transitive artifacts next time as well
+                    List<String> closure = Lists.newArrayList();
+                    for (MavenResolvedArtifact artifact : artifacts) {
+                        closure.add(artifact.getCoordinate().getGroupId() + ":" + artifact.getCoordinate().getArtifactId());
+                    }
+                    cache.resolved(keys, closure);
+                    cache.save();
+                }
+                return artifacts;
+            } catch (RuntimeException e) {
+                if (cache != null) {
+                    cache.invalidate(keys);
+                }
+                if (isNetworkFailure(e)) {
+                    repositoryFailure(e);
+                }
+                throw e;
+            }
+        } finally {
+            if (stats != null) {
+                stats.save();
+            }
+        }
+    }
+
+    /**
+     * Count a network failure of an online resolution against the breakers
+     * of the repositories that failed. The Maven resolver names the
+     * repository, by its URL or host, in the messages of the failure.
+     * Repositories not named are not penalized, if no repository is named,
+     * nothing is counted.
+     *
+     * @param failure the failure
+     */
+    private void repositoryFailure(Throwable failure) {
+        CircuitBreaker breaker = circuitBreaker();
+        RepositorySettings repositorySettings = repositorySettings();
+        if (breaker == null || repositorySettings == null) {
+            return;
+        }
+        for (RemoteRepository repository : breaker.available(repositorySettings.getRepositories())) {
+            if (names(failure, repository)) {
+                breaker.failure(repository.getId());
+            }
+        }
+    }
+
+    private static boolean names(Throwable failure, RemoteRepository repository) {
+        String host = null;
+        try {
+            host = new URL(repository.getUrl()).getHost();
+        } catch (IOException e) {
+            // match the URL only
+        }
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            String message = t.getMessage();
+            if (message == null) {
+                continue;
+            }
+            if (message.contains(repository.getUrl()) || (host != null && host.length() > 0 && message.contains(host))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if the remote repositories can not be reached, because the
+     * settings say so or all circuit breakers are open
+     *
+     * @return true if resolutions must run offline
+     */
+    private boolean networkDown() {
+        RepositorySettings repositorySettings = repositorySettings();
+        if (repositorySettings == null) {
+            return false;
+        }
+        if (repositorySettings.isOffline()) {
+            return true;
+        }
+        CircuitBreaker breaker = circuitBreaker();
+        return breaker != null && !repositorySettings.getRepositories().isEmpty()
+                && breaker.available(repositorySettings.getRepositories()).isEmpty();
+    }
+
+    private static boolean isNetworkFailure(Throwable t) {
+        while (t != null) {
+            if (t instanceof SocketException || t instanceof SocketTimeoutException || t instanceof UnknownHostException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Run the Maven resolver. Online, the lock on the local repository is
+     * held, so no other thread or process writes the same artifacts at the
+     * same time. Artifacts written by a previous holder of the lock are
+     * found in the local repository and are not downloaded again. Offline
+     * resolutions only read, and must not wait for a stalled online
+     * resolution that holds the lock.
+     */
+    private MavenResolvedArtifact[] resolve(final Collection<MavenDependency> dependencies, final ScopeType acceptScope,
+            final boolean offline, final String mavenSettingsFile) {
+        return resolve(dependencies, acceptScope, offline, mavenSettingsFile, Long.MAX_VALUE);
+    }
+
+    /**
+     * Run the Maven resolver, waiting for the lock on the local repository
+     * at most until a deadline. An abandoned online resolution can not be
+     * stopped and keeps the lock until it returns by itself.
+     */
+    private MavenResolvedArtifact[] resolve(final Collection<MavenDependency> dependencies, final ScopeType acceptScope,
+            final boolean offline, final String mavenSettingsFile, long deadline) {
+        if (offline) {
+            return resolveMaven(dependencies, acceptScope, true, mavenSettingsFile);
+        }
+        Callable<MavenResolvedArtifact[]> callable = new Callable<MavenResolvedArtifact[]>() {
+            @Override
+            public MavenResolvedArtifact[] call() {
+                return resolveMaven(dependencies, acceptScope, offline, mavenSettingsFile);
+            }
+        };
+        if (deadline == Long.MAX_VALUE) {
+            return repositoryLock().execute(callable);
+        }
+        return repositoryLock().execute(callable, Math.max(0L, remaining(deadline)), TimeUnit.NANOSECONDS);
+    }
+
+    private MavenResolvedArtifact[] resolveMaven(Collection<MavenDependency> dependencies, ScopeType acceptScope,
+            boolean offline, String mavenSettingsFile) {
+        CircuitBreaker breaker = circuitBreaker();
+        final boolean useMavenCentral = settings.getAsBoolean("apps.usemavencentral", Boolean.TRUE)
+                && (offline || breaker == null || !breaker.isOpen(RepositorySettings.MAVEN_CENTRAL.getId()));
+        if (offline) {
+            if (acceptScope != null) {
+                return Maven.configureResolver()
+                        .fromFile(mavenSettingsFile)
+                        .offline()
+                        .addDependencies(dependencies)
+                        .resolve()
+                        .withMavenCentralRepo(useMavenCentral)
+                        .using(new AcceptScopesStrategy(acceptScope))
+                        .asResolvedArtifact();
+            }
+            return Maven.configureResolver()
+                    .fromFile(mavenSettingsFile)
+                    .offline()
+                    .addDependencies(dependencies)
+                    .resolve()
+                    .withMavenCentralRepo(useMavenCentral)
+                    .withTransitivity()
+                    .asResolvedArtifact();
+        }
+        if (acceptScope != null) {
+            return Maven.configureResolver()
+                    .fromFile(mavenSettingsFile)
+                    .addDependencies(dependencies)
+                    .resolve()
+                    .withMavenCentralRepo(useMavenCentral)
+                    .using(new AcceptScopesStrategy(acceptScope))
+                    .asResolvedArtifact();
+        }
+        return Maven.configureResolver()
+                .fromFile(mavenSettingsFile)
+                .addDependencies(dependencies)
+                .resolve()
+                .withMavenCentralRepo(useMavenCentral)
+                .withTransitivity()
+                .asResolvedArtifact();
+    }
+
+    /**
+     * The repository settings, read from the Maven settings file
+     *
+     * @return the repository settings or null if they can not be read
+     */
+    private synchronized RepositorySettings repositorySettings() {
+        if (repositorySettings == null) {
+            File file = new File(settings.get("apps.settings", DEFAULT_SETTINGS));
+            try {
+                repositorySettings = RepositorySettings.read(file,
+                        settings.getAsBoolean("apps.usemavencentral", Boolean.TRUE));
+            } catch (Exception e) {
+                logger.warn("failed to read repository settings from {}", e, file);
+            }
+        }
+        return repositorySettings;
+    }
+
+    /**
+     * The settings file for an online resolution. If the observed repository
+     * stats suggest another order than the declared one, effective settings
+     * with the repositories in that order are written to the state folder.
+     * Repositories known to miss the groupId prefixes of all requested
+     * artifacts can be left out, until the misses expire.
+     *
+     * @param keys the requested artifacts in groupId:artifactId form
+     * @param skipMisses true if repositories with known misses are left out
+     * @return the path of the settings file
+     */
+    private String effectiveSettingsFile(Collection<String> keys, boolean skipMisses) {
+        String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
+        RepositorySettings repositorySettings = repositorySettings();
+        RepositoryStats stats = repositoryStats();
+        CircuitBreaker breaker = circuitBreaker();
+        if (repositorySettings == null || (stats == null && breaker == null)) {
+            return mavenSettingsFile;
+        }
+        List<RemoteRepository> ordered = repositorySettings.getRepositories();
+        if (stats != null) {
+            ordered = stats.order(ordered, keys);
+            if (skipMisses) {
+                List<RemoteRepository> asked = Lists.newArrayList();
+                for (RemoteRepository repository : ordered) {
+                    if (!stats.isKnownMiss(repository.getId(), keys)) {
+                        asked.add(repository);
+                    }
+                }
+                if (!asked.isEmpty()) {
+                    ordered = asked;
+                }
+            }
+        }
+        if (breaker != null) {
+            // unreachable repositories would only add connect timeouts
+            ordered = breaker.available(ordered);
+        }
+        if (ordered.equals(repositorySettings.getRepositories())) {
+            return mavenSettingsFile;
+        }
+        List<String> ids = Lists.newArrayList();
+        for (RemoteRepository repository : ordered) {
+            ids.add(repository.getId());
+        }
+        File source = new File(mavenSettingsFile);
+        // one file per order, concurrent resolutions must not overwrite each other's settings
+        String name = "settings-" + AppLockFile.fingerprint(Collections.singletonList(ids + " " + source.lastModified())) + ".xml";
+        File target = new File(stateDirectory(), name);
+        try {
+            if (!target.exists()) {
+                EffectiveSettings.write(source, target, ids);
+            }
+            logger.debug("repository order for {} is {}", keys, ids);
+            return target.getPath();
+        } catch (Exception e) {
+            logger.warn("failed to write effective settings {}", e, target);
+            return mavenSettingsFile;
+        }
+    }
+
+    /**
+     * The circuit breakers of the remote repositories
+     *
+     * @return the circuit breakers or null if disabled
+     */
+    private synchronized CircuitBreaker circuitBreaker() {
+        int threshold = settings.getAsInt("apps.repositories.breaker.threshold", 3);
+        if (circuitBreaker == null && threshold > 0) {
+            circuitBreaker = new CircuitBreaker(threshold,
+                    settings.getAsTime("apps.repositories.breaker.cool_down", TimeValue.timeValueMinutes(5)));
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * The lock on the local repository. Without repository settings, the
+     * lock is taken in the state folder.
+     *
+     * @return the repository lock
+     */
+    private synchronized RepositoryLock repositoryLock() {
+        if (repositoryLock == null) {
+            RepositorySettings repositorySettings = repositorySettings();
+            repositoryLock = new RepositoryLock(repositorySettings != null && repositorySettings.getLocalRepository() != null
+                    ? repositorySettings.getLocalRepository() : stateDirectory());
+        }
+        return repositoryLock;
+    }
+
+    /**
+     * The queue for retrying failed resolutions in the background
+     *
+     * @return the retry queue or null if disabled
+     */
+    private synchronized RetryQueue retryQueue() {
+        if (retryQueue == null && settings.getAsBoolean("apps.retry.enabled", Boolean.TRUE)) {
+            retryQueue = new RetryQueue(settings.getAsTime("apps.retry.initial_delay", TimeValue.timeValueSeconds(30)),
+                    settings.getAsTime("apps.retry.max_delay", TimeValue.timeValueMinutes(30)),
+                    settings.getAsInt("apps.retry.max_attempts", 10));
+        }
+        return retryQueue;
+    }
+
+    /**
+     * The executor for resolutions under a deadline. Resolutions that are
+     * abandoned at their deadline keep running, so the number of threads is
+     * bounded by apps.resolve.concurrency. Further resolutions wait in the
+     * queue, and are dropped from it when their deadline has passed.
+     *
+     * @return the executor
+     */
+    private synchronized ExecutorService resolveExecutor() {
+        if (resolveExecutor == null) {
+            int size = Math.max(1, settings.getAsInt("apps.resolve.concurrency", 4));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), EsExecutors.daemonThreadFactory("apps_resolve"));
+            executor.allowCoreThreadTimeOut(true);
+            resolveExecutor = executor;
+        }
+        return resolveExecutor;
+    }
+
+    /**
+     * The repository stats for adaptive repository ordering and the negative
+     * cache, persisted in the plugins folder
+     *
+     * @return the repository stats or null if disabled
+     */
+    private synchronized RepositoryStats repositoryStats() {
+        if (repositoryStats == null && settings.getAsBoolean("apps.repositories.adaptive", Boolean.TRUE)) {
+            repositoryStats = new RepositoryStats(new File(stateDirectory(), "repositories.json"),
+                    settings.getAsTime("apps.repositories.negative_ttl", TimeValue.timeValueHours(24)));
+        }
+        return repositoryStats;
+    }
+
+    /**
+     * The metadata cache, shared by all resolutions and persisted in the
+     * plugins folder
+     *
+     * @return the metadata cache or null if disabled
+     */
+    private synchronized MetadataCache metadataCache() {
+        if (metadataCache == null && settings.getAsBoolean("apps.metadata.cache", Boolean.TRUE)) {
+            RepositorySettings repositorySettings = repositorySettings();
+            if (repositorySettings != null && !repositorySettings.isOffline()) {
+                metadataCache = new MetadataCache(new File(stateDirectory(), "metadata.json"),
+                        settings.getAsTime("apps.metadata.ttl", TimeValue.timeValueHours(1)),
+                        settings.getAsTime("apps.metadata.timeout", TimeValue.timeValueSeconds(10)),
+                        repositoryStats(), circuitBreaker());
+            }
+        }
+        return metadataCache;
+    }
+
+    /**
+     * The counters of plugin and site downloads
+     *
+     * @return the download stats
+     */
+    public DownloadStats downloadStats() {
+        return httpDownloader().stats();
+    }
+
+    /**
+     * The downloader for plugin and site zips
+     *
+     * @return the downloader
+     */
+    private synchronized HttpDownloader httpDownloader() {
+        if (httpDownloader == null) {
+            SSLContext context = sslContext;
+            if (context == null) {
+                try {
+                    context = SSLContext.getDefault();
+                } catch (Exception e) {
+                    throw new ElasticSearchException("no SSL context", e);
+                }
+            }
+            httpDownloader = new HttpDownloader(context,
+                    settings.getAsTime("apps.download.timeout", TimeValue.timeValueSeconds(30)),
+                    settings.getAsInt("apps.download.retries", 3),
+                    downloadThrottle);
+        }
+        return httpDownloader;
+    }
+
+    /**
+     * The content-addressable store for downloaded zips and unpacked jars
+     *
+     * @return the content store or null if disabled
+     */
+    private synchronized ContentStore contentStore() {
+        if (contentStore == null && settings.getAsBoolean("apps.cas.enabled", Boolean.TRUE)) {
+            contentStore = new ContentStore(new File(environment.pluginsFile(), DEFAULT_CAS_DIR));
+        }
+        return contentStore;
+    }
+
+    /**
+     * The extractor for plugin and site zips, writing entries in parallel
+     *
+     * @return the zip extractor
+     */
+    private synchronized ZipExtractor zipExtractor() {
+        if (zipExtractor == null) {
+            int concurrency = settings.getAsInt("apps.extract.concurrency", Runtime.getRuntime().availableProcessors());
+            zipExtractor = new ZipExtractor(Executors.newFixedThreadPool(Math.max(1, concurrency),
+                    EsExecutors.daemonThreadFactory("apps_extract")), extractThrottle);
+        }
+        return zipExtractor;
+    }
+
+    /**
+     * The folder for the persistent state of the app service
+     *
+     * @return the state folder
+     */
+    private File stateDirectory() {
+        return new File(environment.pluginsFile(), DEFAULT_STATE_DIR);
+    }
+
+    /**
+     * Helper method for downloading a plugin with a verbode progress bar
+     *
+     * @param name the plugin name
+     * @param url the URL
+     * @return true is plugin zip could be downloaded and unpacked
+     */
+    public boolean downloadAndUnpackPlugin(String name, URL url) throws IOException {
+        final String pluginGroupId = settings.get("apps.plugingroup", PluginApp.GROUP_ID);
+        String version = "0"; // dummy version
+        PluginApp app = new PluginApp(pluginGroupId, name, version, url);
+        File appFile = app.getInstallPath(environment);
+        if (appFile.exists()) {
+            return false;
+        } else {
+            appFile.mkdirs();
+            // only zip supported
+            File zipFile = zipFile("plugin", name);
+            httpDownloader().download(url, zipFile, null, null, new ConsoleDownloadListener(System.out));
+            // extract zip
+            unzip(environment, new ZipFile(zipFile), app.getInstallPath(environment), app.getPathName());
+            zipFile.delete();
+            return true;
+        }
+    }
+
+    /**
+     * Delete a plugin from the legacy location
+     *
+     * @param name the plugin name
+     * @throws IOException
+     */
+    public void removePlugin(String name) throws IOException {
+        File pluginToDelete = new File(environment.pluginsFile(), name);
+        if (pluginToDelete.exists()) {
+            FileSystemUtils.deleteRecursively(pluginToDelete, true);
+        }
+        pluginToDelete = new File(environment.pluginsFile(), name + ".zip");
+        if (pluginToDelete.exists()) {
+            pluginToDelete.delete();
+        }
+        pluginToDelete = zipFile("plugin", name);
+        if (pluginToDelete.exists()) {
+            pluginToDelete.delete();
+        }
+        File binLocation = new File(new File(environment.homeFile(), "bin"), name);
+        if (binLocation.exists()) {
+            FileSystemUtils.deleteRecursively(binLocation);
+        }
+    }
+
+    /**
+     * Helper method for resolving all declared artifact apps. If the app lock
+     * file was written for the current declarations, and all locked jars are
+     * present in the local repository with matching checksums, the artifacts
+     * are taken from the lock file without touching the Maven resolver.
+     * Otherwise, the declared dependencies are resolved and the lock file is
+     * rewritten.
+     *
+     * @return the artifacts to load, or null if there are none
+     */
+    private List<ArtifactInfo> resolveArtifactApps() {
+        final Map<String, Settings> appSettings = declarations.getGroups("apps.dependencies");
+        final String[] defaultExcludes = declarations.getAsArray("apps.excludes", DEFAULT_EXCLUDE);
+        Set<MavenDependency> defaultDeps = Sets.newHashSet();
+        List<String> declared = Lists.newArrayList();
+        List<String> dependencies = Lists.newArrayList();
+        for (Map.Entry<String, Settings> entry : appSettings.entrySet()) {
+            String name = entry.getKey(); // not used yet
+            // lazy river apps are resolved when their river is created
+            boolean enabled = entry.getValue().getAsBoolean("enabled", Boolean.TRUE) && !isLazyRiver(entry.getValue());
+            if (enabled) {
+                String dependency = entry.getValue().get("dependency");
+                String[] excludes = entry.getValue().getAsArray("exclude");
+                MavenDependencyExclusion[] exclusions = new MavenDependencyExclusion[defaultExcludes.length + excludes.length];
+                for (int i = 0; i < defaultExcludes.length; i++) {
+                    exclusions[i] = MavenDependencies.createExclusion(defaultExcludes[i]);
+                }
+                for (int i = 0; i < excludes.length; i++) {
+                    exclusions[defaultExcludes.length + i] = MavenDependencies.createExclusion(excludes[i]);
+                }
+                ScopeType scopeType = ScopeType.RUNTIME;
+                defaultDeps.add(MavenDependencies.createDependency(dependency, scopeType, false, exclusions));
+                declared.add(dependency + " exclude " + Arrays.asList(excludes));
+                dependencies.add(dependency);
+            }
+        }
+        if (defaultDeps.isEmpty()) {
+            return null;
+        }
+        declared.add("excludes " + Arrays.asList(defaultExcludes));
+        final String fingerprint = AppLockFile.fingerprint(declared);
+        // all resolutions of a refresh share one deadline
+        final long deadline = deadline();
+        if (fingerprint.equals(artifactFingerprint) && loadedArtifacts != null) {
+            return loadedArtifacts;
+        }
+        final AppLockFile lockFile = lockFile();
+        if (lockFile != null) {
+            try {
+                List<ArtifactInfo> locked = lockFile.read(fingerprint);
+                if (locked != null) {
+                    List<ArtifactInfo> mismatches = AppLockFile.mismatches(locked);
+                    if (!mismatches.isEmpty() && hedgedDownloader() != null) {
+                        // repair the local repository from the lock file
+                        prefetch(mismatches);
+                        mismatches = AppLockFile.mismatches(mismatches);
+                    }
+                    if (mismatches.isEmpty()) {
+                        logger.info("loading artifact apps from lock file {}", lockFile.getFile());
+                        artifactFingerprint = fingerprint;
+                        return locked;
+                    }
+                    logger.info("lock file {} does not match local repository {}, resolving",
+                            lockFile.getFile(), mismatches);
+                } else if (lockFile.exists()) {
+                    logger.info("declared dependencies changed since lock file {} was written, resolving", lockFile.getFile());
+                }
+            } catch (Exception e) {
+                logger.warn("failed to read lock file {}, resolving", e, lockFile.getFile());
+            }
+        }
+        if (hedgedDownloader() != null) {
+            prefetch(declaredArtifacts(dependencies));
+        }
+        MavenResolvedArtifact[] artifacts;
+        boolean complete = true;
+        try {
+            artifacts = resolve(defaultDeps, null, deadline);
+        } catch (RuntimeException e) {
+            if (defaultDeps.size() == 1 && isMandatory(defaultDeps.iterator().next())) {
+                throw e;
+            }
+            logger.warn("failed to resolve declared dependencies, resolving one by one: {}", e.getMessage());
+            Map<String, MavenResolvedArtifact> partial = Maps.newLinkedHashMap();
+            for (MavenDependency dependency : defaultDeps) {
+                if (remaining(deadline) <= 0L && !isMandatory(dependency) && retryQueue() != null) {
+                    // no time left, mandatory dependencies are still resolved offline
+                    logger.warn("no time left to resolve {}, starting without it and retrying in the background",
+                            dependency.toCanonicalForm());
+                    retryQueue().submit(dependency.toCanonicalForm(), retry(dependency), e);
+                    complete = false;
+                    continue;
+                }
+                try {
+                    for (MavenResolvedArtifact artifact : resolve(Collections.singleton(dependency), null, deadline)) {
+                        partial.put(artifact.getCoordinate().toCanonicalForm(), artifact);
+                    }
+                } catch (RuntimeException e1) {
+                    if (isMandatory(dependency) || retryQueue() == null) {
+                        throw e1;
+                    }
+                    logger.warn("failed to resolve {}, starting without it and retrying in the background: {}",
+                            dependency.toCanonicalForm(), e1.getMessage());
+                    retryQueue().submit(dependency.toCanonicalForm(), retry(dependency), e1);
+                    complete = false;
+                }
+            }
+            artifacts = partial.values().toArray(new MavenResolvedArtifact[partial.size()]);
+        }
+        List<ArtifactInfo> resolved = ArtifactInfo.of(artifacts);
+        if (!complete) {
+            // neither lock nor remember a partial resolution, the next refresh resolves again
+            artifactFingerprint = null;
+            return resolved;
+        }
+        if (lockFile != null) {
+            try {
+                resolved = lockFile.write(fingerprint, resolved);
+            } catch (IOException e) {
+                logger.warn("failed to write lock file {}", e, lockFile.getFile());
+            }
+        }
+        // a failed resolution throws before, and is resolved again by the next refresh
+        artifactFingerprint = fingerprint;
+        return resolved;
+    }
+
+    /**
+     * The app profile of the node, the explicit apps.profile setting, or
+     * the role of the node, one of client, master or data
+     *
+     * @param settings the settings
+     * @return the profile name
+     */
+    private static String profile(Settings settings) {
+        String profile = settings.get("apps.profile");
+        if (profile != null) {
+            return profile;
+        }
+        if (settings.getAsBoolean("node.client", Boolean.FALSE)) {
+            return "client";
+        }
+        if (!settings.getAsBoolean("node.data", Boolean.TRUE)) {
+            return settings.getAsBoolean("node.master", Boolean.TRUE) ? "master" : "client";
+        }
+        return "data";
+    }
+
+    /**
+     * Apply the app profile of the node to the declarations. Apps of the
+     * dependencies, plugins and sites groups are kept if they are in the
+     * include list of the profile, if there is one, and not in its exclude
+     * list. The dependencies, plugins and sites of the profile are added,
+     * and its mandatory list replaces the global one.
+     *
+     * @param settings the settings with the apps declarations
+     * @return the declarations of the profile
+     */
+    private Settings withProfile(Settings settings) {
+        String profile = profile(settings);
+        Settings profileSettings = settings.getByPrefix("apps.profiles." + profile + ".");
+        if (profileSettings.getAsMap().isEmpty()) {
+            logger.debug("no apps profile [{}], using all declared apps", profile);
+            return settings;
+        }
+        String[] include = profileSettings.getAsArray("include");
+        String[] exclude = profileSettings.getAsArray("exclude");
+        boolean mandatory = profileSettings.get("mandatory") != null || profileSettings.get("mandatory.0") != null;
+        ImmutableSettings.Builder builder = ImmutableSettings.settingsBuilder();
+        for (Map.Entry<String, String> entry : settings.getAsMap().entrySet()) {
+            String key = entry.getKey();
+            if (mandatory && (key.equals("apps.mandatory") || key.startsWith("apps.mandatory."))) {
+                continue;
+            }
+            String name = declaredName(key);
+            if (name != null && !inProfile(name, include, exclude)) {
+                continue;
+            }
+            builder.put(key, entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : profileSettings.getAsMap().entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith("dependencies.") || key.startsWith("plugins.") || key.startsWith("sites.")
+                    || key.equals("mandatory") || key.startsWith("mandatory.")) {
+                builder.put("apps." + key, entry.getValue());
+            }
+        }
+        Settings declared = builder.build();
+        logger.info("apps profile [{}]: dependencies {}, plugins {}, sites {}", profile,
+                declared.getGroups("apps.dependencies").keySet(), declared.getGroups("apps.plugins").keySet(),
+                declared.getGroups("apps.sites").keySet());
+        return declared;
+    }
+
+    /**
+     * The name of the app a declaration key belongs to
+     *
+     * @param key the settings key
+     * @return the app name, or null if the key is not part of an app
+     * declaration
+     */
+    private static String declaredName(String key) {
+        for (String group : DECLARATION_GROUPS) {
+            if (key.startsWith(group)) {
+                int pos = key.indexOf('.', group.length());
+                return pos > 0 ? key.substring(group.length(), pos) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The plugin and site apps that are declared, but dropped by the app
+     * profile of the node
+     *
+     * @param settings the settings with the apps declarations
+     * @param declared the declarations of the profile
+     * @return the names of the dropped apps
+     */
+    private static Set<String> outOfProfile(Settings settings, Settings declared) {
+        Set<String> names = Sets.newHashSet();
+        for (String group : new String[]{"apps.plugins", "apps.sites"}) {
+            names.addAll(settings.getGroups(group).keySet());
+            names.removeAll(declared.getGroups(group).keySet());
+        }
+        return names;
+    }
+
+    private static boolean inProfile(String name, String[] include, String[] exclude) {
+        return (include.length == 0 || Arrays.asList(include).contains(name)) && !Arrays.asList(exclude).contains(name);
+    }
+
+    /**
+     * Check if a dependency is a river app declared as lazy, which is
+     * resolved when the first river of one of its types is created
+     *
+     * @param declaration the dependency declaration
+     * @return true if lazy river app
+     */
+    private static boolean isLazyRiver(Settings declaration) {
+        return declaration.getAsBoolean("lazy", Boolean.FALSE) && declaration.getAsArray("rivers").length > 0;
+    }
+
+    /**
+     * The enabled lazy river apps
+     *
+     * @return the declarations, by name
+     */
+    private Map<String, Settings> lazyRivers() {
+        Map<String, Settings> map = new TreeMap<String, Settings>();
+        for (Map.Entry<String, Settings> entry : declarations.getGroups("apps.dependencies").entrySet()) {
+            Settings declaration = entry.getValue();
+            if (declaration.getAsBoolean("enabled", Boolean.TRUE) && isLazyRiver(declaration)) {
+                map.put(entry.getKey(), declaration);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * The dependencies declared as lazy, with the names of the analysis
+     * components they provide
+     *
+     * @return the declaration names by groupId:artifactId, and the provided
+     * names by declaration name, sorted
+     */
+    private Map<String, String> lazyDeclarations() {
+        Map<String, String> map = new TreeMap<String, String>();
+        for (Map.Entry<String, Settings> entry : declarations.getGroups("apps.dependencies").entrySet()) {
+            Settings declaration = entry.getValue();
+            if (!declaration.getAsBoolean("enabled", Boolean.TRUE) || !declaration.getAsBoolean("lazy", Boolean.FALSE)
+                    || isLazyRiver(declaration)) {
+                continue;
+            }
+            String[] provides = declaration.getAsArray("provides");
+            String dependency = declaration.get("dependency");
+            String[] s = dependency != null ? dependency.split(":") : new String[0];
+            if (s.length < 2 || provides.length == 0) {
+                logger.warn("app [{}] is declared lazy, but without dependency or provides, loading it eagerly",
+                        entry.getKey());
+                continue;
+            }
+            map.put(s[0] + ":" + s[1], entry.getKey());
+            // the provided names are part of the fingerprint
+            map.put(entry.getKey(), Arrays.toString(provides));
+        }
+        return map;
+    }
+
+    /**
+     * Check if a dependency is declared as mandatory app
+     *
+     * @param dependency the dependency
+     * @return true if mandatory
+     */
+    private boolean isMandatory(MavenDependency dependency) {
+        String[] mandatoryApps = declarations.getAsArray("apps.mandatory", null);
+        if (mandatoryApps != null) {
+            String appName = dependency.getGroupId() + ":" + dependency.getArtifactId();
+            for (String mandatoryApp : mandatoryApps) {
+                if (mandatoryApp.startsWith(appName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A task for resolving a dependency into the local repository, so it is
+     * present for the next restart
+     *
+     * @param dependency the dependency
+     * @return the task
+     */
+    private Callable<Object> retry(final MavenDependency dependency) {
+        return new Callable<Object>() {
+            @Override
+            public Object call() {
+                resolve(Collections.singleton(dependency), null);
+                logger.info("resolved {} in the background, it will be loaded after the next restart",
+                        dependency.toCanonicalForm());
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Download artifacts with known coordinates into the local repository,
+     * hedging the requests across the repositories. Artifacts that are
+     * already present in the local repository with a matching checksum are
+     * not downloaded again. The Maven resolver accepts the downloaded files
+     * as present in the local repository.
+     *
+     * @param artifacts the artifacts
+     */
+    private void prefetch(final List<ArtifactInfo> artifacts) {
+        final HedgedDownloader downloader = hedgedDownloader();
+        final RepositorySettings repositorySettings = repositorySettings();
+        if (downloader == null || repositorySettings == null || repositorySettings.isOffline()) {
+            return;
+        }
+        repositoryLock().execute(new Callable<Object>() {
+            @Override
+            public Object call() {
+                // artifacts fetched by the previous holder of the lock are not fetched again
+                prefetch(downloader, repositorySettings, AppLockFile.mismatches(artifacts));
+                return null;
+            }
+        });
+    }
+
+    private void prefetch(HedgedDownloader downloader, RepositorySettings repositorySettings,
+            List<ArtifactInfo> artifacts) {
+        RepositoryStats stats = repositoryStats();
+        for (ArtifactInfo artifact : artifacts) {
+            String key = artifact.getGroupId() + ":" + artifact.getArtifactId();
+            List<RemoteRepository> repositories = Lists.newArrayList();
+            for (RemoteRepository repository : stats != null
+                    ? stats.order(repositorySettings.getRepositories(), Collections.singletonList(key))
+                    : repositorySettings.getRepositories()) {
+                if (stats == null || !stats.isKnownMiss(repository.getId(), key)) {
+                    repositories.add(repository);
+                }
+            }
+            String path = RemoteRepository.artifactPath(artifact.getGroupId(), artifact.getArtifactId(),
+                    artifact.getVersion(), artifact.getClassifier(), artifact.getExtension());
+            try {
+                String repositoryId = downloader.download(repositories, path, artifact.getFile(), artifact.getSha1());
+                logger.debug("downloaded {} from {}", artifact, repositoryId);
+            } catch (IOException e) {
+                logger.debug("failed to download {}: {}", artifact, e.getMessage());
+            }
+        }
+        if (stats != null) {
+            // keep the latency samples for the budgets of the next run
+            stats.save();
+        }
+    }
+
+    /**
+     * The pom and jar artifacts of declared dependencies with a fixed
+     * release version, in the local repository layout.
+     *
+     * @param dependencies the declared dependencies in canonical form
+     * @return the artifacts
+     */
+    private List<ArtifactInfo> declaredArtifacts(List<String> dependencies) {
+        List<ArtifactInfo> artifacts = Lists.newArrayList();
+        RepositorySettings repositorySettings = repositorySettings();
+        if (repositorySettings == null) {
+            return artifacts;
+        }
+        File local = repositorySettings.getLocalRepository();
+        for (String dependency : dependencies) {
+            // groupId:artifactId[:packaging[:classifier]]:version
+            String[] s = dependency.split(":");
+            if (s.length < 3 || s.length > 5) {
+                continue;
+            }
+            String version = s[s.length - 1];
+            String packaging = s.length > 3 ? s[2] : "jar";
+            String classifier = s.length > 4 ? s[3] : null;
+            if (!"jar".equals(packaging) || version.endsWith("SNAPSHOT")
+                    || version.indexOf('[') >= 0 || version.indexOf('(') >= 0 || version.indexOf(',') >= 0) {
+                continue;
+            }
+            artifacts.add(new ArtifactInfo(dependency, s[0], s[1], version, null, "pom",
+                    new File(local, RemoteRepository.artifactPath(s[0], s[1], version, null, "pom")), null));
+            artifacts.add(new ArtifactInfo(dependency, s[0], s[1], version, classifier, "jar",
+                    new File(local, RemoteRepository.artifactPath(s[0], s[1], version, classifier, "jar")), null));
+        }
+        return artifacts;
+    }
+
+    /**
+     * The hedged downloader for artifacts, if hedging is enabled
+     *
+     * @return the hedged downloader or null
+     */
+    private synchronized HedgedDownloader hedgedDownloader() {
+        if (hedgedDownloader == null && settings.getAsBoolean("apps.hedge.enabled", Boolean.FALSE)) {
+            hedgedDownloader = new HedgedDownloader(
+                    Executors.newCachedThreadPool(EsExecutors.daemonThreadFactory("apps_hedge")),
+                    settings.getAsTime("apps.hedge.budget", TimeValue.timeValueSeconds(2)),
+                    settings.getAsTime("apps.hedge.min_budget", TimeValue.timeValueMillis(200)),
+                    settings.getAsTime("apps.hedge.max_budget", TimeValue.timeValueSeconds(10)),
+                    settings.getAsTime("apps.hedge.timeout", TimeValue.timeValueSeconds(30)),
+                    circuitBreaker(), repositoryStats());
+        }
+        return hedgedDownloader;
+    }
+
+    /**
+     * The app lock file, or null if locking is disabled
+     *
+     * @return the app lock file
+     */
+    private AppLockFile lockFile() {
+        if (!settings.getAsBoolean("apps.lock.enabled", Boolean.TRUE)) {
+            return null;
+        }
+        String path = settings.get("apps.lock.file");
+        return new AppLockFile(path != null ? new File(path) : new File(environment.pluginsFile(), DEFAULT_LOCK_FILE));
+    }
+
+    /**
+     * Helper method for downloading all declared plugin apps that are not
+     * present yet
+     *
+     * @param executor the executor for the downloads
+     */
+    private void downloadPluginApps(ExecutorService executor) {
+        final String pluginGroupId = declarations.get("apps.plugingroup", PluginApp.GROUP_ID);
+        final Map<String, Settings> pluginSettings = declarations.getGroups("apps.plugins");
+        final Map<String, Settings> previous = declaredPlugins;
+        final Map<String, Settings> declared = newHashMap();
+        List<Future<Boolean>> futures = Lists.newArrayList();
+        // download all declared plugins if not already present
+        for (Map.Entry<String, Settings> entry : pluginSettings.entrySet()) {
+            try {
+                String name = entry.getKey();
+                boolean enabled = entry.getValue().getAsBoolean("enabled", Boolean.TRUE);
+                if (enabled) {
+                    URL url = new URL(entry.getValue().get("url"));
+                    String version = entry.getValue().get("version", "0");
+                    PluginApp app = new PluginApp(pluginGroupId, name, version, url);
+                    declared.put(name, entry.getValue());
+                    if (changed(previous, name, entry.getValue())) {
+                        logger.info("declaration of plugin [{}] has changed, reinstalling", name);
+                        uninstall(app.getInstallPath(environment), app.getPathName());
+                    }
+                    uninstalled.remove(app.getInstallPath(environment).toURI());
+                    if (!app.getInstallPath(environment).exists()) {
+                        futures.add(executor.submit(installer("plugin", name, url,
+                                app.getInstallPath(environment), app.getPathName(), entry.getValue())));
+                    }
+                }
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        for (Future<Boolean> future : futures) {
+            get(future);
+        }
+        if (previous != null) {
+            for (Map.Entry<String, Settings> entry : previous.entrySet()) {
+                if (!declared.containsKey(entry.getKey())) {
+                    logger.info("plugin [{}] is no longer declared, uninstalling", entry.getKey());
+                    try {
+                        URL url = new URL(entry.getValue().get("url"));
+                        String version = entry.getValue().get("version", "0");
+                        PluginApp app = new PluginApp(pluginGroupId, entry.getKey(), version, url);
+                        uninstall(app.getInstallPath(environment), app.getPathName());
+                    } catch (IOException e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        this.declaredPlugins = declared;
+    }
+
+    /**
+     * Helper method for downloading all declared site apps that are not
+     * present yet
+     *
+     * @param executor the executor for the downloads
+     * @return a map of the site apps, in the order of declaration
+     */
+    private Map<String, SiteApp> downloadSiteApps(ExecutorService executor) {
+        final String siteGroupId = declarations.get("apps.sitegroup", SiteApp.GROUP_ID);
+        final Map<String, Settings> siteSettings = declarations.getGroups("apps.sites");
+        final Map<String, Settings> previous = declaredSites;
+        final Map<String, Settings> declared = newHashMap();
+        Map<SiteApp, Future<Boolean>> futures = Maps.newLinkedHashMap();
+        // loop over all declared site apps
+        for (Map.Entry<String, Settings> entry : siteSettings.entrySet()) {
+            try {
+                String name = entry.getKey();
+                boolean enabled = entry.getValue().getAsBoolean("enabled", Boolean.TRUE);
+                if (enabled) {
+                    URL url = new URL(entry.getValue().get("url"));
+                    String version = entry.getValue().get("version", "0");
+                    SiteApp app = new SiteApp(siteGroupId, name, version, url);
+                    File appFile = app.getInstallPath(environment);
+                    declared.put(name, entry.getValue());
+                    if (changed(previous, name, entry.getValue())) {
+                        logger.info("declaration of site plugin [{}] has changed, reinstalling", name);
+                        uninstall(appFile, app.getPathName());
+                    }
+                    // already downloaded and expanded?
+                    siteStatus.put(name, appFile.exists() ? AppsStats.READY : AppsStats.DOWNLOADING);
+                    futures.put(app, appFile.exists() ? null : executor.submit(installer("site plugin", name, url,
+                            appFile, app.getPathName(), entry.getValue())));
+                }
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        // merge in the order of declaration, not of completion
+        final Map<String, SiteApp> loadedApps = Maps.newLinkedHashMap();
+        for (Map.Entry<SiteApp, Future<Boolean>> me : futures.entrySet()) {
+            SiteApp app = me.getKey();
+            if (me.getValue() == null
+                    || (get(me.getValue()) && new File(app.getInstallPath(environment), "_site").exists())) {
+                loadedApps.put(app.getCanonicalForm(), app);
+                siteStatus.put(app.name(), AppsStats.READY);
+            } else {
+                siteStatus.put(app.name(), AppsStats.FAILED);
+            }
+        }
+        if (previous != null) {
+            for (Map.Entry<String, Settings> entry : previous.entrySet()) {
+                if (!declared.containsKey(entry.getKey())) {
+                    logger.info("site plugin [{}] is no longer declared, uninstalling", entry.getKey());
+                    siteStatus.remove(entry.getKey());
+                    try {
+                        URL url = new URL(entry.getValue().get("url"));
+                        String version = entry.getValue().get("version", "0");
+                        SiteApp app = new SiteApp(siteGroupId, entry.getKey(), version, url);
+                        FileSystemUtils.deleteRecursively(app.getInstallPath(environment));
+                    } catch (IOException e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        this.declaredSites = declared;
+        return loadedApps;
+    }
+
+    /**
+     * Check if the declaration of an app has changed since the last refresh
+     *
+     * @param previous the declarations of the last refresh, or null
+     * @param name the name of the app
+     * @param declaration the current declaration
+     * @return true if the app was declared differently
+     */
+    private static boolean changed(Map<String, Settings> previous, String name, Settings declaration) {
+        return previous != null && previous.containsKey(name)
+                && !previous.get(name).getAsMap().equals(declaration.getAsMap());
+    }
+
+    /**
+     * Delete the folder of an installed plugin or site plugin. The class
+     * loader can not forget the URIs of the folder, so they are remembered
+     * and skipped when loading plugins.
+     *
+     * @param installPath the install path
+     * @param pathName the path name of the app
+     */
+    private void uninstall(File installPath, String pathName) {
+        if (installPath.exists()) {
+            uninstalled.add(installPath.toURI());
+            FileSystemUtils.deleteRecursively(installPath);
+        }
+        File binLocation = new File(new File(environment.homeFile(), "bin"), pathName);
+        if (binLocation.exists()) {
+            FileSystemUtils.deleteRecursively(binLocation);
+        }
+    }
+
+    /**
+     * A task for downloading and unpacking a plugin or site zip
+     *
+     * @param kind the kind of app, for logging
+     * @param name the name of the app
+     * @param url the URL of the zip
+     * @param installPath the install path
+     * @param pathName the path name
+     * @param appSettings the app settings, with optional checksums
+     * @return the task, returning true if the zip was unpacked
+     */
+    private Callable<Boolean> installer(final String kind, final String name, final URL url,
+            final File installPath, final String pathName, final Settings appSettings) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                // a partial install path would be taken as installed, and never retried
+                boolean installed = false;
+                try {
+                    ContentStore store = contentStore();
+                    String sha256 = appSettings.get("sha256");
+                    if (store != null && store.contains(sha256)) {
+                        logger.info("found {} {} in content store, not downloading", kind, name);
+                        installPath.mkdirs();
+                        unzip(environment, new ZipFile(store.file(sha256)), installPath, pathName);
+                        store.deduplicate(installPath, ".jar");
+                        installed = true;
+                        return true;
+                    }
+                    logger.info("retrieving {} from URL {}", kind, url);
+                    if (settings.getAsBoolean("apps.download.streaming", Boolean.TRUE)) {
+                        try {
+                            streamAndUnpack(url, installPath, pathName, appSettings, store);
+                            installed = true;
+                            return true;
+                        } catch (IOException e) {
+                            logger.warn("failed to stream {} from URL {}, downloading zip: {}", kind, url, e.getMessage());
+                        }
+                    }
+                    installPath.mkdirs();
+                    // only zip supported
+                    File zipFile = zipFile(kind, name);
+                    httpDownloader().download(url, zipFile, appSettings.get("sha1"), appSettings.get("md5"), null);
+                    if (sha256 != null) {
+                        String actual = ContentStore.checksum(zipFile);
+                        if (!sha256.equalsIgnoreCase(actual)) {
+                            zipFile.delete();
+                            throw new IOException("SHA-256 mismatch for " + url + ", expected " + sha256 + " but was " + actual);
+                        }
+                    }
+                    if (store != null) {
+                        // keep the zip in the content store instead of deleting it
+                        zipFile = store.put(zipFile, sha256);
+                    }
+                    // extract zip
+                    unzip(environment, new ZipFile(zipFile), installPath, pathName);
+                    if (store != null) {
+                        store.deduplicate(installPath, ".jar");
+                    } else {
+                        zipFile.delete();
+                    }
+                    installed = true;
+                    return true;
+                } catch (IOException e) {
+                    logger.error(e.getMessage(), e);
+                    return false;
+                } finally {
+                    if (!installed && installPath.exists()) {
+                        logger.debug("removing incomplete install path {} of {} {}", installPath, kind, name);
+                        FileSystemUtils.deleteRecursively(installPath);
+                    }
+                }
+            }
+        };
     }
 
     /**
-     * Helper method for refreshing all declared artifact apps
+     * The file a plugin or site zip is downloaded to. Plugins and sites are
+     * downloaded at the same time, so the kind is part of the name, and a
+     * plugin and a site of the same name do not write the same file.
      *
-     * @return a map of artifact apps that are present after refreshing
+     * @param kind the kind of app
+     * @param name the name of the app
+     * @return the zip file in the plugins folder
      */
-    private Map<String, ArtifactApp> refreshArtifactApps() {
-        final String mavenSettingsFile = settings.get("apps.settings", DEFAULT_SETTINGS);
-        final boolean useMavenCentral = settings.getAsBoolean("apps.usemavencentral", Boolean.TRUE);
-        final Map<String, Settings> appSettings = settings.getGroups("apps.dependencies");
-        final String[] defaultExcludes = settings.getAsArray("apps.excludes", DEFAULT_EXCLUDE);
-        Set<MavenDependency> defaultDeps = Sets.newHashSet();
-        for (Map.Entry<String, Settings> entry : appSettings.entrySet()) {
-            String name = entry.getKey(); // not used yet
-            boolean enabled = entry.getValue().getAsBoolean("enabled", Boolean.TRUE);
-            if (enabled) {
-                String dependency = entry.getValue().get("dependency");
-                String[] excludes = entry.getValue().getAsArray("exclude");
-                MavenDependencyExclusion[] exclusions = new MavenDependencyExclusion[defaultExcludes.length + excludes.length];
-                for (int i = 0; i < defaultExcludes.length; i++) {
-                    exclusions[i] = MavenDependencies.createExclusion(defaultExcludes[i]);
-                }
-                for (int i = 0; i < excludes.length; i++) {
-                    exclusions[defaultExcludes.length + i] = MavenDependencies.createExclusion(excludes[i]);
-                }
-                ScopeType scopeType = ScopeType.RUNTIME;
-                defaultDeps.add(MavenDependencies.createDependency(dependency, scopeType, false, exclusions));
-            }
-        }
-        MavenResolvedArtifact[] artifacts = defaultDeps.isEmpty() ? null : Maven.configureResolver()
-                .fromFile(mavenSettingsFile)
-                .addDependencies(defaultDeps)
-                .resolve()
-                .withMavenCentralRepo(useMavenCentral)
-                .withTransitivity()
-                .asResolvedArtifact();
-        return loadArtifacts(artifacts);
+    private File zipFile(String kind, String name) {
+        return new File(environment.pluginsFile(), kind.replace(' ', '-') + "-" + name + ".zip");
     }
 
     /**
-     * Helper method for refreshing all plugin apps
+     * Unpack a zip while it is downloaded. The entries are inflated from the
+     * network stream into a staging folder while the stream is hashed. Only
+     * a complete stream with matching checksums is moved to the install path.
      *
-     * @return a map of plugin apps that are present after refreshing
+     * @param url the URL of the zip
+     * @param installPath the install path
+     * @param pathName the path name
+     * @param appSettings the app settings, with optional checksums
+     * @param store the content store for keeping a copy of the zip, or null
+     * @throws IOException if the zip can not be downloaded or unpacked
      */
-    private Map<String, PluginApp> refreshPluginApps() {
-        final Map<String, PluginApp> loadedApps = newHashMap();
-        final String pluginGroupId = settings.get("apps.plugingroup", PluginApp.GROUP_ID);
-        final Map<String, Settings> pluginSettings = settings.getGroups("apps.plugins");
-        // download all declared plugins if not already present
-        for (Map.Entry<String, Settings> entry : pluginSettings.entrySet()) {
-            try {
-                String name = entry.getKey();
-                boolean enabled = entry.getValue().getAsBoolean("enabled", Boolean.TRUE);
-                if (enabled) {
-                    URL url = new URL(entry.getValue().get("url"));
-                    String version = entry.getValue().get("version", "0");
-                    PluginApp app = new PluginApp(pluginGroupId, name, version, url);
-                    File appFile = app.getInstallPath(environment);
-                    if (appFile.exists()) {
-                        loadedApps.put(app.getCanonicalForm(), app);
-                    } else {
-                        appFile.mkdirs();
-                        logger.info("retrieving plugin from URL {}", url);
-                        // only zip supported
-                        File zipFile = new File(environment.pluginsFile(), name + ".zip");
-                        downloadHelper.download(url, zipFile, null);
-                        // extract zip
-                        unzip(environment, new ZipFile(zipFile), app.getInstallPath(environment), app.getPathName());
-                        zipFile.delete();
-                    }
+    private void streamAndUnpack(URL url, File installPath, String pathName, Settings appSettings,
+            ContentStore store) throws IOException {
+        File staging = new File(new File(environment.pluginsFile(), DEFAULT_STAGING_DIR), pathName);
+        FileSystemUtils.deleteRecursively(staging);
+        FileSystemUtils.mkdirs(staging);
+        MessageDigest sha1 = Checksums.digest("SHA-1");
+        MessageDigest md5 = Checksums.digest("MD5");
+        MessageDigest sha256 = ContentStore.digest();
+        File copy = store != null ? store.tempFile() : null;
+        InputStream in = httpDownloader().open(url);
+        if (copy != null) {
+            in = new TeeInputStream(in, new BufferedOutputStream(new FileOutputStream(copy)));
+        }
+        boolean success = false;
+        try {
+            InputStream digested = new DigestInputStream(new DigestInputStream(new DigestInputStream(in, sha1), md5), sha256);
+            zipExtractor().extract(new ZipInputStream(digested), staging);
+            // the central directory is not read by the zip stream, but is part of the checksums
+            byte[] buffer = new byte[8192];
+            while (digested.read(buffer) != -1) {
+                // drain
+            }
+            String expected = appSettings.get("sha1");
+            String actual = Checksums.hex(sha1.digest());
+            if (expected != null && !expected.equalsIgnoreCase(actual)) {
+                throw new IOException("SHA-1 mismatch for " + url + ", expected " + expected + " but was " + actual);
+            }
+            expected = appSettings.get("md5");
+            actual = Checksums.hex(md5.digest());
+            if (expected != null && !expected.equalsIgnoreCase(actual)) {
+                throw new IOException("MD5 mismatch for " + url + ", expected " + expected + " but was " + actual);
+            }
+            expected = appSettings.get("sha256");
+            actual = Checksums.hex(sha256.digest());
+            if (expected != null && !expected.equalsIgnoreCase(actual)) {
+                throw new IOException("SHA-256 mismatch for " + url + ", expected " + expected + " but was " + actual);
+            }
+            if (copy != null) {
+                in.close();
+                store.put(copy, actual);
+                store.deduplicate(staging, ".jar");
+            }
+            postProcess(environment, staging, pathName);
+            if (!staging.renameTo(installPath)) {
+                throw new IOException("can't move " + staging + " to " + installPath);
+            }
+            success = true;
+        } finally {
+            in.close();
+            if (!success) {
+                FileSystemUtils.deleteRecursively(staging);
+                if (copy != null) {
+                    copy.delete();
                 }
-            } catch (IOException e) {
-                logger.error(e.getMessage(), e);
             }
         }
-        return loadPlugins(environment.pluginsFile());
     }
 
     /**
-     * Helper method for refreshing all site apps
+     * Wait for a task of a refresh
      *
-     * @return a map of the loaded site apps
+     * @param future the future of the task
+     * @return the result of the task
      */
-    private Map<String, SiteApp> refreshSiteApps() {
-        final Map<String, SiteApp> loadedApps = newHashMap();
-        final String siteGroupId = settings.get("apps.sitegroup", SiteApp.GROUP_ID);
-        final Map<String, Settings> siteSettings = settings.getGroups("apps.sites");
-        // loop over all declared site apps
-        for (Map.Entry<String, Settings> entry : siteSettings.entrySet()) {
-            try {
-                String name = entry.getKey();
-                boolean enabled = entry.getValue().getAsBoolean("enabled", Boolean.TRUE);
-                if (enabled) {
-                    URL url = new URL(entry.getValue().get("url"));
-                    String version = entry.getValue().get("version", "0");
-                    SiteApp app = new SiteApp(siteGroupId, name, version, url);
-                    File appFile = app.getInstallPath(environment);
-                    if (appFile.exists()) {
-                        // already downloaded and expanded
-                        loadedApps.put(app.getCanonicalForm(), app);
-                    } else {
-                        // download
-                        appFile.mkdirs();
-                        logger.info("retrieving site plugin from URL {}", url);
-                        // only zip supported
-                        File zipFile = new File(environment.pluginsFile(), name + ".zip");
-                        downloadHelper.download(url, zipFile, null);
-                        // extract zip
-                        unzip(environment, new ZipFile(zipFile), app.getInstallPath(environment), app.getPathName());
-                        if (new File(appFile, "_site").exists()) {
-                            loadedApps.put(app.getCanonicalForm(), app);
-                        }
-                        zipFile.delete();
-                    }
-                }
-            } catch (IOException e) {
-                logger.error(e.getMessage(), e);
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticSearchInterruptedException("interrupted while refreshing apps");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw new ElasticSearchException("failed to refresh apps", e.getCause());
         }
-        return loadedApps;
     }
 
     /**
      * A helper method for checking if all mandatory apps are present.
      */
     private void checkMandatory() {
-        String[] mandatoryApps = settings.getAsArray("apps.mandatory", null);
+        Set<String> missingApps = missingMandatory();
+        if (!missingApps.isEmpty()) {
+            throw new ElasticSearchException("Missing mandatory apps [" + Strings.collectionToDelimitedString(missingApps, ", ") + "]");
+        }
+    }
+
+    /**
+     * Find the mandatory apps that are not present. Site apps are not
+     * checked while they are deferred.
+     *
+     * @return the missing apps
+     */
+    private Set<String> missingMandatory() {
+        String[] mandatoryApps = declarations.getAsArray("apps.mandatory", null);
+        String siteGroupId = declarations.get("apps.sitegroup", SiteApp.GROUP_ID);
+        Set<String> missingApps = Sets.newHashSet();
         if (mandatoryApps != null) {
-            Set<String> missingApps = Sets.newHashSet();
             for (String mandatoryApp : mandatoryApps) {
+                if (deferSites && mandatoryApp.startsWith(siteGroupId + ":")) {
+                    continue;
+                }
                 boolean found = false;
                 // do not check versions
                 for (App app : apps.values()) {
@@ -651,24 +2413,53 @@ public class AppService extends AbstractComponent {
                         found = true;
                     }
                 }
+                for (LazyApp app : lazyApps.values()) {
+                    String appName = app.getArtifact().getGroupId() + ":" + app.getArtifact().getArtifactId();
+                    if (mandatoryApp.startsWith(appName)) {
+                        found = true;
+                    }
+                }
+                // lazy river apps are not resolved before their river is created
+                for (Settings river : lazyRivers().values()) {
+                    String[] s = river.get("dependency", "").split(":");
+                    if (s.length >= 2 && mandatoryApp.startsWith(s[0] + ":" + s[1])) {
+                        found = true;
+                    }
+                }
                 if (!found && !missingApps.contains(mandatoryApp)) {
                     missingApps.add(mandatoryApp);
                 }
             }
-            if (!missingApps.isEmpty()) {
-                throw new ElasticSearchException("Missing mandatory apps [" + Strings.collectionToDelimitedString(missingApps, ", ") + "]");
-            }
         }
+        return missingApps;
     }
 
     /**
      * Helper method for loading artifacts and building a map of the
-     * artifact-based apps.
+     * artifact-based apps. Jars that were loaded by an earlier refresh are
+     * not added to the class loader again, and their apps are reused
+     * without instantiating the plugin again.
+     *
+     * @param artifacts the artifacts that will be checked for ES plugins
+     * @return a map of artifacts
+     */
+    private Map<String, ArtifactApp> loadArtifacts(List<ArtifactInfo> artifacts) {
+        return loadArtifacts(artifacts, null, null);
+    }
+
+    /**
+     * Helper method for loading artifacts, where the plugins of artifacts
+     * declared as lazy are not instantiated, but collected as lazy apps.
+     * Lazy apps of the last refresh with the same jar are reused.
      *
      * @param artifacts the artifacts that will be checked for ES plugins
+     * @param lazyDeclarations the names of the lazy declarations, by
+     * groupId:artifactId, or null
+     * @param lazyMap the map receiving the lazy apps, or null
      * @return a map of artifacts
      */
-    private Map<String, ArtifactApp> loadArtifacts(MavenResolvedArtifact[] artifacts) {
+    private Map<String, ArtifactApp> loadArtifacts(List<ArtifactInfo> artifacts,
+            Map<String, String> lazyDeclarations, Map<String, LazyApp> lazyMap) {
         Map<String, ArtifactApp> map = newHashMap();
         // no artifacts?
         if (artifacts == null) {
@@ -677,18 +2468,46 @@ public class AppService extends AbstractComponent {
         }
         // Now we want to know the relationship between class path and JAR.
         // build an URL map to assign found plugin on classpath to artifact
-        Map<URI, MavenResolvedArtifact> jars = newHashMap();
-        for (MavenResolvedArtifact artifact : artifacts) {
-            if (artifact.getCoordinate().getType().equals(PackagingType.JAR)) {
+        Map<URI, ArtifactInfo> jars = newHashMap();
+        for (ArtifactInfo artifact : artifacts) {
+            if (artifact.isJar()) {
                 try {
-                    URI uri = artifact.asFile().toURI();
-                    classLoader.addUri(uri);
+                    URI uri = artifact.getFile().toURI();
+                    addUri(uri);
                     jars.put(uri, artifact);
                 } catch (Exception e) {
-                    logger.warn("failed to add [{}]", artifact.getCoordinate(), e);
+                    logger.warn("failed to add [{}]", artifact, e);
                 }
             } else {
-                logger.warn("not a jar artifact: [{}]", artifact.getCoordinate());
+                logger.warn("not a jar artifact: [{}]", artifact);
+            }
+        }
+        // apps of jars that are still declared are kept
+        Map<URI, ArtifactApp> loaded = newHashMap();
+        if (artifactApps != null) {
+            for (ArtifactApp app : artifactApps.values()) {
+                if (lazyDeclarations != null && lazyDeclarations.containsKey(app.groupId() + ":" + app.artifactId())) {
+                    // became lazy
+                    continue;
+                }
+                try {
+                    URI uri = app.getURL().toURI();
+                    if (jars.containsKey(uri)) {
+                        loaded.put(uri, app);
+                    }
+                } catch (URISyntaxException e) {
+                    // not reusable
+                }
+            }
+        }
+        Map<URI, LazyApp> loadedLazy = newHashMap();
+        if (lazyMap != null) {
+            for (LazyApp app : lazyApps.values()) {
+                try {
+                    loadedLazy.put(app.getURL().toURI(), app);
+                } catch (URISyntaxException e) {
+                    // not reusable
+                }
             }
         }
         // now, that everything is on the class path, build the artifact app map.
@@ -704,9 +2523,34 @@ public class AppService extends AbstractComponent {
             Properties appProps = new Properties();
             InputStream is = null;
             try {
+                URI jar = jar(propUrl, loaded.keySet());
+                if (jar != null) {
+                    ArtifactApp app = loaded.get(jar);
+                    map.put(app.getCanonicalForm(), app);
+                    continue;
+                }
                 is = propUrl.openStream();
                 appProps.load(is);
                 String appClassName = appProps.getProperty("plugin");
+                URI lazyJar = lazyMap != null ? jar(propUrl, jars.keySet()) : null;
+                if (lazyJar != null) {
+                    ArtifactInfo artifact = jars.get(lazyJar);
+                    String name = lazyDeclarations.get(artifact.getGroupId() + ":" + artifact.getArtifactId());
+                    if (name != null && hasNodeComponents(appClassName)) {
+                        // e.g. prebuilt analyzers registered for all indices, they would be missing
+                        logger.warn("app [{}] is declared lazy, but its plugin has node modules, services or settings, "
+                                + "loading it eagerly", name);
+                    } else if (name != null) {
+                        String[] provides = declarations.getAsArray("apps.dependencies." + name + ".provides");
+                        LazyApp app = loadedLazy.get(lazyJar);
+                        if (app == null || !app.getProvides().equals(Sets.newHashSet(provides))) {
+                            app = new LazyApp(name, lazyJar.toURL(), artifact, appClassName, Arrays.asList(provides));
+                        }
+                        lazyMap.put(app.toString(), app);
+                        logger.debug("app [{}] is lazy, providing {}", name, app.getProvides());
+                        continue;
+                    }
+                }
                 Plugin plugin = instantiatePluginClass(appClassName);
                 // lookup for artifact in the jars map
                 if (jars != null) {
@@ -740,7 +2584,8 @@ public class AppService extends AbstractComponent {
 
     /**
      * Helper for loading all plugins into the class path and building a plugin
-     * app map.
+     * app map. Plugins that were loaded by an earlier refresh are reused,
+     * plugins that were uninstalled are skipped.
      *
      * @param pluginsFile the base folder for the plugins
      * @return
@@ -753,11 +2598,21 @@ public class AppService extends AbstractComponent {
             logger.warn("no files exist in {}", pluginsFile.getAbsolutePath());
             return map;
         }
+        // the order of the class path must not depend on the file system
+        Arrays.sort(pluginsFiles);
+        // plugin folders of other profiles, may be visible from an earlier refresh
+        Set<URI> outOfProfile = Sets.newHashSet();
         for (File pluginFile : pluginsFiles) {
-            if (pluginFile.isDirectory()) {
+            if (pluginFile.isDirectory() && !pluginFile.getName().startsWith(".")) {
+                // folders of plugins installed by bin/plugin, not declared as apps, are always loaded
+                if (outOfProfile.contains(pluginFile.getName())) {
+                    logger.debug("plugin [{}] is not part of the apps profile, skipping", pluginFile.getName());
+                    outOfProfile.add(pluginFile.toURI());
+                    continue;
+                }
                 try {
                     // add the root
-                    classLoader.addUri(pluginFile.toURI());
+                    addUri(pluginFile.toURI());
                     // gather files to add
                     List<File> libFiles = Lists.newArrayList();
                     if (pluginFile.listFiles() != null) {
@@ -772,13 +2627,37 @@ public class AppService extends AbstractComponent {
                         if (!(libFile.getName().endsWith(".jar") || libFile.getName().endsWith(".zip"))) {
                             continue;
                         }
-                        classLoader.addUri(libFile.toURI());
+                        addUri(libFile.toURI());
                     }
                 } catch (Exception e) {
                     logger.warn("failed to add plugin [{}]", pluginFile, e);
                 }
             }
         }
+        // plugins of the last refresh, by the URL of their properties
+        Map<String, PluginApp> loaded = newHashMap();
+        if (pluginApps != null) {
+            for (PluginApp app : pluginApps.values()) {
+                loaded.put(app.getURL().toExternalForm(), app);
+            }
+        }
+        Set<URI> artifactJars = Sets.newHashSet();
+        if (artifactApps != null) {
+            for (ArtifactApp app : artifactApps.values()) {
+                try {
+                    artifactJars.add(app.getURL().toURI());
+                } catch (URISyntaxException e) {
+                    // checked by plugin name below
+                }
+            }
+        }
+        for (LazyApp app : lazyApps.values()) {
+            try {
+                artifactJars.add(app.getURL().toURI());
+            } catch (URISyntaxException e) {
+                // ignore
+            }
+        }
         // now, everything is on the class path, build the plugin app map
         Enumeration<URL> propUrls = null;
         try {
@@ -793,6 +2672,15 @@ public class AppService extends AbstractComponent {
             InputStream is = null;
             try {
                 // skip jar URLs, they are artifact apps
+                if (jar(propUrl, artifactJars) != null || jar(propUrl, uninstalled) != null
+                        || jar(propUrl, outOfProfile) != null) {
+                    continue;
+                }
+                PluginApp previous = loaded.get(propUrl.toExternalForm());
+                if (previous != null) {
+                    map.put(previous.getCanonicalForm(), previous);
+                    continue;
+                }
                 is = propUrl.openStream();
                 appProps.load(is);
                 String appClassName = appProps.getProperty("plugin");
@@ -818,6 +2706,37 @@ public class AppService extends AbstractComponent {
         return map;
     }
 
+    /**
+     * Add an URI to the class loader, once
+     *
+     * @param uri the URI
+     */
+    private void addUri(URI uri) {
+        if (classPath.add(uri)) {
+            classLoader.addUri(uri);
+        }
+    }
+
+    /**
+     * Find the jar or folder a resource was loaded from
+     *
+     * @param resource the resource URL
+     * @param uris the URIs of jars or folders
+     * @return the URI containing the resource, or null
+     */
+    private static URI jar(URL resource, Set<URI> uris) {
+        String s = resource.toExternalForm();
+        if (s.startsWith("jar:")) {
+            s = s.substring("jar:".length());
+        }
+        for (URI uri : uris) {
+            if (s.startsWith(uri.toString())) {
+                return uri;
+            }
+        }
+        return null;
+    }
+
     /**
      * Helper method for checking if this plugin name is already in use by and
      * artifact app.
@@ -869,42 +2788,25 @@ public class AppService extends AbstractComponent {
      * @throws IOException
      */
     private void unzip(Environment environment, ZipFile zipFile, File targetFile, String targetPath) throws IOException {
-        String baseDirSuffix = null;
         try {
-            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
-            if (!zipEntries.hasMoreElements()) {
-                logger.error("the zip archive has no entries");
-            }
-            ZipEntry firstEntry = zipEntries.nextElement();
-            if (firstEntry.isDirectory()) {
-                baseDirSuffix = firstEntry.getName();
-            } else {
-                zipEntries = zipFile.entries();
-            }
-            while (zipEntries.hasMoreElements()) {
-                ZipEntry zipEntry = zipEntries.nextElement();
-                if (zipEntry.isDirectory()) {
-                    continue;
-                }
-                String zipEntryName = zipEntry.getName();
-                zipEntryName = zipEntryName.replace('\\', '/');
-                if (baseDirSuffix != null && zipEntryName.startsWith(baseDirSuffix)) {
-                    zipEntryName = zipEntryName.substring(baseDirSuffix.length());
-                }
-                File target = new File(targetFile, zipEntryName);
-                FileSystemUtils.mkdirs(target.getParentFile());
-                Streams.copy(zipFile.getInputStream(zipEntry), new FileOutputStream(target));
-            }
+            zipExtractor().extract(zipFile, targetFile);
         } catch (IOException e) {
             logger.error("failed to extract zip [" + zipFile.getName() + "]: " + ExceptionsHelper.detailedMessage(e));
             return;
-        } finally {
-            try {
-                zipFile.close();
-            } catch (IOException e) {
-                // ignore
-            }
         }
+        postProcess(environment, targetFile, targetPath);
+    }
+
+    /**
+     * Helper for moving the bin folder of an unpacked zip to the bin folder
+     * of the node, and for moving the content of site plugins into the _site
+     * structure
+     *
+     * @param environment the environment
+     * @param targetFile the folder of the unpacked zip
+     * @param targetPath the path name of the app
+     */
+    private void postProcess(Environment environment, File targetFile, String targetPath) {
         File binFile = new File(targetFile, "bin");
         if (binFile.exists() && binFile.isDirectory()) {
             File toLocation = new File(new File(environment.homeFile(), "bin"), targetPath);
@@ -916,7 +2818,7 @@ public class AppService extends AbstractComponent {
             if (!FileSystemUtils.hasExtensions(targetFile, ".class", ".jar")) {
                 logger.info("identified as a _site plugin, moving to _site structure ...");
                 File site = new File(targetFile, "_site");
-                File tmpLocation = new File(environment.pluginsFile(), targetPath + ".tmp");
+                File tmpLocation = new File(targetFile.getParentFile(), targetFile.getName() + ".tmp");
                 targetFile.renameTo(tmpLocation);
                 FileSystemUtils.mkdirs(targetFile);
                 tmpLocation.renameTo(site);
@@ -956,7 +2858,7 @@ public class AppService extends AbstractComponent {
      */
     private List<OnModuleReference> onModuleRefs(App app) {
         List<OnModuleReference> list = Lists.newArrayList();
-        for (Method method : app.getClass().getDeclaredMethods()) {
+        for (Method method : ActiveApps.target(app).getClass().getDeclaredMethods()) {
             if (!method.getName().equals("onModule")) {
                 continue;
             }
@@ -982,22 +2884,159 @@ public class AppService extends AbstractComponent {
     }
 
     public void processModule(Module module) {
-        for (App app : moduleApps.values()) {
-            app.processModule(module);
-            // see if there are onModule references
-            List<OnModuleReference> references = onModuleReferences.get(app);
-            if (references != null) {
-                for (OnModuleReference reference : references) {
-                    if (reference.moduleClass.isAssignableFrom(module.getClass())) {
-                        try {
-                            reference.onModuleMethod.invoke(app, module);
-                        } catch (Exception e) {
-                            logger.warn("app {}, failed to invoke custom onModule method", e, app.name());
-                        }
+        activeApps.processModule(module);
+    }
+
+    /**
+     * The module apps of the node
+     *
+     * @return the active apps
+     */
+    public ActiveApps activeApps() {
+        return activeApps;
+    }
+
+    /**
+     * The module apps active in an index. The index settings
+     * index.apps.include and index.apps.exclude select apps by name or by
+     * groupId:artifactId. Without them, all module apps are active. Lazy
+     * apps are active if the analysis settings of the index use one of
+     * the components they provide, or if they are included by name. The
+     * plugin of a lazy app is instantiated on its first use.
+     *
+     * @param indexSettings the index settings
+     * @return the active apps
+     */
+    public ActiveApps activeApps(Settings indexSettings) {
+        String[] include = indexSettings.getAsArray("index.apps.include");
+        String[] exclude = indexSettings.getAsArray("index.apps.exclude");
+        List<LazyApp> lazy = Lists.newArrayList();
+        Map<String, LazyApp> lazyMap = lazyApps;
+        if (!lazyMap.isEmpty()) {
+            Set<String> analysis = analysisNames(indexSettings);
+            for (LazyApp app : new TreeMap<String, LazyApp>(lazyMap).values()) {
+                String groupArtifact = app.getArtifact().getGroupId() + ":" + app.getArtifact().getArtifactId();
+                if ((app.provides(analysis) || matches(app.getName(), groupArtifact, app.toString(), include))
+                        && !matches(app.getName(), groupArtifact, app.toString(), exclude)) {
+                    lazy.add(app);
+                }
+            }
+        }
+        if (include.length == 0 && exclude.length == 0 && lazy.isEmpty()) {
+            return activeApps;
+        }
+        String key = Arrays.toString(include) + Arrays.toString(exclude) + lazy;
+        ConcurrentMap<String, ActiveApps> cache = indexApps;
+        ActiveApps active = cache.get(key);
+        if (active == null) {
+            ActiveApps all = activeApps;
+            List<App> list = Lists.newArrayList();
+            for (App app : all.apps()) {
+                if ((include.length == 0 || matches(app, include)) && !matches(app, exclude)) {
+                    list.add(app);
+                }
+            }
+            Map<App, List<OnModuleReference>> refs = onModuleReferences;
+            if (!lazy.isEmpty()) {
+                refs = refs != null ? newHashMap(refs) : Maps.<App, List<OnModuleReference>>newHashMap();
+                for (LazyApp app : lazy) {
+                    ArtifactApp artifactApp = activate(app);
+                    list.add(artifactApp);
+                    if (!app.getReferences().isEmpty()) {
+                        refs.put(artifactApp, app.getReferences());
                     }
                 }
             }
+            active = new ActiveApps(list, refs, appCosts);
+            cache.put(key, active);
+        }
+        return active;
+    }
+
+    /**
+     * Instantiate the plugin of a lazy app, once
+     *
+     * @param lazy the lazy app
+     * @return the artifact app
+     */
+    private ArtifactApp activate(LazyApp lazy) {
+        synchronized (lazy) {
+            if (!lazy.isActive()) {
+                long t0 = System.nanoTime();
+                Plugin plugin = instantiatePluginClass(lazy.getPluginClassName());
+                ArtifactApp app = new ArtifactApp(lazy.getURL(), lazy.getArtifact(), plugin);
+                lazy.activate(app, onModuleRefs(app));
+                logger.info("activated lazy app [{}] in {}", lazy.getName(),
+                        TimeValue.timeValueNanos(System.nanoTime() - t0));
+            }
+        }
+        return lazy.getApp();
+    }
+
+    /**
+     * Check if a plugin contributes to the node, by node modules, node
+     * services or additional settings. The plugin class is inspected, not
+     * instantiated. A plugin that overrides one of these methods of
+     * AbstractPlugin, or does not extend it, is assumed to contribute.
+     *
+     * @param className the plugin class name
+     * @return true if the plugin can not be lazy
+     */
+    private boolean hasNodeComponents(String className) {
+        try {
+            Class<?> pluginClass = classLoader.loadClass(className);
+            return overrides(pluginClass, "modules") || overrides(pluginClass, "modules", Settings.class)
+                    || overrides(pluginClass, "services") || overrides(pluginClass, "additionalSettings");
+        } catch (ClassNotFoundException e) {
+            // fails again when instantiated eagerly, with the error logged
+            return true;
+        }
+    }
+
+    private static boolean overrides(Class<?> pluginClass, String name, Class<?>... parameterTypes) {
+        try {
+            return pluginClass.getMethod(name, parameterTypes).getDeclaringClass() != AbstractPlugin.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    /**
+     * The names of the analysis components an index uses in its settings,
+     * the types of custom components and the tokenizers and filters of
+     * custom analyzers
+     *
+     * @param indexSettings the index settings
+     * @return the names
+     */
+    private static Set<String> analysisNames(Settings indexSettings) {
+        Set<String> names = Sets.newHashSet();
+        for (String kind : ANALYSIS_KINDS) {
+            for (Settings component : indexSettings.getGroups("index.analysis." + kind).values()) {
+                if (component.get("type") != null) {
+                    names.add(component.get("type"));
+                }
+                if (component.get("tokenizer") != null) {
+                    names.add(component.get("tokenizer"));
+                }
+                names.addAll(Arrays.asList(component.getAsArray("filter")));
+                names.addAll(Arrays.asList(component.getAsArray("char_filter")));
+            }
+        }
+        return names;
+    }
+
+    private static boolean matches(App app, String[] names) {
+        return matches(app.name(), app.groupId() + ":" + app.artifactId(), app.getCanonicalForm(), names);
+    }
+
+    private static boolean matches(String appName, String groupArtifact, String canonicalForm, String[] names) {
+        for (String name : names) {
+            if (name.equals(appName) || name.equals(groupArtifact) || canonicalForm.startsWith(name + ":")) {
+                return true;
+            }
         }
+        return false;
     }
 
     public Settings updatedSettings() {
@@ -1009,76 +3048,91 @@ public class AppService extends AbstractComponent {
         return builder.build();
     }
 
-    public Collection<Class<? extends Module>> modules() {
-        List<Class<? extends Module>> modules = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            modules.addAll(app.modules());
+    /**
+     * The factory for the modules of the apps, with cached constructors
+     *
+     * @return the module factory
+     */
+    public ModuleFactory moduleFactory() {
+        return moduleFactory;
+    }
+
+    /**
+     * The closer for the index and shard services of the apps, shared by
+     * all indices and shards of the node
+     *
+     * @return the component closer
+     */
+    public synchronized ComponentCloser componentCloser() {
+        if (componentCloser == null) {
+            componentCloser = new ComponentCloser(
+                    settings.getAsInt("apps.close.concurrency", Runtime.getRuntime().availableProcessors()),
+                    settings.getAsTime("apps.close.timeout", TimeValue.timeValueSeconds(30)));
         }
-        return modules;
+        return componentCloser;
     }
 
-    public Collection<Module> modules(Settings settings) {
-        List<Module> modules = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            modules.addAll(app.modules(settings));
+    /**
+     * Release the resources of the app service, the connections and
+     * threads of the downloaders, the extraction, resolution and close
+     * pools, and the background retries. Running downloads, resolutions
+     * and retries are interrupted.
+     */
+    public synchronized void close() {
+        if (httpDownloader != null) {
+            httpDownloader.close();
+        }
+        if (hedgedDownloader != null) {
+            hedgedDownloader.close();
         }
-        return modules;
+        if (zipExtractor != null) {
+            zipExtractor.close();
+        }
+        if (resolveExecutor != null) {
+            resolveExecutor.shutdownNow();
+        }
+        if (retryQueue != null) {
+            retryQueue.close();
+        }
+        if (componentCloser != null) {
+            componentCloser.close();
+        }
+    }
+
+    public Collection<Class<? extends Module>> modules() {
+        return activeApps.modules();
+    }
+
+    public Collection<Module> modules(Settings settings) {
+        return activeApps.modules(settings);
     }
 
     public Collection<Class<? extends LifecycleComponent>> services() {
-        List<Class<? extends LifecycleComponent>> services = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            services.addAll(app.services());
-        }
-        return services;
+        return activeApps.services();
     }
 
     public Collection<Class<? extends Module>> indexModules() {
-        List<Class<? extends Module>> modules = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            modules.addAll(app.indexModules());
-        }
-        return modules;
+        return activeApps.indexModules();
     }
 
     public Collection<Module> indexModules(Settings settings) {
-        List<Module> modules = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            modules.addAll(app.indexModules(settings));
-        }
-        return modules;
+        return activeApps.indexModules(settings);
     }
 
     public Collection<Class<? extends CloseableIndexComponent>> indexServices() {
-        List<Class<? extends CloseableIndexComponent>> services = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            services.addAll(app.indexServices());
-        }
-        return services;
+        return activeApps.indexServices();
     }
 
     public Collection<Class<? extends Module>> shardModules() {
-        List<Class<? extends Module>> modules = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            modules.addAll(app.shardModules());
-        }
-        return modules;
+        return activeApps.shardModules();
     }
 
     public Collection<Module> shardModules(Settings settings) {
-        List<Module> modules = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            modules.addAll(app.shardModules(settings));
-        }
-        return modules;
+        return activeApps.shardModules(settings);
     }
 
     public Collection<Class<? extends CloseableIndexComponent>> shardServices() {
-        List<Class<? extends CloseableIndexComponent>> services = Lists.newArrayList();
-        for (App app : moduleApps.values()) {
-            services.addAll(app.shardServices());
-        }
-        return services;
+        return activeApps.shardServices();
     }
 
     static class OnModuleReference {
@@ -0,0 +1,56 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.settings.NodeSettingsService;
+
+/**
+ * Applies the apps settings that can be changed on a running node by the
+ * cluster update settings API, the rate limits of downloads and zip
+ * extraction.
+ *
+ * @author joerg
+ */
+public class AppSettingsUpdater extends AbstractComponent implements NodeSettingsService.Listener {
+
+    /**
+     * The apps settings that can be updated at runtime
+     */
+    public final static String[] DYNAMIC_SETTINGS = {
+            "apps.download.max_bytes_per_sec",
+            "apps.extract.max_bytes_per_sec"
+    };
+
+    private final AppService appService;
+
+    @Inject
+    public AppSettingsUpdater(Settings settings, NodeSettingsService nodeSettingsService, AppService appService) {
+        super(settings);
+        this.appService = appService;
+        nodeSettingsService.addListener(this);
+    }
+
+    @Override
+    public void onRefreshSettings(Settings settings) {
+        appService.updateThrottles(settings);
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import org.elasticsearch.apps.http.DownloadStats;
+import org.elasticsearch.apps.resolver.LatencyStats;
+import org.elasticsearch.apps.support.RetryQueue;
+import org.elasticsearch.apps.support.Throttle;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+/**
+ * A snapshot of the state of the apps of a node
+ *
+ * @author joerg
+ */
+public class AppsStats implements ToXContent {
+
+    /**
+     * A site app waiting for the node to start
+     */
+    public final static String PENDING = "pending";
+    /**
+     * A site app being downloaded and unpacked
+     */
+    public final static String DOWNLOADING = "downloading";
+    /**
+     * A site app ready to be served
+     */
+    public final static String READY = "ready";
+    /**
+     * A site app that could not be installed
+     */
+    public final static String FAILED = "failed";
+    /**
+     * A lazy app whose plugin was instantiated
+     */
+    public final static String ACTIVE = "active";
+    /**
+     * A lazy app not used by any index yet
+     */
+    public final static String INACTIVE = "inactive";
+
+    private final int artifacts;
+
+    private final int plugins;
+
+    private final Map<String, String> sites;
+
+    private final Map<String, String> lazy;
+
+    private final DownloadStats downloads;
+
+    private final Collection<RetryQueue.Item> retries;
+
+    private final ByteSizeValue downloadRate;
+
+    private final long downloadThrottled;
+
+    private final ByteSizeValue extractRate;
+
+    private final long extractThrottled;
+
+    private final Collection<AppCosts.Cost> costs;
+
+    private final Map<String, LatencyStats> latencies;
+
+    AppsStats(int artifacts, int plugins, Map<String, String> sites, Map<String, String> lazy, DownloadStats downloads,
+            Collection<RetryQueue.Item> retries, Throttle download, Throttle extract, Collection<AppCosts.Cost> costs,
+            Map<String, LatencyStats> latencies) {
+        this.artifacts = artifacts;
+        this.plugins = plugins;
+        this.sites = ImmutableMap.copyOf(sites);
+        this.lazy = ImmutableMap.copyOf(lazy);
+        this.downloads = downloads;
+        this.retries = ImmutableList.copyOf(retries);
+        this.downloadRate = download.getRate();
+        this.downloadThrottled = download.getThrottledMillis();
+        this.extractRate = extract.getRate();
+        this.extractThrottled = extract.getThrottledMillis();
+        this.costs = ImmutableList.copyOf(costs);
+        this.latencies = ImmutableMap.copyOf(latencies);
+    }
+
+    /**
+     * The number of loaded artifact apps
+     */
+    public int getArtifacts() {
+        return artifacts;
+    }
+
+    /**
+     * The number of loaded plugin apps
+     */
+    public int getPlugins() {
+        return plugins;
+    }
+
+    /**
+     * The status of the declared site apps, by name
+     */
+    public Map<String, String> getSites() {
+        return sites;
+    }
+
+    /**
+     * The status of the lazy apps, by name
+     */
+    public Map<String, String> getLazy() {
+        return lazy;
+    }
+
+    /**
+     * The counters of the plugin and site downloader, or null if nothing
+     * was downloaded
+     */
+    public DownloadStats getDownloads() {
+        return downloads;
+    }
+
+    /**
+     * The dependencies that failed to resolve and are retried in the
+     * background, or were given up
+     */
+    public Collection<RetryQueue.Item> getRetries() {
+        return retries;
+    }
+
+    /**
+     * The applied limit of the download rate per second, 0 if unlimited
+     */
+    public ByteSizeValue getDownloadRate() {
+        return downloadRate;
+    }
+
+    /**
+     * The time downloads were paused by the rate limit, in milliseconds
+     */
+    public long getDownloadThrottledMillis() {
+        return downloadThrottled;
+    }
+
+    /**
+     * The applied limit of the extraction rate per second, 0 if unlimited
+     */
+    public ByteSizeValue getExtractRate() {
+        return extractRate;
+    }
+
+    /**
+     * The time extractions were paused by the rate limit, in milliseconds
+     */
+    public long getExtractThrottledMillis() {
+        return extractThrottled;
+    }
+
+    /**
+     * The cost of the apps in building injectors, by app and scope
+     */
+    public Collection<AppCosts.Cost> getCosts() {
+        return costs;
+    }
+
+    /**
+     * The latency samples of the remote repositories, by repository ID
+     */
+    public Map<String, LatencyStats> getLatencies() {
+        return latencies;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("apps");
+        builder.field("artifacts", artifacts);
+        builder.field("plugins", plugins);
+        builder.startObject("sites");
+        for (Map.Entry<String, String> site : sites.entrySet()) {
+            builder.field(site.getKey(), site.getValue());
+        }
+        builder.endObject();
+        builder.startObject("lazy");
+        for (Map.Entry<String, String> app : lazy.entrySet()) {
+            builder.field(app.getKey(), app.getValue());
+        }
+        builder.endObject();
+        if (downloads != null) {
+            builder.startObject("downloads")
+                    .field("downloads", downloads.getDownloads())
+                    .field("failures", downloads.getFailures())
+                    .field("resumes", downloads.getResumes())
+                    .field("connections", downloads.getConnections())
+                    .field("reused_connections", downloads.getReusedConnections())
+                    .field("bytes", downloads.getBytes())
+                    .field("throughput", downloads.getThroughput())
+                    .endObject();
+        }
+        builder.startObject("repositories");
+        for (Map.Entry<String, LatencyStats> latency : latencies.entrySet()) {
+            builder.startObject(latency.getKey())
+                    .field("samples", latency.getValue().count())
+                    .field("p50", TimeValue.timeValueMillis(latency.getValue().percentile(50)).toString())
+                    .field("p99", TimeValue.timeValueMillis(latency.getValue().percentile(99)).toString())
+                    .endObject();
+        }
+        builder.endObject();
+        builder.startObject("throttle")
+                .field("download_max_bytes_per_sec", downloadRate.toString())
+                .field("download_throttled", TimeValue.timeValueMillis(downloadThrottled).toString())
+                .field("extract_max_bytes_per_sec", extractRate.toString())
+                .field("extract_throttled", TimeValue.timeValueMillis(extractThrottled).toString())
+                .endObject();
+        builder.startObject("injectors");
+        for (AppCosts.Cost cost : costs) {
+            builder.startObject(cost.getScope() + "/" + cost.getApp())
+                    .field("injectors", cost.getInjectors())
+                    .field("modules", cost.getModules())
+                    .field("bindings", cost.getBindings())
+                    .field("spawn_time", cost.getSpawnTime().toString())
+                    .field("process_module_calls", cost.getProcessCalls())
+                    .field("process_module_time", cost.getProcessTime().toString())
+                    .field("on_module_calls", cost.getOnModuleCalls())
+                    .field("on_module_time", cost.getOnModuleTime().toString())
+                    .endObject();
+        }
+        builder.endObject();
+        builder.startObject("retries");
+        for (RetryQueue.Item item : retries) {
+            builder.startObject(item.getKey())
+                    .field("state", item.getState())
+                    .field("attempts", item.getAttempts());
+            if (RetryQueue.PENDING.equals(item.getState())) {
+                builder.field("next_attempt", item.getNextAttempt());
+            }
+            builder.field("error", item.getError())
+                    .endObject();
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+            builder.startObject();
+            toXContent(builder, EMPTY_PARAMS);
+            builder.endObject();
+            return builder.string();
+        } catch (IOException e) {
+            return "{ \"error\" : \"" + e.getMessage() + "\"}";
+        }
+    }
+}
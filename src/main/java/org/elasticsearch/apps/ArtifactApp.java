@@ -24,8 +24,8 @@ import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.CloseableIndexComponent;
+import org.elasticsearch.apps.support.ArtifactInfo;
 import org.elasticsearch.plugins.Plugin;
-import org.jboss.shrinkwrap.resolver.api.maven.MavenResolvedArtifact;
 
 /**
  * A Maven Artifact as an App
@@ -36,11 +36,11 @@ public class ArtifactApp implements App {
     
     private final URL url;
     
-    private final MavenResolvedArtifact artifact;
+    private final ArtifactInfo artifact;
     
     private final Plugin plugin;
     
-    ArtifactApp(URL url, MavenResolvedArtifact artifact, Plugin plugin) {
+    ArtifactApp(URL url, ArtifactInfo artifact, Plugin plugin) {
         this.url = url;
         this.artifact = artifact;
         this.plugin = plugin;
@@ -53,30 +53,34 @@ public class ArtifactApp implements App {
     public Plugin getPlugin() {
         return plugin;
     }
+
+    public ArtifactInfo getArtifact() {
+        return artifact;
+    }
     
     @Override    
     public String getCanonicalForm() {
-        return artifact.getCoordinate().toCanonicalForm();        
+        return artifact.getCanonicalForm();
     }
     
     @Override
     public String groupId() {
-        return artifact.getCoordinate().getGroupId();
+        return artifact.getGroupId();
     }
 
     @Override
     public String artifactId() {
-        return artifact.getCoordinate().getArtifactId();
+        return artifact.getArtifactId();
     }
 
     @Override
     public String version() {
-        return artifact.getCoordinate().getVersion();
+        return artifact.getVersion();
     }
 
     @Override
     public String classifier() {
-        return artifact.getCoordinate().getClassifier();
+        return artifact.getClassifier();
     }
 
     @Override
@@ -19,18 +19,12 @@
 
 package org.elasticsearch.apps;
 
-import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.inject.AbstractModule;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.inject.PreProcessModule;
 import org.elasticsearch.common.inject.SpawnModules;
 import org.elasticsearch.common.settings.Settings;
 
-import java.util.Collection;
-import java.util.List;
-
-import static org.elasticsearch.common.inject.Modules.createModule;
-
 /**
  *
  */
@@ -40,28 +34,26 @@ public class IndexAppModule extends AbstractModule implements SpawnModules, PreP
 
     private final AppService appService;
 
+    private final ActiveApps activeApps;
+
     public IndexAppModule(Settings settings, AppService appService) {
         this.settings = settings;
         this.appService = appService;
+        this.activeApps = appService.activeApps(settings);
     }
 
     @Override
     public Iterable<? extends Module> spawnModules() {
-        List<Module> modules = Lists.newArrayList();
-        Collection<Class<? extends Module>> modulesClasses = appService.indexModules();
-        for (Class<? extends Module> moduleClass : modulesClasses) {
-            modules.add(createModule(moduleClass, settings));
-        }
-        modules.addAll(appService.indexModules(settings));
-        return modules;
+        return activeApps.spawnModules(AppCosts.INDEX, appService.moduleFactory(), settings);
     }
 
     @Override
     public void processModule(Module module) {
-        appService.processModule(module);
+        activeApps.processModule(AppCosts.INDEX, module);
     }
 
     @Override
     protected void configure() {
+        bind(ActiveApps.class).toInstance(activeApps);
     }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import org.elasticsearch.apps.support.ArtifactInfo;
+import org.elasticsearch.common.collect.ImmutableSet;
+
+/**
+ * An artifact app declared as lazy. The jar is on the class path, but the
+ * plugin is instantiated only when the first index uses one of the
+ * analysis components the app provides.
+ *
+ * @author joerg
+ */
+public class LazyApp {
+
+    private final String name;
+
+    private final URL url;
+
+    private final ArtifactInfo artifact;
+
+    private final String pluginClassName;
+
+    private final Set<String> provides;
+
+    private volatile ArtifactApp app;
+
+    private volatile List<AppService.OnModuleReference> references;
+
+    LazyApp(String name, URL url, ArtifactInfo artifact, String pluginClassName, Collection<String> provides) {
+        this.name = name;
+        this.url = url;
+        this.artifact = artifact;
+        this.pluginClassName = pluginClassName;
+        this.provides = ImmutableSet.copyOf(provides);
+    }
+
+    /**
+     * The declared name of the app
+     */
+    public String getName() {
+        return name;
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    public ArtifactInfo getArtifact() {
+        return artifact;
+    }
+
+    public String getPluginClassName() {
+        return pluginClassName;
+    }
+
+    /**
+     * The names of the analyzers, tokenizers, token filters and char
+     * filters of the app
+     */
+    public Set<String> getProvides() {
+        return provides;
+    }
+
+    /**
+     * Check if the app provides one of the given analysis components
+     *
+     * @param names the names of analysis components
+     * @return true if at least one is provided by the app
+     */
+    public boolean provides(Set<String> names) {
+        for (String s : names) {
+            if (provides.contains(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if the plugin was instantiated
+     */
+    public boolean isActive() {
+        return app != null;
+    }
+
+    /**
+     * The app, or null if not active yet
+     */
+    public ArtifactApp getApp() {
+        return app;
+    }
+
+    List<AppService.OnModuleReference> getReferences() {
+        return references;
+    }
+
+    void activate(ArtifactApp app, List<AppService.OnModuleReference> references) {
+        this.references = references;
+        this.app = app;
+    }
+
+    @Override
+    public String toString() {
+        return artifact.getCanonicalForm();
+    }
+}
@@ -62,6 +62,7 @@ public class PluginApp implements App {
     public PluginApp(String groupId, URL url, Plugin plugin) {        
         this.groupId = groupId;
         this.url = url;
+        this.plugin = plugin;
         String path = url.getPath(); // URL is URL of es-plugin.properties
         int pos = path.lastIndexOf("/");
         String file = pos >= 0 ? path.substring(pos + 1) : path;
@@ -81,6 +82,14 @@ public class PluginApp implements App {
         this.artifactId = name;
     }
 
+    public URL getURL() {
+        return url;
+    }
+
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
     public String getPathName() {
         String pathName = name;
         if (name.startsWith("elasticsearch-")) {
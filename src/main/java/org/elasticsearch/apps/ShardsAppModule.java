@@ -19,18 +19,12 @@
 
 package org.elasticsearch.apps;
 
-import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.inject.AbstractModule;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.inject.PreProcessModule;
 import org.elasticsearch.common.inject.SpawnModules;
 import org.elasticsearch.common.settings.Settings;
 
-import java.util.Collection;
-import java.util.List;
-
-import static org.elasticsearch.common.inject.Modules.createModule;
-
 /**
  *
  */
@@ -40,25 +34,33 @@ public class ShardsAppModule extends AbstractModule implements SpawnModules, Pre
 
     private final AppService appService;
 
+    private final ActiveApps activeApps;
+
     public ShardsAppModule(Settings settings, AppService appService) {
+        this(settings, appService, appService.activeApps(settings));
+    }
+
+    /**
+     * Create the module with the apps active in the index of the shard
+     *
+     * @param settings the index settings
+     * @param appService the app service
+     * @param activeApps the apps active in the index
+     */
+    public ShardsAppModule(Settings settings, AppService appService, ActiveApps activeApps) {
         this.settings = settings;
         this.appService = appService;
+        this.activeApps = activeApps;
     }
 
     @Override
     public Iterable<? extends Module> spawnModules() {
-        List<Module> modules = Lists.newArrayList();
-        Collection<Class<? extends Module>> modulesClasses = appService.shardModules();
-        for (Class<? extends Module> moduleClass : modulesClasses) {
-            modules.add(createModule(moduleClass, settings));
-        }
-        modules.addAll(appService.shardModules(settings));
-        return modules;
+        return activeApps.spawnModules(AppCosts.SHARD, appService.moduleFactory(), settings);
     }
 
     @Override
     public void processModule(Module module) {
-        appService.processModule(module);
+        activeApps.processModule(AppCosts.SHARD, module);
     }
 
     @Override
@@ -29,6 +29,7 @@ import org.elasticsearch.apps.ArtifactApp;
 import org.elasticsearch.apps.support.DependencyInfo;
 import org.elasticsearch.apps.SiteApp;
 import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.jboss.shrinkwrap.resolver.api.maven.MavenResolvedArtifact;
 
 public enum Command {
@@ -39,6 +40,8 @@ public enum Command {
     LIST(new LsAction()),
     RESOLVE(new ResolveAction()),
     INSTALL(new InstallAction()),
+    STATS(new StatsAction()),
+    THROTTLE(new ThrottleAction()),
     TREE(new TreeAction()),
     WHATREQUIRES(new WhatRequiresAction());
 
@@ -88,6 +91,28 @@ public enum Command {
         }
     }
 
+    static class StatsAction implements Action {
+
+        @Override
+        public void exec(Console c, AppService service, List<String> params) throws Exception {
+            System.out.println(service.stats());
+        }
+    }
+
+    static class ThrottleAction implements Action {
+
+        @Override
+        public void exec(Console c, AppService service, List<String> params) throws Exception {
+            // <download|extract> <bytes per second>
+            if (params.size() < 2) {
+                throw new ElasticSearchIllegalArgumentException("can't throttle without download or extract and a rate");
+            }
+            service.updateThrottles(ImmutableSettings.settingsBuilder()
+                    .put("apps." + params.get(0) + ".max_bytes_per_sec", params.get(1))
+                    .build());
+        }
+    }
+
     static class RmAction implements Action {
 
         @Override
@@ -0,0 +1,72 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.http;
+
+import java.io.PrintStream;
+import java.net.URL;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * A download listener that prints a progress bar of dots and the
+ * throughput to a print stream, e.g. to the console
+ *
+ * @author joerg
+ */
+public class ConsoleDownloadListener implements DownloadListener {
+
+    private final static long UNKNOWN_LENGTH_STEP = 100 * 1024;
+
+    private final PrintStream out;
+    private long next;
+
+    public ConsoleDownloadListener(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void onStart(URL url, long offset, long length) {
+        if (offset > 0) {
+            out.print("Resuming " + url + " at " + new ByteSizeValue(offset) + " ");
+        } else {
+            out.print("Downloading " + url + " ");
+        }
+        next = offset + step(length);
+    }
+
+    @Override
+    public void onProgress(long bytes, long length) {
+        while (bytes >= next) {
+            out.print('.');
+            next += step(length);
+        }
+    }
+
+    @Override
+    public void onDone(long bytes, long millis) {
+        long rate = millis > 0 ? bytes * 1000 / millis : bytes;
+        out.println(" DONE " + new ByteSizeValue(bytes) + " in " + TimeValue.timeValueMillis(millis)
+                + " (" + new ByteSizeValue(rate) + "/s)");
+    }
+
+    private static long step(long length) {
+        // fifty dots for a known length
+        return length > 0 ? Math.max(1, length / 50) : UNKNOWN_LENGTH_STEP;
+    }
+}
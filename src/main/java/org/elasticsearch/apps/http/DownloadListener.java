@@ -0,0 +1,56 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.http;
+
+import java.net.URL;
+
+/**
+ * A listener for the progress of a download
+ *
+ * @author joerg
+ */
+public interface DownloadListener {
+
+    /**
+     * Called when the transfer of the response body begins. May be called
+     * more than once if the download is resumed.
+     *
+     * @param url the URL
+     * @param offset the number of bytes already present from an earlier
+     * attempt
+     * @param length the total length, or -1 if unknown
+     */
+    void onStart(URL url, long offset, long length);
+
+    /**
+     * Called when bytes have been received
+     *
+     * @param bytes the number of bytes present so far, including the offset
+     * @param length the total length, or -1 if unknown
+     */
+    void onProgress(long bytes, long length);
+
+    /**
+     * Called when the download is complete and verified
+     *
+     * @param bytes the number of bytes
+     * @param millis the time the download took in milliseconds
+     */
+    void onDone(long bytes, long millis);
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the HTTP downloader
+ *
+ * @author joerg
+ */
+public class DownloadStats {
+
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong resumes = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong millis = new AtomicLong();
+
+    void download(long bytes, long millis) {
+        this.downloads.incrementAndGet();
+        this.bytes.addAndGet(bytes);
+        this.millis.addAndGet(millis);
+    }
+
+    void failure() {
+        failures.incrementAndGet();
+    }
+
+    void resume() {
+        resumes.incrementAndGet();
+    }
+
+    void connection(boolean reused) {
+        if (reused) {
+            this.reused.incrementAndGet();
+        } else {
+            this.connections.incrementAndGet();
+        }
+    }
+
+    /**
+     * The number of completed downloads
+     */
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    /**
+     * The number of failed downloads
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * The number of times a download was resumed after an interruption
+     */
+    public long getResumes() {
+        return resumes.get();
+    }
+
+    /**
+     * The number of connections opened
+     */
+    public long getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * The number of requests sent over a pooled connection
+     */
+    public long getReusedConnections() {
+        return reused.get();
+    }
+
+    /**
+     * The number of bytes of completed downloads
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * The time spent in completed downloads, in milliseconds
+     */
+    public long getMillis() {
+        return millis.get();
+    }
+
+    /**
+     * The average throughput of completed downloads in bytes per second
+     */
+    public long getThroughput() {
+        long t = millis.get();
+        return t > 0 ? bytes.get() * 1000 / t : 0L;
+    }
+
+    @Override
+    public String toString() {
+        return "downloads=" + getDownloads() + ",failures=" + getFailures() + ",resumes=" + getResumes()
+                + ",connections=" + getConnections() + ",reused=" + getReusedConnections()
+                + ",bytes=" + getBytes() + ",throughput=" + getThroughput();
+    }
+}
@@ -0,0 +1,1007 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import org.elasticsearch.apps.support.Checksums;
+import org.elasticsearch.apps.support.Throttle;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.netty.buffer.ChannelBuffer;
+import org.elasticsearch.common.netty.channel.Channel;
+import org.elasticsearch.common.netty.channel.ChannelFactory;
+import org.elasticsearch.common.netty.channel.ChannelFuture;
+import org.elasticsearch.common.netty.channel.ChannelFutureListener;
+import org.elasticsearch.common.netty.channel.ChannelHandlerContext;
+import org.elasticsearch.common.netty.channel.ChannelPipeline;
+import org.elasticsearch.common.netty.channel.ChannelStateEvent;
+import org.elasticsearch.common.netty.channel.Channels;
+import org.elasticsearch.common.netty.channel.ExceptionEvent;
+import org.elasticsearch.common.netty.channel.MessageEvent;
+import org.elasticsearch.common.netty.channel.SimpleChannelUpstreamHandler;
+import org.elasticsearch.common.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.elasticsearch.common.netty.handler.codec.http.DefaultHttpRequest;
+import org.elasticsearch.common.netty.handler.codec.http.HttpChunk;
+import org.elasticsearch.common.netty.handler.codec.http.HttpClientCodec;
+import org.elasticsearch.common.netty.handler.codec.http.HttpHeaders;
+import org.elasticsearch.common.netty.handler.codec.http.HttpMethod;
+import org.elasticsearch.common.netty.handler.codec.http.HttpRequest;
+import org.elasticsearch.common.netty.handler.codec.http.HttpResponse;
+import org.elasticsearch.common.netty.handler.codec.http.HttpVersion;
+import org.elasticsearch.common.netty.handler.ssl.SslHandler;
+import org.elasticsearch.common.netty.handler.timeout.ReadTimeoutHandler;
+import org.elasticsearch.common.netty.util.HashedWheelTimer;
+import org.elasticsearch.common.netty.util.Timeout;
+import org.elasticsearch.common.netty.util.TimerTask;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * A non-blocking HTTP downloader based on Netty.
+ *
+ * Connections are kept alive and pooled per host, so subsequent downloads
+ * from the same host do not pay for a new TCP and TLS handshake. The
+ * response body is streamed into a ".part" file next to the target while
+ * the SHA-1 and MD5 checksums are computed. If the connection drops, the
+ * download is resumed with an HTTP Range request from the bytes already
+ * present in the ".part" file. The URL and the ETag or Last-Modified date
+ * of the body are kept in a ".part.info" file, and sent as If-Range, so a
+ * server that has changed the file sends all of it again. A ".part" file
+ * of another URL, or without a validator, is not resumed. Only a complete
+ * and verified file is renamed to the target.
+ *
+ * URLs other than HTTP and HTTPS are copied with plain streams.
+ *
+ * @author joerg
+ */
+public class HttpDownloader {
+
+    private final static ESLogger logger = Loggers.getLogger(HttpDownloader.class);
+
+    private final static int MAX_REDIRECTS = 5;
+
+    private final static String USER_AGENT = "elasticsearch-apps";
+
+    private final ChannelFactory factory;
+    private final HashedWheelTimer timer;
+    private final SSLContext sslContext;
+    private final int timeout;
+    private final int retries;
+    private final Map<String, Queue<Channel>> idle = Maps.newHashMap();
+    private final DownloadStats stats = new DownloadStats();
+    private final Throttle throttle;
+
+    /**
+     * Create a HTTP downloader
+     *
+     * @param sslContext the SSL context for HTTPS connections
+     * @param timeout the connect timeout, and the maximum time without
+     * receiving bytes
+     * @param retries the number of times an interrupted download is resumed
+     */
+    public HttpDownloader(SSLContext sslContext, TimeValue timeout, int retries) {
+        this(sslContext, timeout, retries, new Throttle(null));
+    }
+
+    /**
+     * Create a HTTP downloader with a limited rate
+     *
+     * @param sslContext the SSL context for HTTPS connections
+     * @param timeout the connect timeout, and the maximum time without
+     * receiving bytes
+     * @param retries the number of times an interrupted download is resumed
+     * @param throttle the throttle for the bytes received by all downloads
+     */
+    public HttpDownloader(SSLContext sslContext, TimeValue timeout, int retries, Throttle throttle) {
+        this.throttle = throttle;
+        this.sslContext = sslContext;
+        this.timeout = (int) timeout.millis();
+        this.retries = retries;
+        this.timer = new HashedWheelTimer(EsExecutors.daemonThreadFactory("apps_download_timer"));
+        this.factory = new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(EsExecutors.daemonThreadFactory("apps_download_boss")),
+                Executors.newCachedThreadPool(EsExecutors.daemonThreadFactory("apps_download_worker")));
+    }
+
+    /**
+     * The download counters
+     *
+     * @return the stats
+     */
+    public DownloadStats stats() {
+        return stats;
+    }
+
+    /**
+     * The throttle of all downloads. The rate can be changed while
+     * downloading.
+     *
+     * @return the throttle
+     */
+    public Throttle throttle() {
+        return throttle;
+    }
+
+    /**
+     * Download a file
+     *
+     * @param url the URL
+     * @param target the target file
+     * @param sha1 the expected SHA-1 checksum, or null
+     * @param md5 the expected MD5 checksum, or null
+     * @param listener a listener for the progress, or null
+     * @throws IOException if the download fails or the checksums do not
+     * match
+     */
+    public void download(URL url, File target, String sha1, String md5, DownloadListener listener) throws IOException {
+        File part = new File(target.getPath() + ".part");
+        File info = new File(target.getPath() + ".part.info");
+        File parent = part.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        String origin = url.toExternalForm();
+        String validator = validator(origin, part, info);
+        long started = System.currentTimeMillis();
+        Transfer transfer;
+        int attempts = 0;
+        int redirects = 0;
+        while (true) {
+            transfer = new Transfer(url, part, info, origin, validator, listener, throttle);
+            try {
+                if (isHttp(url)) {
+                    exchange(transfer);
+                } else {
+                    transfer.copy();
+                }
+            } catch (IOException e) {
+                if (++attempts > retries) {
+                    stats.failure();
+                    throw e;
+                }
+                logger.debug("download of {} interrupted at {} bytes, resuming: {}", url, part.length(), e.getMessage());
+                stats.resume();
+                validator = transfer.validator;
+                continue;
+            }
+            int status = transfer.status;
+            if (status >= 300 && status < 400 && transfer.location != null) {
+                if (++redirects > MAX_REDIRECTS) {
+                    stats.failure();
+                    throw new IOException("too many redirects for " + url);
+                }
+                url = new URL(url, transfer.location);
+                continue;
+            }
+            if (status == 416 && transfer.offset > 0) {
+                // the part file is complete, or something else than expected
+                if (matches(transfer, sha1, md5) && (sha1 != null || md5 != null)) {
+                    break;
+                }
+                part.delete();
+                info.delete();
+                validator = null;
+                if (++attempts > retries) {
+                    stats.failure();
+                    throw new IOException("range not satisfiable for " + url);
+                }
+                continue;
+            }
+            if (status != 200 && status != 206) {
+                stats.failure();
+                throw new IOException("status " + status + " for " + url);
+            }
+            break;
+        }
+        if (!matches(transfer, sha1, md5)) {
+            part.delete();
+            info.delete();
+            stats.failure();
+            throw new IOException("checksum mismatch for " + url + ", expected sha1=" + sha1 + " md5=" + md5
+                    + " but was sha1=" + transfer.sha1() + " md5=" + transfer.md5());
+        }
+        if (!part.renameTo(target)) {
+            target.delete();
+            if (!part.renameTo(target)) {
+                throw new IOException("can't rename " + part + " to " + target);
+            }
+        }
+        info.delete();
+        long millis = System.currentTimeMillis() - started;
+        stats.download(transfer.bytes, millis);
+        if (listener != null) {
+            listener.onDone(transfer.bytes, millis);
+        }
+    }
+
+    /**
+     * The validator of a ".part" file left over from an earlier download of
+     * a URL. A ".part" file of another URL, or without a validator, may be
+     * part of another file, and is deleted.
+     *
+     * @param origin the requested URL
+     * @param part the ".part" file
+     * @param info the ".part.info" file
+     * @return the ETag or Last-Modified date to send as If-Range, or null
+     * if the download starts from the beginning
+     */
+    private static String validator(String origin, File part, File info) {
+        String validator = null;
+        if (part.exists() && info.exists()) {
+            try {
+                String[] lines = Streams.copyToString(new InputStreamReader(new FileInputStream(info), "UTF-8")).split("\n");
+                if (lines.length == 2 && origin.equals(lines[0]) && lines[1].length() > 0) {
+                    validator = lines[1];
+                }
+            } catch (IOException e) {
+                logger.debug("can't read {}: {}", info, e.getMessage());
+            }
+        }
+        if (validator == null) {
+            if (part.exists()) {
+                logger.debug("can't tell if {} is part of {}, starting over", part, origin);
+            }
+            part.delete();
+            info.delete();
+        }
+        return validator;
+    }
+
+    /**
+     * Close all pooled connections and release the resources
+     */
+    public void close() {
+        synchronized (idle) {
+            for (Queue<Channel> channels : idle.values()) {
+                for (Channel channel : channels) {
+                    channel.close();
+                }
+            }
+            idle.clear();
+        }
+        factory.releaseExternalResources();
+        timer.stop();
+    }
+
+    /**
+     * Open the response body of a URL as a stream. The bytes are handed over
+     * as they arrive from the network. If the reader falls behind, reading
+     * from the connection is suspended until the reader catches up. There is
+     * no resume, a dropped connection fails the stream.
+     *
+     * @param url the URL
+     * @return the input stream of the response body
+     * @throws IOException if the URL can not be opened
+     */
+    public InputStream open(URL url) throws IOException {
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            if (!isHttp(url)) {
+                return url.openStream();
+            }
+            Channel channel = acquire(url);
+            ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+            BodyStream body = new BodyStream(url, channel, handler);
+            send(channel, url, 0L, null, body);
+            try {
+                body.awaitResponse();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                body.close();
+                throw new IOException("interrupted while opening " + url);
+            }
+            if (body.status == 200) {
+                return body;
+            }
+            body.close();
+            if (body.failure != null) {
+                stats.failure();
+                throw body.failure;
+            }
+            if (body.status < 300 || body.status >= 400 || body.location == null) {
+                stats.failure();
+                throw new IOException("status " + body.status + " for " + url);
+            }
+            url = new URL(url, body.location);
+        }
+        stats.failure();
+        throw new IOException("too many redirects for " + url);
+    }
+
+    private void send(Channel channel, URL url, long offset, String validator, final Exchange exchange) {
+        channel.getPipeline().get(ResponseHandler.class).exchange = exchange;
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                url.getFile().length() > 0 ? url.getFile() : "/");
+        request.setHeader(HttpHeaders.Names.HOST, url.getPort() != -1 ? url.getHost() + ":" + url.getPort() : url.getHost());
+        request.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        request.setHeader(HttpHeaders.Names.USER_AGENT, USER_AGENT);
+        if (offset > 0) {
+            request.setHeader(HttpHeaders.Names.RANGE, "bytes=" + offset + "-");
+            if (validator != null) {
+                // a changed file is sent in full
+                request.setHeader(HttpHeaders.Names.IF_RANGE, validator);
+            }
+        }
+        channel.write(request).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    exchange.fail(future.getCause());
+                }
+            }
+        });
+    }
+
+    private void exchange(final Transfer transfer) throws IOException {
+        URL url = transfer.url;
+        Channel channel = acquire(url);
+        ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+        send(channel, url, transfer.offset, transfer.validator, transfer);
+        try {
+            transfer.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            channel.close();
+            throw new IOException("interrupted while downloading " + url);
+        } finally {
+            handler.exchange = null;
+        }
+        if (transfer.failure != null) {
+            channel.close();
+            throw transfer.failure;
+        }
+        if (transfer.keepAlive) {
+            release(url, channel);
+        } else {
+            channel.close();
+        }
+    }
+
+    private Channel acquire(URL url) throws IOException {
+        String key = key(url);
+        synchronized (idle) {
+            Queue<Channel> channels = idle.get(key);
+            while (channels != null && !channels.isEmpty()) {
+                Channel channel = channels.poll();
+                if (channel.isConnected()) {
+                    stats.connection(true);
+                    return channel;
+                }
+            }
+        }
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        ChannelPipeline pipeline = Channels.pipeline();
+        SslHandler sslHandler = null;
+        if ("https".equalsIgnoreCase(url.getProtocol())) {
+            SSLEngine engine = sslContext.createSSLEngine(host, port);
+            engine.setUseClientMode(true);
+            sslHandler = new SslHandler(engine);
+            pipeline.addLast("ssl", sslHandler);
+        }
+        pipeline.addLast("timeout", new ReadTimeoutHandler(timer, timeout, TimeUnit.MILLISECONDS));
+        pipeline.addLast("codec", new HttpClientCodec());
+        pipeline.addLast("handler", new ResponseHandler(key));
+        Channel channel = factory.newChannel(pipeline);
+        channel.getConfig().setConnectTimeoutMillis(timeout);
+        ChannelFuture future = channel.connect(new InetSocketAddress(host, port)).awaitUninterruptibly();
+        if (!future.isSuccess()) {
+            channel.close();
+            throw new IOException("can't connect to " + host + ":" + port, future.getCause());
+        }
+        if (sslHandler != null) {
+            future = sslHandler.handshake().awaitUninterruptibly();
+            if (!future.isSuccess()) {
+                channel.close();
+                throw new IOException("SSL handshake with " + host + ":" + port + " failed", future.getCause());
+            }
+        }
+        stats.connection(false);
+        return channel;
+    }
+
+    private void release(URL url, Channel channel) {
+        if (!channel.isConnected()) {
+            return;
+        }
+        String key = key(url);
+        synchronized (idle) {
+            Queue<Channel> channels = idle.get(key);
+            if (channels == null) {
+                channels = new LinkedList<Channel>();
+                idle.put(key, channels);
+            }
+            channels.add(channel);
+        }
+    }
+
+    private void remove(String key, Channel channel) {
+        synchronized (idle) {
+            Queue<Channel> channels = idle.get(key);
+            if (channels != null) {
+                channels.remove(channel);
+            }
+        }
+    }
+
+    private static String key(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+
+    private static boolean isHttp(URL url) {
+        return "http".equalsIgnoreCase(url.getProtocol()) || "https".equalsIgnoreCase(url.getProtocol());
+    }
+
+    private static boolean matches(Transfer transfer, String sha1, String md5) {
+        return (sha1 == null || sha1.equalsIgnoreCase(transfer.sha1()))
+                && (md5 == null || md5.equalsIgnoreCase(transfer.md5()));
+    }
+
+    /**
+     * Suspend reading from a connection for a while, without blocking the
+     * I/O thread
+     *
+     * @param channel the connection
+     * @param nanos the time to suspend in nanoseconds
+     */
+    private void pause(final Channel channel, long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        channel.setReadable(false);
+        timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) {
+                if (channel.isOpen()) {
+                    channel.setReadable(true);
+                }
+            }
+        }, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Dispatches the responses of a pooled connection to the transfer that
+     * currently uses the connection
+     */
+    private class ResponseHandler extends SimpleChannelUpstreamHandler {
+
+        private final String key;
+        volatile Exchange exchange;
+
+        ResponseHandler(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            Exchange t = exchange;
+            if (t == null) {
+                return;
+            }
+            Object message = e.getMessage();
+            int bytes = 0;
+            if (message instanceof HttpResponse) {
+                bytes = ((HttpResponse) message).getContent().readableBytes();
+                t.response((HttpResponse) message);
+            } else if (message instanceof HttpChunk) {
+                bytes = ((HttpChunk) message).getContent().readableBytes();
+                t.chunk((HttpChunk) message);
+            }
+            if (t instanceof Transfer) {
+                // streams are throttled by their reader, and suspend the connection when falling behind
+                pause(ctx.getChannel(), throttle.reserve(bytes));
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            Exchange t = exchange;
+            if (t != null) {
+                t.fail(e.getCause());
+            }
+            ctx.getChannel().close();
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            remove(key, ctx.getChannel());
+            Exchange t = exchange;
+            if (t != null) {
+                t.closed();
+            }
+        }
+    }
+
+    /**
+     * The receiver of a response
+     */
+    private interface Exchange {
+
+        void response(HttpResponse response);
+
+        void chunk(HttpChunk chunk);
+
+        void fail(Throwable t);
+
+        void closed();
+    }
+
+    /**
+     * A response body as an input stream, with flow control
+     */
+    private class BodyStream extends InputStream implements Exchange {
+
+        private final static int HIGH_WATER_MARK = 1024 * 1024;
+        private final static int LOW_WATER_MARK = 256 * 1024;
+
+        final URL url;
+        final Channel channel;
+        final ResponseHandler handler;
+        final CountDownLatch headers = new CountDownLatch(1);
+        final LinkedList<ChannelBuffer> buffers = new LinkedList<ChannelBuffer>();
+        volatile int status;
+        volatile String location;
+        volatile IOException failure;
+        boolean keepAlive;
+        long length = -1L;
+        long received;
+        int queued;
+        boolean suspended;
+        boolean end;
+
+        BodyStream(URL url, Channel channel, ResponseHandler handler) {
+            this.url = url;
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        void awaitResponse() throws InterruptedException {
+            headers.await();
+        }
+
+        @Override
+        public void response(HttpResponse response) {
+            status = response.getStatus().getCode();
+            location = response.getHeader(HttpHeaders.Names.LOCATION);
+            synchronized (this) {
+                keepAlive = HttpHeaders.isKeepAlive(response);
+                length = HttpHeaders.getContentLength(response, -1L);
+            }
+            headers.countDown();
+            if (status == 200 && !response.isChunked()) {
+                offer(response.getContent());
+                end();
+            }
+        }
+
+        @Override
+        public void chunk(HttpChunk chunk) {
+            if (status != 200) {
+                // the connection is closed after other responses
+                return;
+            }
+            offer(chunk.getContent());
+            if (chunk.isLast()) {
+                end();
+            }
+        }
+
+        @Override
+        public synchronized void fail(Throwable t) {
+            if (end) {
+                return;
+            }
+            failure = t instanceof IOException ? (IOException) t : new IOException(t);
+            end = true;
+            notifyAll();
+            headers.countDown();
+        }
+
+        @Override
+        public void closed() {
+            boolean complete;
+            synchronized (this) {
+                complete = status == 200 && length < 0;
+                keepAlive = false;
+            }
+            if (complete) {
+                // no content length, the end of the connection is the end of the body
+                end();
+            } else {
+                fail(new IOException("connection closed"));
+            }
+        }
+
+        private synchronized void offer(ChannelBuffer buffer) {
+            if (end || !buffer.readable()) {
+                return;
+            }
+            received += buffer.readableBytes();
+            queued += buffer.readableBytes();
+            buffers.add(buffer);
+            if (queued > HIGH_WATER_MARK && !suspended) {
+                suspended = true;
+                channel.setReadable(false);
+            }
+            notifyAll();
+        }
+
+        private synchronized void end() {
+            if (end) {
+                return;
+            }
+            if (length >= 0 && received < length) {
+                failure = new IOException("premature end of response for " + url + " at " + received + " of " + length + " bytes");
+            }
+            end = true;
+            notifyAll();
+            handler.exchange = null;
+            if (keepAlive && failure == null) {
+                if (suspended) {
+                    suspended = false;
+                    channel.setReadable(true);
+                }
+                release(url, channel);
+            } else {
+                channel.close();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = poll(b, off, len);
+            if (n > 0) {
+                // wait outside of the lock, the I/O thread must be able to offer
+                throttle.acquire(n);
+            }
+            return n;
+        }
+
+        private synchronized int poll(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (buffers.isEmpty()) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (end) {
+                    return -1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while reading " + url);
+                }
+            }
+            ChannelBuffer buffer = buffers.getFirst();
+            int n = Math.min(len, buffer.readableBytes());
+            buffer.readBytes(b, off, n);
+            if (!buffer.readable()) {
+                buffers.removeFirst();
+            }
+            queued -= n;
+            if (suspended && queued < LOW_WATER_MARK) {
+                suspended = false;
+                channel.setReadable(true);
+            }
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int available() {
+            return queued;
+        }
+
+        @Override
+        public synchronized void close() {
+            buffers.clear();
+            queued = 0;
+            if (!end) {
+                // abandoned before the end, the connection can't be reused
+                end = true;
+                handler.exchange = null;
+                channel.close();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * A single request and response of a download
+     */
+    private static class Transfer implements Exchange {
+
+        final URL url;
+        final File part;
+        final File info;
+        final String origin;
+        final DownloadListener listener;
+        final Throttle throttle;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final MessageDigest sha1 = Checksums.digest("SHA-1");
+        final MessageDigest md5 = Checksums.digest("MD5");
+        long offset;
+        long length = -1L;
+        long bytes;
+        int status;
+        String location;
+        volatile String validator;
+        boolean keepAlive;
+        RandomAccessFile file;
+        FileChannel out;
+        volatile boolean done;
+        volatile IOException failure;
+
+        Transfer(URL url, File part, File info, String origin, String validator, DownloadListener listener,
+                Throttle throttle) throws IOException {
+            this.url = url;
+            this.part = part;
+            this.info = info;
+            this.origin = origin;
+            this.validator = validator;
+            this.listener = listener;
+            this.throttle = throttle;
+            if (part.exists()) {
+                // resume, the checksums must cover the bytes already present
+                InputStream in = new FileInputStream(part);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        sha1.update(buffer, 0, n);
+                        md5.update(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+                this.offset = part.length();
+                this.bytes = offset;
+            }
+        }
+
+        String sha1() {
+            return Checksums.hex(((MessageDigest) clone(sha1)).digest());
+        }
+
+        String md5() {
+            return Checksums.hex(((MessageDigest) clone(md5)).digest());
+        }
+
+        @Override
+        public void response(HttpResponse response) {
+            status = response.getStatus().getCode();
+            keepAlive = HttpHeaders.isKeepAlive(response);
+            location = response.getHeader(HttpHeaders.Names.LOCATION);
+            try {
+                if (status == 200 || status == 206) {
+                    long contentLength = HttpHeaders.getContentLength(response, -1L);
+                    if (status == 206) {
+                        String range = response.getHeader(HttpHeaders.Names.CONTENT_RANGE);
+                        if (range == null || !range.startsWith("bytes " + offset + "-")) {
+                            throw new IOException("unexpected content range " + range + " for " + url);
+                        }
+                    } else {
+                        if (offset > 0) {
+                            // the server does not support ranges, or the file has changed, start over
+                            offset = 0L;
+                            bytes = 0L;
+                            sha1.reset();
+                            md5.reset();
+                        }
+                        validator(response);
+                    }
+                    length = contentLength >= 0 ? offset + contentLength : -1L;
+                    file = new RandomAccessFile(part, "rw");
+                    file.setLength(offset);
+                    out = file.getChannel();
+                    out.position(offset);
+                    if (listener != null) {
+                        listener.onStart(url, offset, length);
+                    }
+                }
+                if (!response.isChunked()) {
+                    write(response.getContent());
+                    finish();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void chunk(HttpChunk chunk) {
+            try {
+                write(chunk.getContent());
+                if (chunk.isLast()) {
+                    finish();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void write(ChannelBuffer buffer) throws IOException {
+            if (out == null || !buffer.readable()) {
+                // not a body we are interested in
+                return;
+            }
+            ByteBuffer bb = buffer.toByteBuffer();
+            sha1.update(bb.duplicate());
+            md5.update(bb.duplicate());
+            while (bb.hasRemaining()) {
+                bytes += out.write(bb);
+            }
+            if (listener != null) {
+                listener.onProgress(bytes, length);
+            }
+        }
+
+        /**
+         * Remember the validator of a new body, for resuming it later
+         *
+         * @param response the response
+         * @throws IOException if the validator can not be written
+         */
+        void validator(HttpResponse response) throws IOException {
+            String etag = response.getHeader(HttpHeaders.Names.ETAG);
+            // If-Range requires a strong validator
+            validator = etag != null && !etag.startsWith("W/") ? etag : response.getHeader(HttpHeaders.Names.LAST_MODIFIED);
+            if (validator == null) {
+                info.delete();
+                return;
+            }
+            Writer writer = new OutputStreamWriter(new FileOutputStream(info), "UTF-8");
+            try {
+                writer.write(origin + "\n" + validator);
+            } finally {
+                writer.close();
+            }
+        }
+
+        /**
+         * Copy from a non-HTTP URL, without resume
+         */
+        void copy() throws IOException {
+            offset = 0L;
+            bytes = 0L;
+            validator = null;
+            info.delete();
+            sha1.reset();
+            md5.reset();
+            InputStream in = url.openStream();
+            try {
+                file = new RandomAccessFile(part, "rw");
+                file.setLength(0L);
+                out = file.getChannel();
+                if (listener != null) {
+                    listener.onStart(url, 0L, -1L);
+                }
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    sha1.update(buffer, 0, n);
+                    md5.update(buffer, 0, n);
+                    bytes += out.write(ByteBuffer.wrap(buffer, 0, n));
+                    if (listener != null) {
+                        listener.onProgress(bytes, -1L);
+                    }
+                    throttle.acquire(n);
+                }
+            } finally {
+                in.close();
+                closeFile();
+            }
+            status = 200;
+        }
+
+        void finish() throws IOException {
+            if (done) {
+                return;
+            }
+            if (length >= 0 && out != null && bytes < length) {
+                throw new IOException("premature end of response for " + url + " at " + bytes + " of " + length + " bytes");
+            }
+            closeFile();
+            done = true;
+            latch.countDown();
+        }
+
+        @Override
+        public void closed() {
+            if (out != null && length < 0) {
+                // no content length, the end of the connection is the end of the body
+                try {
+                    keepAlive = false;
+                    finish();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            } else {
+                fail(new IOException("connection closed"));
+            }
+        }
+
+        @Override
+        public void fail(Throwable t) {
+            if (done) {
+                return;
+            }
+            failure = t instanceof IOException ? (IOException) t : new IOException(t);
+            closeFile();
+            done = true;
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            latch.await();
+        }
+
+        private void closeFile() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                file = null;
+                out = null;
+            }
+        }
+
+        private static Object clone(MessageDigest digest) {
+            try {
+                return digest.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
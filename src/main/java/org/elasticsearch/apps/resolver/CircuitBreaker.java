@@ -0,0 +1,149 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.resolver;
+
+import java.util.List;
+import java.util.Map;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Circuit breakers for remote repositories.
+ *
+ * A breaker opens after a number of consecutive connection failures of a
+ * repository. While open, the repository is not asked at all. After a
+ * cool-down period, a single request is let through: if it succeeds, the
+ * breaker closes, otherwise it stays open for another cool-down period.
+ *
+ * @author joerg
+ */
+public class CircuitBreaker {
+
+    private final static ESLogger logger = Loggers.getLogger(CircuitBreaker.class);
+
+    private final int threshold;
+    private final long coolDown;
+    private final Map<String, State> states = Maps.newHashMap();
+
+    /**
+     * Create circuit breakers
+     *
+     * @param threshold the number of consecutive failures that opens a
+     * breaker
+     * @param coolDown the time a breaker stays open before a request is let
+     * through again
+     */
+    public CircuitBreaker(int threshold, TimeValue coolDown) {
+        this.threshold = threshold;
+        this.coolDown = coolDown.millis();
+    }
+
+    /**
+     * Check if a request to a repository is allowed
+     *
+     * @param repositoryId the repository ID
+     * @return true if the breaker is closed, or if the cool-down is over and
+     * this is the trial request
+     */
+    public synchronized boolean allow(String repositoryId) {
+        State state = states.get(repositoryId);
+        if (state == null || state.openedAt == 0L) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - state.openedAt >= coolDown) {
+            // half open, let one request through and wait for the outcome
+            state.openedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check if the breaker of a repository is open
+     *
+     * @param repositoryId the repository ID
+     * @return true if open and still in the cool-down period
+     */
+    public synchronized boolean isOpen(String repositoryId) {
+        State state = states.get(repositoryId);
+        return state != null && state.openedAt != 0L
+                && System.currentTimeMillis() - state.openedAt < coolDown;
+    }
+
+    /**
+     * Record a successful request, closing the breaker
+     *
+     * @param repositoryId the repository ID
+     */
+    public synchronized void success(String repositoryId) {
+        State state = states.get(repositoryId);
+        if (state != null) {
+            if (state.openedAt != 0L) {
+                logger.info("repository {} is reachable again", repositoryId);
+            }
+            states.remove(repositoryId);
+        }
+    }
+
+    /**
+     * Record a failed request
+     *
+     * @param repositoryId the repository ID
+     */
+    public synchronized void failure(String repositoryId) {
+        State state = states.get(repositoryId);
+        if (state == null) {
+            state = new State();
+            states.put(repositoryId, state);
+        }
+        state.failures++;
+        if (state.failures >= threshold && state.openedAt == 0L) {
+            logger.warn("repository {} failed {} times in a row, not asking it for {}",
+                    repositoryId, state.failures, TimeValue.timeValueMillis(coolDown));
+        }
+        if (state.failures >= threshold) {
+            state.openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * The repositories with a closed breaker
+     *
+     * @param repositories the repositories
+     * @return the repositories that may be asked, in the given order
+     */
+    public synchronized List<RemoteRepository> available(List<RemoteRepository> repositories) {
+        List<RemoteRepository> list = Lists.newArrayList();
+        for (RemoteRepository repository : repositories) {
+            if (!isOpen(repository.getId())) {
+                list.add(repository);
+            }
+        }
+        return list;
+    }
+
+    private static class State {
+        int failures;
+        long openedAt;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.resolver;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Writes an effective Maven settings file, derived from the apps settings
+ * file, for handing it over to the Maven resolver. The Maven resolver asks
+ * the repositories in the order of the settings file, so the effective
+ * settings carry the repositories of the active profiles in a given order.
+ *
+ * @author joerg
+ */
+public class EffectiveSettings {
+
+    private EffectiveSettings() {
+    }
+
+    /**
+     * Write effective settings
+     *
+     * @param source the apps settings file
+     * @param target the effective settings file
+     * @param repositoryIds the IDs of the repositories in the order they
+     * should be asked. Repositories not in the list are removed.
+     * @throws Exception if the settings can not be written
+     */
+    public static void write(File source, File target, List<String> repositoryIds) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(source);
+        Element root = doc.getDocumentElement();
+        List<String> activeProfiles = Lists.newArrayList();
+        for (Element active : elements(root, "activeProfiles")) {
+            for (Element activeProfile : elements(active, "activeProfile")) {
+                activeProfiles.add(activeProfile.getTextContent().trim());
+            }
+        }
+        Map<String, Element> repositories = Maps.newHashMap();
+        Element first = null;
+        for (Element profiles : elements(root, "profiles")) {
+            for (Element profile : elements(profiles, "profile")) {
+                boolean active = false;
+                for (Element activation : elements(profile, "activation")) {
+                    for (Element activeByDefault : elements(activation, "activeByDefault")) {
+                        active |= "true".equals(activeByDefault.getTextContent().trim());
+                    }
+                }
+                for (Element id : elements(profile, "id")) {
+                    active |= activeProfiles.contains(id.getTextContent().trim());
+                }
+                if (!active) {
+                    continue;
+                }
+                for (Element repos : elements(profile, "repositories")) {
+                    if (first == null) {
+                        first = repos;
+                    }
+                    for (Element repo : elements(repos, "repository")) {
+                        for (Element id : elements(repo, "id")) {
+                            repositories.put(id.getTextContent().trim(), repo);
+                        }
+                        repos.removeChild(repo);
+                    }
+                }
+            }
+        }
+        if (first != null) {
+            for (String id : repositoryIds) {
+                Element repo = repositories.get(id);
+                if (repo != null) {
+                    first.appendChild(repo);
+                }
+            }
+        }
+        target.getParentFile().mkdirs();
+        File tmp = new File(target.getPath() + ".tmp");
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.transform(new DOMSource(doc), new StreamResult(tmp));
+        target.delete();
+        tmp.renameTo(target);
+    }
+
+    private static List<Element> elements(Element parent, String name) {
+        List<Element> list = Lists.newArrayList();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                String localName = node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+                if (name.equals(localName)) {
+                    list.add((Element) node);
+                }
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.resolver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.apps.support.Checksums;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * A downloader that hedges requests across repositories.
+ *
+ * A download starts with the first candidate repository. If the repository
+ * has not produced the first bytes of the response within the latency
+ * budget, the same file is requested from the next candidate repository,
+ * and so on. The first complete response with a valid checksum wins, the
+ * other requests are cancelled. A failed request starts the next candidate
+ * immediately.
+ *
+ * The latency budget adapts to the observed time-to-first-byte of each
+ * repository: once enough samples are collected, the budget is the 99th
+ * percentile, bounded by a minimum and a maximum budget. With repository
+ * stats, the samples are shared with the metadata lookups and persisted,
+ * so the budget adapts across runs.
+ *
+ * @author joerg
+ */
+public class HedgedDownloader {
+
+    private final static ESLogger logger = Loggers.getLogger(HedgedDownloader.class);
+
+    private final static int MIN_SAMPLES = 20;
+
+    private final ExecutorService executor;
+    private final long budget;
+    private final long minBudget;
+    private final long maxBudget;
+    private final int timeout;
+    private final CircuitBreaker breaker;
+    private final RepositoryStats repositoryStats;
+    private final Map<String, LatencyStats> stats = Maps.newHashMap();
+
+    /**
+     * Create a hedged downloader
+     *
+     * @param executor the executor for running the requests
+     * @param budget the initial latency budget
+     * @param minBudget the minimum latency budget
+     * @param maxBudget the maximum latency budget
+     * @param timeout the connect and read timeout of a request
+     * @param breaker the circuit breakers of the repositories, or null
+     * @param repositoryStats the repository stats keeping the latency
+     * samples, or null
+     */
+    public HedgedDownloader(ExecutorService executor, TimeValue budget, TimeValue minBudget, TimeValue maxBudget,
+            TimeValue timeout, CircuitBreaker breaker, RepositoryStats repositoryStats) {
+        this.executor = executor;
+        this.budget = budget.millis();
+        this.minBudget = minBudget.millis();
+        this.maxBudget = maxBudget.millis();
+        this.timeout = (int) timeout.millis();
+        this.breaker = breaker;
+        this.repositoryStats = repositoryStats;
+    }
+
+    /**
+     * The time-to-first-byte stats per repository
+     *
+     * @return the stats
+     */
+    public synchronized Map<String, LatencyStats> stats() {
+        return repositoryStats != null ? repositoryStats.latencies() : ImmutableMap.copyOf(stats);
+    }
+
+    /**
+     * The current latency budget of a repository
+     *
+     * @param repositoryId the repository ID
+     * @return the budget in milliseconds
+     */
+    public long budget(String repositoryId) {
+        LatencyStats latency = latencyStats(repositoryId);
+        if (latency.count() < MIN_SAMPLES) {
+            return budget;
+        }
+        return Math.max(minBudget, Math.min(maxBudget, latency.percentile(99)));
+    }
+
+    /**
+     * Download a file
+     *
+     * @param repositories the candidate repositories, in order of preference
+     * @param path the path of the file in the repositories
+     * @param target the target file
+     * @param sha1 the expected SHA-1 checksum, or null if the checksum
+     * should be taken from the repository
+     * @return the ID of the repository the file was downloaded from
+     * @throws IOException if no repository delivered a valid file
+     */
+    public String download(List<RemoteRepository> repositories, String path, File target, String sha1) throws IOException {
+        if (breaker != null) {
+            repositories = breaker.available(repositories);
+        }
+        if (repositories.isEmpty()) {
+            throw new IOException("no repository for " + path);
+        }
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        BlockingQueue<Attempt> events = new LinkedBlockingQueue<Attempt>();
+        List<Attempt> attempts = Lists.newArrayList();
+        int next = 0;
+        int running = 0;
+        IOException failure = null;
+        try {
+            while (true) {
+                Attempt last = attempts.isEmpty() ? null : attempts.get(attempts.size() - 1);
+                if (last == null || (last.done && last.failure != null && next < repositories.size())) {
+                    // no request yet, or the last one failed: start the next candidate immediately
+                    last = start(repositories.get(next), path, target, sha1, attempts.size(), events);
+                    attempts.add(last);
+                    next++;
+                    running++;
+                }
+                boolean streaming = false;
+                for (Attempt attempt : attempts) {
+                    streaming |= attempt.firstByte && !attempt.done;
+                }
+                Attempt event;
+                if (next < repositories.size() && !streaming && !last.done) {
+                    long wait = budget(last.repository.getId()) - (System.currentTimeMillis() - last.started);
+                    event = wait > 0 ? events.poll(wait, TimeUnit.MILLISECONDS) : null;
+                    if (event == null) {
+                        // latency budget exceeded, hedge with the next candidate
+                        logger.debug("no response for {} from {} within budget, hedging with {}",
+                                path, last.repository.getId(), repositories.get(next).getId());
+                        attempts.add(start(repositories.get(next), path, target, sha1, attempts.size(), events));
+                        next++;
+                        running++;
+                        continue;
+                    }
+                } else if (running > 0) {
+                    event = events.take();
+                } else {
+                    break;
+                }
+                if (!event.done) {
+                    // first byte
+                    continue;
+                }
+                running--;
+                if (event.failure == null) {
+                    if (!event.file.renameTo(target)) {
+                        target.delete();
+                        if (!event.file.renameTo(target)) {
+                            throw new IOException("can't rename " + event.file + " to " + target);
+                        }
+                    }
+                    return event.repository.getId();
+                }
+                logger.debug("download of {} from {} failed: {}", path, event.repository.getId(), event.failure.getMessage());
+                failure = event.failure;
+                if (running == 0 && next >= repositories.size()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while downloading " + path);
+        } finally {
+            for (Attempt attempt : attempts) {
+                attempt.cancelled = true;
+            }
+        }
+        throw failure != null ? failure : new IOException("failed to download " + path);
+    }
+
+    private Attempt start(RemoteRepository repository, String path, File target, String sha1, int n, BlockingQueue<Attempt> events) {
+        Attempt attempt = new Attempt(repository, repository.getUrl() + "/" + path,
+                new File(target.getPath() + ".part" + n), sha1, events);
+        executor.execute(attempt);
+        return attempt;
+    }
+
+    private synchronized LatencyStats latencyStats(String repositoryId) {
+        if (repositoryStats != null) {
+            return repositoryStats.latency(repositoryId);
+        }
+        LatencyStats latency = stats.get(repositoryId);
+        if (latency == null) {
+            latency = new LatencyStats(100);
+            stats.put(repositoryId, latency);
+        }
+        return latency;
+    }
+
+    /**
+     * Shut down the executor, cancelling the requests in flight
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private class Attempt implements Runnable {
+
+        final RemoteRepository repository;
+        final String url;
+        final File file;
+        final String sha1;
+        final BlockingQueue<Attempt> events;
+        final long started = System.currentTimeMillis();
+        volatile boolean firstByte;
+        volatile boolean done;
+        volatile boolean cancelled;
+        volatile IOException failure;
+
+        Attempt(RemoteRepository repository, String url, File file, String sha1, BlockingQueue<Attempt> events) {
+            this.repository = repository;
+            this.url = url;
+            this.file = file;
+            this.sha1 = sha1;
+            this.events = events;
+        }
+
+        @Override
+        public void run() {
+            try {
+                download();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException(e.getMessage());
+            }
+            if (failure != null || cancelled) {
+                file.delete();
+            }
+            done = true;
+            events.add(this);
+        }
+
+        private void download() throws IOException {
+            HttpURLConnection conn = open(url);
+            int status;
+            try {
+                status = conn.getResponseCode();
+            } catch (IOException e) {
+                if (breaker != null) {
+                    breaker.failure(repository.getId());
+                }
+                throw e;
+            }
+            if (breaker != null) {
+                if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    breaker.failure(repository.getId());
+                } else {
+                    breaker.success(repository.getId());
+                }
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("status " + status + " for " + url);
+            }
+            latencyStats(repository.getId()).record(System.currentTimeMillis() - started);
+            firstByte = true;
+            events.add(this);
+            MessageDigest digest = Checksums.digest("SHA-1");
+            InputStream in = conn.getInputStream();
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (cancelled) {
+                        throw new IOException("cancelled");
+                    }
+                    digest.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+            String actual = Checksums.hex(digest.digest());
+            String expected = sha1 != null ? sha1 : remoteChecksum();
+            if (expected != null && !expected.equalsIgnoreCase(actual)) {
+                throw new IOException("checksum mismatch for " + url + ", expected " + expected + " but was " + actual);
+            }
+        }
+
+        private String remoteChecksum() throws IOException {
+            HttpURLConnection conn = open(url + ".sha1");
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                // no checksum published, accept the file
+                return null;
+            }
+            InputStream in = conn.getInputStream();
+            try {
+                String s = Streams.copyToString(new InputStreamReader(in, "UTF-8")).trim();
+                int pos = s.indexOf(' ');
+                return pos > 0 ? s.substring(0, pos) : s;
+            } finally {
+                in.close();
+            }
+        }
+
+        private HttpURLConnection open(String url) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(timeout);
+            conn.setReadTimeout(timeout);
+            conn.setUseCaches(false);
+            return conn;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.resolver;
+
+import java.util.Arrays;
+
+/**
+ * Latency statistics over a sliding window of the most recent samples
+ *
+ * @author joerg
+ */
+public class LatencyStats {
+
+    private final long[] samples;
+    private int count;
+    private int pos;
+
+    public LatencyStats(int window) {
+        this.samples = new long[window];
+    }
+
+    /**
+     * Record a sample
+     *
+     * @param millis the latency in milliseconds
+     */
+    public synchronized void record(long millis) {
+        samples[pos] = millis;
+        pos = (pos + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * The number of samples in the window
+     *
+     * @return the number of samples
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * The samples in the window, oldest first
+     *
+     * @return the latencies in milliseconds
+     */
+    public synchronized long[] samples() {
+        long[] list = new long[count];
+        int start = count < samples.length ? 0 : pos;
+        for (int i = 0; i < count; i++) {
+            list[i] = samples[(start + i) % samples.length];
+        }
+        return list;
+    }
+
+    /**
+     * A percentile of the samples in the window
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in milliseconds, or -1 if there are no samples
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    @Override
+    public String toString() {
+        return "p50=" + percentile(50) + "ms p99=" + percentile(99) + "ms n=" + count();
+    }
+}
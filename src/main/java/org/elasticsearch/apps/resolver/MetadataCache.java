@@ -0,0 +1,391 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.resolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.elasticsearch.apps.support.Checksums;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * A persistent cache of the remote Maven metadata state, keyed by repository
+ * and groupId:artifactId.
+ *
+ * The Maven resolver queries the remote repositories for version metadata on
+ * each resolution. This cache remembers when the metadata of an artifact was
+ * last checked, together with its validators (ETag, Last-Modified, and the
+ * SHA-1 of the content). Within the time to live, the metadata is considered
+ * unchanged. After that, the metadata is revalidated by a conditional GET
+ * request. If no metadata has changed, the resolution can run offline against
+ * the local repository.
+ *
+ * The transitive dependencies of a resolution may change as well, e.g. a
+ * SNAPSHOT or a version range in a dependency pom. So the cache records the
+ * artifacts of the last resolution of each requested artifact, and
+ * revalidates the metadata of all of them.
+ *
+ * Revalidation requests run without holding the monitor of the cache, and
+ * the cache is saved through a temporary file of its own, so another cache
+ * on the same file, e.g. of a transport client in the same JVM, does not
+ * write through the same temporary file.
+ *
+ * @author joerg
+ */
+public class MetadataCache {
+
+    private final static ESLogger logger = Loggers.getLogger(MetadataCache.class);
+
+    private final File file;
+    private final long ttl;
+    private final int timeout;
+    private final RepositoryStats stats;
+    private final CircuitBreaker breaker;
+    private final Map<String, Entry> entries = Maps.newHashMap();
+    private final Map<String, Set<String>> closures = Maps.newHashMap();
+    private boolean loaded;
+
+    /**
+     * Create a metadata cache
+     *
+     * @param file the file where the cache is persisted
+     * @param ttl the time to live of cache entries
+     * @param timeout the connect and read timeout for revalidation requests
+     * @param stats the repository stats for recording hits and misses, or
+     * null
+     * @param breaker the circuit breakers of the repositories, or null
+     */
+    public MetadataCache(File file, TimeValue ttl, TimeValue timeout, RepositoryStats stats, CircuitBreaker breaker) {
+        this.file = file;
+        this.ttl = ttl.millis();
+        this.timeout = (int) timeout.millis();
+        this.stats = stats;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Revalidate the metadata of artifacts, and of the artifacts of their
+     * last resolution, in the remote repositories.
+     *
+     * @param keys the artifacts in groupId:artifactId form
+     * @param repositories the remote repositories
+     * @return true if the metadata of at least one artifact has changed or is
+     * unknown, so the Maven resolver must go online, false if the local
+     * repository is up to date
+     */
+    public boolean revalidate(Collection<String> keys, List<RemoteRepository> repositories) {
+        long now = System.currentTimeMillis();
+        boolean changed = false;
+        Set<String> found = Sets.newHashSet();
+        Set<String> expanded = Sets.newLinkedHashSet();
+        List<Probe> probes = Lists.newArrayList();
+        synchronized (this) {
+            load();
+            for (String key : keys) {
+                expanded.add(key);
+                Set<String> closure = closures.get(key);
+                if (closure == null) {
+                    // the transitive artifacts are unknown
+                    changed = true;
+                } else {
+                    expanded.addAll(closure);
+                }
+            }
+            for (String key : expanded) {
+                if (key.indexOf(':') < 0) {
+                    changed = true;
+                    continue;
+                }
+                for (RemoteRepository repository : repositories) {
+                    if (stats != null && stats.isKnownMiss(repository.getId(), key)) {
+                        // negative cache, do not ask again
+                        continue;
+                    }
+                    Entry entry = entries.get(repository.getId() + "|" + key);
+                    if (entry != null && now - entry.checked < ttl) {
+                        if (entry.found()) {
+                            found.add(key);
+                        }
+                        continue;
+                    }
+                    probes.add(new Probe(key, repository, entry));
+                }
+            }
+        }
+        for (Probe probe : probes) {
+            RemoteRepository repository = probe.repository;
+            if (breaker != null && !breaker.allow(repository.getId())) {
+                // unreachable, going online would not help
+                continue;
+            }
+            int pos = probe.key.indexOf(':');
+            try {
+                long t0 = System.currentTimeMillis();
+                probe.result = probe(repository.metadataUrl(probe.key.substring(0, pos), probe.key.substring(pos + 1)),
+                        probe.entry, now);
+                if (breaker != null) {
+                    if (probe.result.status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                        breaker.failure(repository.getId());
+                    } else {
+                        breaker.success(repository.getId());
+                    }
+                }
+                if (stats != null) {
+                    long latency = System.currentTimeMillis() - t0;
+                    if (probe.result.found()) {
+                        stats.hit(repository.getId(), probe.key, latency);
+                    } else if (probe.result.status == HttpURLConnection.HTTP_NOT_FOUND) {
+                        stats.miss(repository.getId(), probe.key, latency);
+                    }
+                }
+            } catch (IOException e) {
+                if (breaker != null) {
+                    breaker.failure(repository.getId());
+                }
+                logger.debug("failed to revalidate metadata of {} in {}: {}", probe.key, repository.getId(), e.getMessage());
+                changed = true;
+            }
+        }
+        synchronized (this) {
+            for (Probe probe : probes) {
+                if (probe.result == null) {
+                    continue;
+                }
+                Entry entry = probe.entry;
+                Entry newEntry = probe.result;
+                if (newEntry.found() && (entry == null || !entry.found() || !eq(entry.sha1, newEntry.sha1))) {
+                    logger.debug("metadata of {} in {} has changed", probe.key, probe.repository.getId());
+                    changed = true;
+                }
+                if (newEntry.found()) {
+                    found.add(probe.key);
+                }
+                entries.put(probe.repository.getId() + "|" + probe.key, newEntry);
+            }
+        }
+        for (String key : expanded) {
+            if (!found.contains(key)) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Record the artifacts of a successful resolution, so their metadata is
+     * revalidated together with the requested artifacts
+     *
+     * @param keys the requested artifacts in groupId:artifactId form
+     * @param closure the resolved artifacts in groupId:artifactId form
+     */
+    public synchronized void resolved(Collection<String> keys, Collection<String> closure) {
+        load();
+        for (String key : keys) {
+            Set<String> transitive = Sets.newTreeSet(closure);
+            transitive.remove(key);
+            closures.put(key, transitive);
+        }
+    }
+
+    /**
+     * Forget the cached state of artifacts, e.g. after a failed resolution
+     *
+     * @param keys the artifacts in groupId:artifactId form
+     */
+    public synchronized void invalidate(Collection<String> keys) {
+        load();
+        for (String key : keys) {
+            for (String entryKey : Maps.newHashMap(entries).keySet()) {
+                if (entryKey.endsWith("|" + key)) {
+                    entries.remove(entryKey);
+                }
+            }
+            closures.remove(key);
+        }
+    }
+
+    /**
+     * Persist the cache
+     */
+    public synchronized void save() {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+            builder.startObject();
+            builder.startObject("entries");
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry entry = me.getValue();
+                builder.startObject(me.getKey())
+                        .field("checked", entry.checked)
+                        .field("status", entry.status)
+                        .field("etag", entry.etag)
+                        .field("last_modified", entry.lastModified)
+                        .field("sha1", entry.sha1)
+                        .endObject();
+            }
+            builder.endObject();
+            builder.startObject("closures");
+            for (Map.Entry<String, Set<String>> me : closures.entrySet()) {
+                builder.array(me.getKey(), me.getValue().toArray(new String[me.getValue().size()]));
+            }
+            builder.endObject();
+            builder.endObject();
+            file.getParentFile().mkdirs();
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            Streams.copy(builder.string().getBytes("UTF-8"), tmp);
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("failed to rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            logger.warn("failed to save metadata cache {}", e, file);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            byte[] data = Streams.copyToByteArray(file);
+            Map<String, Object> map = XContentFactory.xContent(XContentType.JSON).createParser(data).mapAndClose();
+            Map<String, Object> e = (Map<String, Object>) map.get("entries");
+            if (e != null) {
+                for (Map.Entry<String, Object> me : e.entrySet()) {
+                    Map<String, Object> m = (Map<String, Object>) me.getValue();
+                    entries.put(me.getKey(), new Entry(((Number) m.get("checked")).longValue(),
+                            ((Number) m.get("status")).intValue(),
+                            (String) m.get("etag"), (String) m.get("last_modified"), (String) m.get("sha1")));
+                }
+            }
+            Map<String, Object> c = (Map<String, Object>) map.get("closures");
+            if (c != null) {
+                for (Map.Entry<String, Object> me : c.entrySet()) {
+                    Set<String> closure = Sets.newTreeSet();
+                    for (Object key : (List<Object>) me.getValue()) {
+                        closure.add((String) key);
+                    }
+                    closures.put(me.getKey(), closure);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("failed to load metadata cache {}, starting empty", e, file);
+            entries.clear();
+            closures.clear();
+        }
+    }
+
+    private Entry probe(String url, Entry entry, long now) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(timeout);
+        conn.setReadTimeout(timeout);
+        conn.setUseCaches(false);
+        if (entry != null && entry.found()) {
+            if (entry.etag != null) {
+                conn.setRequestProperty("If-None-Match", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", entry.lastModified);
+            }
+        }
+        try {
+            int status = conn.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return new Entry(now, status, entry.etag, entry.lastModified, entry.sha1);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                return new Entry(now, status, null, null, null);
+            }
+            MessageDigest digest = Checksums.digest("SHA-1");
+            InputStream in = conn.getInputStream();
+            try {
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            return new Entry(now, status, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"),
+                    Checksums.hex(digest.digest()));
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static boolean eq(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    private static class Probe {
+
+        final String key;
+        final RemoteRepository repository;
+        final Entry entry;
+        Entry result;
+
+        Probe(String key, RemoteRepository repository, Entry entry) {
+            this.key = key;
+            this.repository = repository;
+            this.entry = entry;
+        }
+    }
+
+    private static class Entry {
+
+        final long checked;
+        final int status;
+        final String etag;
+        final String lastModified;
+        final String sha1;
+
+        Entry(long checked, int status, String etag, String lastModified, String sha1) {
+            this.checked = checked;
+            this.status = status;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.sha1 = sha1;
+        }
+
+        boolean found() {
+            return status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.resolver;
+
+/**
+ * A remote Maven repository as declared in the apps settings file
+ *
+ * @author joerg
+ */
+public class RemoteRepository {
+
+    private final String id;
+    private final String url;
+
+    public RemoteRepository(String id, String url) {
+        this.id = id;
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * The URL of the Maven metadata of an artifact in this repository
+     *
+     * @param groupId the group ID
+     * @param artifactId the artifact ID
+     * @return the URL string
+     */
+    public String metadataUrl(String groupId, String artifactId) {
+        return url + "/" + groupId.replace('.', '/') + "/" + artifactId + "/maven-metadata.xml";
+    }
+
+    /**
+     * The URL of an artifact file in this repository
+     *
+     * @param groupId the group ID
+     * @param artifactId the artifact ID
+     * @param version the version
+     * @param classifier the classifier or null
+     * @param extension the extension, e.g. "jar" or "pom"
+     * @return the URL string
+     */
+    public String artifactUrl(String groupId, String artifactId, String version, String classifier, String extension) {
+        return url + "/" + artifactPath(groupId, artifactId, version, classifier, extension);
+    }
+
+    /**
+     * The path of an artifact file in the default Maven repository layout
+     *
+     * @param groupId the group ID
+     * @param artifactId the artifact ID
+     * @param version the version
+     * @param classifier the classifier or null
+     * @param extension the extension
+     * @return the path
+     */
+    public static String artifactPath(String groupId, String artifactId, String version, String classifier, String extension) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(groupId.replace('.', '/')).append('/').append(artifactId).append('/').append(version)
+                .append('/').append(artifactId).append('-').append(version);
+        if (classifier != null && classifier.length() > 0) {
+            sb.append('-').append(classifier);
+        }
+        sb.append('.').append(extension);
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RemoteRepository && id.equals(((RemoteRepository) o).id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return id + " [" + url + "]";
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.resolver;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * The repository part of the apps settings file (config/apps.xml), which is
+ * a Maven settings.xml. Only the elements that are required for accessing
+ * the remote repositories outside of the Maven resolver are read: the local
+ * repository, the offline flag, the repositories of the active profiles, and
+ * the mirrors.
+ *
+ * @author joerg
+ */
+public class RepositorySettings {
+
+    public final static RemoteRepository MAVEN_CENTRAL = new RemoteRepository("central", "http://repo1.maven.org/maven2");
+
+    private final File localRepository;
+    private final boolean offline;
+    private final List<RemoteRepository> repositories;
+
+    private RepositorySettings(File localRepository, boolean offline, List<RemoteRepository> repositories) {
+        this.localRepository = localRepository;
+        this.offline = offline;
+        this.repositories = Collections.unmodifiableList(repositories);
+    }
+
+    /**
+     * Read the repository settings
+     *
+     * @param settingsFile the Maven settings file
+     * @param useMavenCentral true if Maven central should be used if not
+     * declared
+     * @return the repository settings
+     * @throws Exception if the settings file can not be parsed
+     */
+    public static RepositorySettings read(File settingsFile, boolean useMavenCentral) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        Document doc = factory.newDocumentBuilder().parse(settingsFile);
+        Element root = doc.getDocumentElement();
+        String local = text(root, "localRepository");
+        File localRepository = new File(local != null ? local : System.getProperty("user.home") + "/.m2/repository");
+        boolean offline = "true".equals(text(root, "offline"));
+        List<String> activeProfiles = Lists.newArrayList();
+        Element active = child(root, "activeProfiles");
+        if (active != null) {
+            for (Element activeProfile : children(active, "activeProfile")) {
+                activeProfiles.add(activeProfile.getTextContent().trim());
+            }
+        }
+        Map<String, RemoteRepository> repositories = Maps.newLinkedHashMap();
+        Element profiles = child(root, "profiles");
+        if (profiles != null) {
+            for (Element profile : children(profiles, "profile")) {
+                Element activation = child(profile, "activation");
+                boolean activeByDefault = activation != null && "true".equals(text(activation, "activeByDefault"));
+                if (!activeByDefault && !activeProfiles.contains(text(profile, "id"))) {
+                    continue;
+                }
+                Element repos = child(profile, "repositories");
+                if (repos != null) {
+                    for (Element repo : children(repos, "repository")) {
+                        String id = text(repo, "id");
+                        String url = text(repo, "url");
+                        if (id != null && url != null) {
+                            repositories.put(id, new RemoteRepository(id, url));
+                        }
+                    }
+                }
+            }
+        }
+        if (useMavenCentral && !repositories.containsKey(MAVEN_CENTRAL.getId())) {
+            repositories.put(MAVEN_CENTRAL.getId(), MAVEN_CENTRAL);
+        }
+        // apply mirrors
+        Element mirrors = child(root, "mirrors");
+        if (mirrors != null) {
+            for (Element mirror : children(mirrors, "mirror")) {
+                String url = text(mirror, "url");
+                String mirrorOf = text(mirror, "mirrorOf");
+                if (url == null || mirrorOf == null) {
+                    continue;
+                }
+                for (String id : mirrorOf.split(",")) {
+                    id = id.trim();
+                    for (Map.Entry<String, RemoteRepository> entry : repositories.entrySet()) {
+                        if ("*".equals(id) || entry.getKey().equals(id)) {
+                            entry.setValue(new RemoteRepository(entry.getKey(), url));
+                        }
+                    }
+                }
+            }
+        }
+        return new RepositorySettings(localRepository, offline, Lists.newArrayList(repositories.values()));
+    }
+
+    public File getLocalRepository() {
+        return localRepository;
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * The remote repositories, in declaration order
+     *
+     * @return the remote repositories
+     */
+    public List<RemoteRepository> getRepositories() {
+        return repositories;
+    }
+
+    private static Element child(Element parent, String name) {
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(localName(node))) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        List<Element> list = Lists.newArrayList();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(localName(node))) {
+                list.add((Element) node);
+            }
+        }
+        return list;
+    }
+
+    private static String text(Element parent, String name) {
+        Element element = child(parent, name);
+        return element != null ? interpolate(element.getTextContent().trim()) : null;
+    }
+
+    private static String localName(Node node) {
+        return node.getLocalName() != null ? node.getLocalName() : node.getNodeName();
+    }
+
+    /**
+     * Replace ${...} expressions by system properties
+     */
+    private static String interpolate(String value) {
+        StringBuilder sb = new StringBuilder();
+        int pos = 0;
+        while (pos < value.length()) {
+            int start = value.indexOf("${", pos);
+            int end = start >= 0 ? value.indexOf('}', start) : -1;
+            if (start < 0 || end < 0) {
+                sb.append(value.substring(pos));
+                break;
+            }
+            sb.append(value.substring(pos, start));
+            String property = System.getProperty(value.substring(start + 2, end));
+            sb.append(property != null ? property : value.substring(start, end + 1));
+            pos = end + 1;
+        }
+        return sb.toString();
+    }
+}
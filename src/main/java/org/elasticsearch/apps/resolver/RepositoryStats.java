@@ -0,0 +1,417 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.resolver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Maps;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Persistent statistics of remote repository lookups.
+ *
+ * For each repository and groupId prefix, the hits, the misses and the
+ * average latency of lookups are recorded. From these numbers, an order of
+ * the repositories is computed for each resolution, so the repository that
+ * most likely has the artifacts of a group is asked first.
+ *
+ * Additionally, misses are remembered per repository and groupId:artifactId
+ * for a while, as a negative cache, so known misses are not looked up again.
+ * Misses are also remembered per repository and groupId prefix, until a hit
+ * for the prefix, so a repository that is known to miss all groups of a
+ * resolution need not be asked at all.
+ *
+ * The latencies of the most recent lookups and downloads of each repository
+ * are kept as samples, so the latency budget of hedged downloads starts
+ * from the samples of earlier runs.
+ *
+ * @author joerg
+ */
+public class RepositoryStats {
+
+    private final static ESLogger logger = Loggers.getLogger(RepositoryStats.class);
+
+    private final static int LATENCY_WINDOW = 100;
+
+    private final File file;
+    private final long negativeTtl;
+    private final Map<String, Counter> counters = Maps.newHashMap();
+    private final Map<String, Long> misses = Maps.newHashMap();
+    private final Map<String, Long> prefixMisses = Maps.newHashMap();
+    private final Map<String, LatencyStats> latencies = Maps.newHashMap();
+    private boolean loaded;
+
+    /**
+     * Create repository stats
+     *
+     * @param file the file where the stats are persisted
+     * @param negativeTtl the time to live of negative cache entries
+     */
+    public RepositoryStats(File file, TimeValue negativeTtl) {
+        this.file = file;
+        this.negativeTtl = negativeTtl.millis();
+    }
+
+    /**
+     * Record a hit
+     *
+     * @param repositoryId the repository ID
+     * @param key the artifact in groupId:artifactId form
+     * @param latency the latency in milliseconds
+     */
+    public synchronized void hit(String repositoryId, String key, long latency) {
+        load();
+        counter(repositoryId, key).add(true, latency);
+        latency(repositoryId).record(latency);
+        misses.remove(repositoryId + "|" + key);
+        prefixMisses.remove(repositoryId + "|" + prefix(key));
+    }
+
+    /**
+     * Record a miss
+     *
+     * @param repositoryId the repository ID
+     * @param key the artifact in groupId:artifactId form
+     * @param latency the latency in milliseconds
+     */
+    public synchronized void miss(String repositoryId, String key, long latency) {
+        load();
+        counter(repositoryId, key).add(false, latency);
+        latency(repositoryId).record(latency);
+        misses.put(repositoryId + "|" + key, System.currentTimeMillis());
+        prefixMisses.put(repositoryId + "|" + prefix(key), System.currentTimeMillis());
+    }
+
+    /**
+     * The latency samples of a repository. Samples recorded on them are
+     * persisted with the stats.
+     *
+     * @param repositoryId the repository ID
+     * @return the latency stats
+     */
+    public synchronized LatencyStats latency(String repositoryId) {
+        load();
+        LatencyStats latency = latencies.get(repositoryId);
+        if (latency == null) {
+            latency = new LatencyStats(LATENCY_WINDOW);
+            latencies.put(repositoryId, latency);
+        }
+        return latency;
+    }
+
+    /**
+     * The latency samples of all repositories
+     *
+     * @return the latency stats by repository ID
+     */
+    public synchronized Map<String, LatencyStats> latencies() {
+        load();
+        return ImmutableMap.copyOf(latencies);
+    }
+
+    /**
+     * Check the negative cache
+     *
+     * @param repositoryId the repository ID
+     * @param key the artifact in groupId:artifactId form
+     * @return true if the artifact was recently not found in the repository
+     */
+    public synchronized boolean isKnownMiss(String repositoryId, String key) {
+        load();
+        Long time = misses.get(repositoryId + "|" + key);
+        if (time == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - time >= negativeTtl) {
+            misses.remove(repositoryId + "|" + key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check if a repository is known to miss the groupId prefixes of all
+     * given artifacts, because of an unexpired miss of an artifact with the
+     * same prefix and no hit after it.
+     *
+     * @param repositoryId the repository ID
+     * @param keys the artifacts in groupId:artifactId form
+     * @return true if the repository is known to miss all the artifacts
+     */
+    public synchronized boolean isKnownMiss(String repositoryId, Collection<String> keys) {
+        load();
+        if (keys.isEmpty()) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            String missKey = repositoryId + "|" + prefix(key);
+            Long time = prefixMisses.get(missKey);
+            if (time == null) {
+                return false;
+            }
+            if (now - time >= negativeTtl) {
+                prefixMisses.remove(missKey);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Order repositories for looking up artifacts. Repositories with a
+     * higher hit rate for the groupId prefixes of the artifacts come first,
+     * ties are broken by lower average latency. Repositories without
+     * observations keep their declared position relative to each other.
+     *
+     * @param repositories the repositories in declaration order
+     * @param keys the artifacts in groupId:artifactId form
+     * @return the ordered repositories
+     */
+    public synchronized List<RemoteRepository> order(List<RemoteRepository> repositories, Collection<String> keys) {
+        load();
+        final Map<RemoteRepository, Counter> scores = Maps.newHashMap();
+        for (RemoteRepository repository : repositories) {
+            Counter score = new Counter();
+            for (String key : keys) {
+                Counter counter = counters.get(repository.getId() + "|" + prefix(key));
+                if (counter != null) {
+                    score.merge(counter);
+                }
+                if (isKnownMiss(repository.getId(), key)) {
+                    score.misses++;
+                }
+            }
+            scores.put(repository, score);
+        }
+        List<RemoteRepository> ordered = Lists.newArrayList(repositories);
+        // stable sort
+        Collections.sort(ordered, new Comparator<RemoteRepository>() {
+            @Override
+            public int compare(RemoteRepository r1, RemoteRepository r2) {
+                Counter c1 = scores.get(r1);
+                Counter c2 = scores.get(r2);
+                int d = Double.compare(c2.hitRate(), c1.hitRate());
+                if (d != 0) {
+                    return d;
+                }
+                return Double.compare(c1.latency, c2.latency);
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Persist the stats
+     */
+    public synchronized void save() {
+        if (!loaded) {
+            return;
+        }
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+            builder.startObject();
+            builder.startObject("counters");
+            for (Map.Entry<String, Counter> me : counters.entrySet()) {
+                Counter counter = me.getValue();
+                builder.startObject(me.getKey())
+                        .field("hits", counter.hits)
+                        .field("misses", counter.misses)
+                        .field("latency", counter.latency)
+                        .endObject();
+            }
+            builder.endObject();
+            long now = System.currentTimeMillis();
+            builder.startObject("misses");
+            for (Map.Entry<String, Long> me : misses.entrySet()) {
+                if (now - me.getValue() < negativeTtl) {
+                    builder.field(me.getKey(), me.getValue());
+                }
+            }
+            builder.endObject();
+            builder.startObject("prefix_misses");
+            for (Map.Entry<String, Long> me : prefixMisses.entrySet()) {
+                if (now - me.getValue() < negativeTtl) {
+                    builder.field(me.getKey(), me.getValue());
+                }
+            }
+            builder.endObject();
+            builder.startObject("latency");
+            for (Map.Entry<String, LatencyStats> me : latencies.entrySet()) {
+                builder.startArray(me.getKey());
+                for (long sample : me.getValue().samples()) {
+                    builder.value(sample);
+                }
+                builder.endArray();
+            }
+            builder.endObject();
+            builder.endObject();
+            file.getParentFile().mkdirs();
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            Streams.copy(builder.string().getBytes("UTF-8"), tmp);
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("failed to rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            logger.warn("failed to save repository stats {}", e, file);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            byte[] data = Streams.copyToByteArray(file);
+            Map<String, Object> map = XContentFactory.xContent(XContentType.JSON).createParser(data).mapAndClose();
+            Map<String, Object> c = (Map<String, Object>) map.get("counters");
+            if (c != null) {
+                for (Map.Entry<String, Object> me : c.entrySet()) {
+                    Map<String, Object> m = (Map<String, Object>) me.getValue();
+                    Counter counter = new Counter();
+                    counter.hits = ((Number) m.get("hits")).longValue();
+                    counter.misses = ((Number) m.get("misses")).longValue();
+                    counter.latency = ((Number) m.get("latency")).doubleValue();
+                    counters.put(me.getKey(), counter);
+                }
+            }
+            Map<String, Object> m = (Map<String, Object>) map.get("misses");
+            if (m != null) {
+                for (Map.Entry<String, Object> me : m.entrySet()) {
+                    misses.put(me.getKey(), ((Number) me.getValue()).longValue());
+                }
+            }
+            Map<String, Object> p = (Map<String, Object>) map.get("prefix_misses");
+            if (p != null) {
+                for (Map.Entry<String, Object> me : p.entrySet()) {
+                    prefixMisses.put(me.getKey(), ((Number) me.getValue()).longValue());
+                }
+            }
+            Map<String, Object> l = (Map<String, Object>) map.get("latency");
+            if (l != null) {
+                for (Map.Entry<String, Object> me : l.entrySet()) {
+                    LatencyStats latency = new LatencyStats(LATENCY_WINDOW);
+                    for (Object sample : (List<Object>) me.getValue()) {
+                        latency.record(((Number) sample).longValue());
+                    }
+                    latencies.put(me.getKey(), latency);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("failed to load repository stats {}, starting empty", e, file);
+            counters.clear();
+            misses.clear();
+            prefixMisses.clear();
+            latencies.clear();
+        }
+        // expire old negative cache entries
+        expire(misses);
+        expire(prefixMisses);
+    }
+
+    private void expire(Map<String, Long> times) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = times.values().iterator(); it.hasNext();) {
+            if (now - it.next() >= negativeTtl) {
+                it.remove();
+            }
+        }
+    }
+
+    private Counter counter(String repositoryId, String key) {
+        String counterKey = repositoryId + "|" + prefix(key);
+        Counter counter = counters.get(counterKey);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(counterKey, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * The groupId prefix of an artifact, which consists of the first two
+     * segments of the groupId, e.g. "org.elasticsearch"
+     *
+     * @param key the artifact in groupId:artifactId form
+     * @return the prefix
+     */
+    static String prefix(String key) {
+        int pos = key.indexOf(':');
+        String groupId = pos >= 0 ? key.substring(0, pos) : key;
+        pos = groupId.indexOf('.');
+        if (pos >= 0) {
+            pos = groupId.indexOf('.', pos + 1);
+        }
+        return pos >= 0 ? groupId.substring(0, pos) : groupId;
+    }
+
+    private static class Counter {
+
+        long hits;
+        long misses;
+        // exponentially weighted moving average
+        double latency;
+
+        void add(boolean hit, long millis) {
+            if (hits + misses == 0) {
+                latency = millis;
+            } else {
+                latency = 0.8 * latency + 0.2 * millis;
+            }
+            if (hit) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        void merge(Counter counter) {
+            long n = hits + misses;
+            long m = counter.hits + counter.misses;
+            latency = n + m > 0 ? (latency * n + counter.latency * m) / (n + m) : 0;
+            hits += counter.hits;
+            misses += counter.misses;
+        }
+
+        double hitRate() {
+            // Laplace smoothing, repositories without observations score 0.5
+            return (hits + 1.0) / (hits + misses + 2.0);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.rest;
+
+import java.io.IOException;
+import org.elasticsearch.apps.AppService;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.XContentRestResponse;
+import org.elasticsearch.rest.XContentThrowableRestResponse;
+import org.elasticsearch.rest.action.support.RestXContentBuilder;
+
+import static org.elasticsearch.rest.RestStatus.OK;
+
+/**
+ * The apps stats of the node that serves the request, at GET /_apps/stats.
+ *
+ * The stats are taken from the app service of the running node, so they
+ * show the status of the site apps installed in the background, the
+ * retries, the throttles and the injector costs of this node.
+ *
+ * @author joerg
+ */
+public class RestAppsStatsAction extends BaseRestHandler {
+
+    private final AppService appService;
+
+    @Inject
+    public RestAppsStatsAction(Settings settings, Client client, RestController controller, AppService appService) {
+        super(settings, client);
+        this.appService = appService;
+        controller.registerHandler(RestRequest.Method.GET, "/_apps/stats", this);
+    }
+
+    @Override
+    public void handleRequest(RestRequest request, RestChannel channel) {
+        try {
+            XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+            builder.startObject();
+            builder.field("ok", true);
+            appService.stats().toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new XContentRestResponse(request, OK, builder));
+        } catch (Exception e) {
+            try {
+                channel.sendResponse(new XContentThrowableRestResponse(request, e));
+            } catch (IOException e1) {
+                logger.error("failed to send failure response", e1);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * The app lock file. It records the artifacts of the last successful
+ * resolution of the declared dependencies together with their SHA-1
+ * checksums. As long as the declared dependencies do not change and all
+ * locked jars are present and intact in the local repository, the artifact
+ * apps can be loaded from the lock file without the Maven resolver.
+ *
+ * @author joerg
+ */
+public class AppLockFile {
+
+    private final File file;
+
+    public AppLockFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Compute a fingerprint of the dependency declarations. A lock file is
+     * only valid for the declarations it was written for.
+     *
+     * @param declarations the declarations, in any order
+     * @return the fingerprint
+     */
+    public static String fingerprint(Collection<String> declarations) {
+        List<String> list = Lists.newArrayList(declarations);
+        Collections.sort(list);
+        StringBuilder sb = new StringBuilder();
+        for (String declaration : list) {
+            sb.append(declaration).append('\n');
+        }
+        try {
+            return Checksums.hex(Checksums.digest("SHA-1").digest(sb.toString().getBytes("UTF-8")));
+        } catch (IOException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Read the locked artifacts.
+     *
+     * @param fingerprint the fingerprint of the current declarations
+     * @return the locked artifacts, or null if there is no lock file or the
+     * lock file was written for other declarations
+     * @throws IOException if the lock file can not be read
+     */
+    public List<ArtifactInfo> read(String fingerprint) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] data = Streams.copyToByteArray(file);
+        Map<String, Object> map = XContentFactory.xContent(XContentType.JSON).createParser(data).mapOrderedAndClose();
+        if (!fingerprint.equals(map.get("fingerprint"))) {
+            return null;
+        }
+        List<ArtifactInfo> artifacts = Lists.newArrayList();
+        Object list = map.get("artifacts");
+        if (list instanceof List) {
+            for (Object o : (List) list) {
+                Map<String, Object> entry = (Map<String, Object>) o;
+                artifacts.add(new ArtifactInfo(
+                        (String) entry.get("coordinate"),
+                        (String) entry.get("group_id"),
+                        (String) entry.get("artifact_id"),
+                        (String) entry.get("version"),
+                        (String) entry.get("classifier"),
+                        (String) entry.get("extension"),
+                        new File((String) entry.get("file")),
+                        (String) entry.get("sha1")));
+            }
+        }
+        return artifacts;
+    }
+
+    /**
+     * Write the lock file. The checksums of the artifact files are computed.
+     * The file is written to a temporary file first and then renamed, so
+     * readers never see a partially written lock file.
+     *
+     * @param fingerprint the fingerprint of the declarations
+     * @param artifacts the resolved artifacts
+     * @return the locked artifacts, with checksums
+     * @throws IOException
+     */
+    public List<ArtifactInfo> write(String fingerprint, List<ArtifactInfo> artifacts) throws IOException {
+        List<ArtifactInfo> locked = Lists.newArrayList();
+        XContentBuilder builder = XContentFactory.jsonBuilder().prettyPrint();
+        builder.startObject();
+        builder.field("fingerprint", fingerprint);
+        builder.startArray("artifacts");
+        for (ArtifactInfo artifact : artifacts) {
+            ArtifactInfo info = artifact.getSha1() != null ? artifact : artifact.withSha1(Checksums.sha1(artifact.getFile()));
+            locked.add(info);
+            builder.startObject()
+                    .field("coordinate", info.getCanonicalForm())
+                    .field("group_id", info.getGroupId())
+                    .field("artifact_id", info.getArtifactId())
+                    .field("version", info.getVersion())
+                    .field("classifier", info.getClassifier())
+                    .field("extension", info.getExtension())
+                    .field("file", info.getFile().getAbsolutePath())
+                    .field("sha1", info.getSha1())
+                    .endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Streams.copy(builder.string().getBytes("UTF-8"), tmp);
+        if (!tmp.renameTo(file)) {
+            // rename does not replace on every platform
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("can't rename " + tmp + " to " + file);
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Delete the lock file, so the next refresh resolves all artifacts again
+     */
+    public void delete() {
+        file.delete();
+    }
+
+    /**
+     * Find the locked artifacts whose files are missing or do not match the
+     * locked checksum.
+     *
+     * @param artifacts the locked artifacts
+     * @return the mismatching artifacts, empty if all artifacts are intact
+     */
+    public static List<ArtifactInfo> mismatches(List<ArtifactInfo> artifacts) {
+        List<ArtifactInfo> mismatches = Lists.newArrayList();
+        for (ArtifactInfo artifact : artifacts) {
+            try {
+                if (artifact.getSha1() == null || !artifact.getFile().isFile()
+                        || !artifact.getSha1().equals(Checksums.sha1(artifact.getFile()))) {
+                    mismatches.add(artifact);
+                }
+            } catch (IOException e) {
+                mismatches.add(artifact);
+            }
+        }
+        return mismatches;
+    }
+}
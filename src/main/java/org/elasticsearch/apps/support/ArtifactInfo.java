@@ -0,0 +1,143 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.io.File;
+import java.util.List;
+import org.elasticsearch.common.collect.Lists;
+import org.jboss.shrinkwrap.resolver.api.maven.MavenResolvedArtifact;
+import org.jboss.shrinkwrap.resolver.api.maven.coordinate.MavenCoordinate;
+
+/**
+ * The coordinate and the local file of a resolved artifact. Artifact infos
+ * are created either from the Maven resolver or from the app lock file.
+ *
+ * @author joerg
+ */
+public class ArtifactInfo {
+
+    private final String canonicalForm;
+    private final String groupId;
+    private final String artifactId;
+    private final String version;
+    private final String classifier;
+    private final String extension;
+    private final File file;
+    private final String sha1;
+
+    public ArtifactInfo(String canonicalForm, String groupId, String artifactId, String version,
+            String classifier, String extension, File file, String sha1) {
+        this.canonicalForm = canonicalForm;
+        this.groupId = groupId;
+        this.artifactId = artifactId;
+        this.version = version;
+        this.classifier = classifier;
+        this.extension = extension;
+        this.file = file;
+        this.sha1 = sha1;
+    }
+
+    /**
+     * Create an artifact info from a resolved Maven artifact
+     *
+     * @param artifact the resolved artifact
+     * @return the artifact info
+     */
+    public static ArtifactInfo of(MavenResolvedArtifact artifact) {
+        MavenCoordinate coordinate = artifact.getCoordinate();
+        return new ArtifactInfo(coordinate.toCanonicalForm(), coordinate.getGroupId(), coordinate.getArtifactId(),
+                coordinate.getVersion(), coordinate.getClassifier(), artifact.getExtension(), artifact.asFile(), null);
+    }
+
+    /**
+     * Create artifact infos from resolved Maven artifacts
+     *
+     * @param artifacts the resolved artifacts, may be null
+     * @return the list of artifact infos, never null
+     */
+    public static List<ArtifactInfo> of(MavenResolvedArtifact[] artifacts) {
+        List<ArtifactInfo> list = Lists.newArrayList();
+        if (artifacts != null) {
+            for (MavenResolvedArtifact artifact : artifacts) {
+                list.add(of(artifact));
+            }
+        }
+        return list;
+    }
+
+    public String getCanonicalForm() {
+        return canonicalForm;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getArtifactId() {
+        return artifactId;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getClassifier() {
+        return classifier;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The SHA-1 checksum of the artifact file, only known for locked artifacts
+     *
+     * @return the checksum in hex form or null
+     */
+    public String getSha1() {
+        return sha1;
+    }
+
+    public boolean isJar() {
+        return "jar".equals(extension);
+    }
+
+    public ArtifactInfo withSha1(String sha1) {
+        return new ArtifactInfo(canonicalForm, groupId, artifactId, version, classifier, extension, file, sha1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ArtifactInfo && canonicalForm.equals(((ArtifactInfo) o).canonicalForm);
+    }
+
+    @Override
+    public int hashCode() {
+        return canonicalForm.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return canonicalForm;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helper methods for computing and formatting checksums of files and streams
+ *
+ * @author joerg
+ */
+public final class Checksums {
+
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Checksums() {
+    }
+
+    /**
+     * Create a new message digest
+     *
+     * @param algorithm the algorithm, e.g. "SHA-1"
+     * @return the message digest
+     */
+    public static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unknown digest algorithm " + algorithm, e);
+        }
+    }
+
+    /**
+     * Compute the SHA-1 checksum of a file
+     *
+     * @param file the file
+     * @return the checksum in hex form
+     * @throws IOException
+     */
+    public static String sha1(File file) throws IOException {
+        return checksum(file, "SHA-1");
+    }
+
+    /**
+     * Compute the checksum of a file
+     *
+     * @param file the file
+     * @param algorithm the digest algorithm
+     * @return the checksum in hex form
+     * @throws IOException
+     */
+    public static String checksum(File file, String algorithm) throws IOException {
+        MessageDigest digest = digest(algorithm);
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Format bytes in hex form
+     *
+     * @param bytes the bytes
+     * @return the hex string
+     */
+    public static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[2 * i + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
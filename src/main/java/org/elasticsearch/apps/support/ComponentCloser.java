@@ -0,0 +1,141 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.inject.Injector;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.CloseableIndexComponent;
+
+import static org.elasticsearch.common.collect.Maps.newLinkedHashMap;
+
+/**
+ * Closes the index and shard services of apps concurrently.
+ *
+ * All indices and shards of a node share one bounded pool, so closing an
+ * index with many shards closes the services of its shards at the same
+ * time, without starting a thread per service. The caller waits until all
+ * services are closed, or the timeout has passed. Services still closing
+ * then are logged and left to finish in the background, unless the index
+ * or shard is deleted: its files must not be deleted while a service may
+ * still use them, so the caller waits for them. Failures to close a
+ * service are logged, and do not stop the other services from closing.
+ *
+ * @author joerg
+ */
+public class ComponentCloser {
+
+    private final static ESLogger logger = Loggers.getLogger(ComponentCloser.class);
+
+    private final ExecutorService executor;
+
+    private final TimeValue timeout;
+
+    /**
+     * Create a closer
+     *
+     * @param concurrency the number of threads
+     * @param timeout the maximum time to wait for the services of one index
+     * or shard
+     */
+    public ComponentCloser(int concurrency, TimeValue timeout) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency),
+                EsExecutors.daemonThreadFactory("apps_close"));
+        this.timeout = timeout;
+    }
+
+    /**
+     * Close services
+     *
+     * @param scope the index or shard, for logging
+     * @param services the service classes
+     * @param injector the injector holding the service instances
+     * @param delete true if the index or shard is deleted
+     * @return the time each service took, by class name
+     */
+    public Map<String, TimeValue> close(Object scope, Collection<Class<? extends CloseableIndexComponent>> services,
+            Injector injector, final boolean delete) {
+        Map<String, TimeValue> timings = newLinkedHashMap();
+        if (services.isEmpty()) {
+            return timings;
+        }
+        long deadline = System.nanoTime() + timeout.nanos();
+        List<Future<Long>> futures = Lists.newArrayList();
+        // the injector is only used from the calling thread
+        for (Class<? extends CloseableIndexComponent> service : services) {
+            final CloseableIndexComponent component = injector.getInstance(service);
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() {
+                    long t0 = System.nanoTime();
+                    component.close(delete);
+                    return System.nanoTime() - t0;
+                }
+            }));
+        }
+        int i = 0;
+        for (Class<? extends CloseableIndexComponent> service : services) {
+            Future<Long> future = futures.get(i++);
+            try {
+                long nanos;
+                try {
+                    nanos = future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (!delete) {
+                        logger.warn("{} closing app service [{}] takes longer than {}, going on", scope,
+                                service.getName(), timeout);
+                        continue;
+                    }
+                    logger.warn("{} closing app service [{}] takes longer than {}, waiting for it before deleting",
+                            scope, service.getName(), timeout);
+                    nanos = future.get();
+                }
+                timings.put(service.getName(), TimeValue.timeValueNanos(nanos));
+            } catch (ExecutionException e) {
+                logger.warn("{} failed to close app service [{}]", e.getCause(), scope, service.getName());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("{} interrupted while closing app services", scope);
+                break;
+            }
+        }
+        logger.debug("{} closed app services: {}", scope, timings);
+        return timings;
+    }
+
+    /**
+     * Shut down the pool. Services still closing are interrupted.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.MessageDigest;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+
+/**
+ * A content-addressable store for files, keyed by the SHA-256 checksum of
+ * their content.
+ *
+ * The store keeps downloaded zips, so a zip with a known checksum is never
+ * downloaded twice, and jars of unpacked apps, so identical jars in
+ * different apps share one copy on disk. Files are materialized as hard
+ * links where the platform supports it (Java 7 or later), and as copies
+ * otherwise. Hard links share the content, so files in the store must never
+ * be modified. New content is written to a temporary file in the store and
+ * renamed to its key, so concurrent installs never see a partial file.
+ *
+ * @author joerg
+ */
+public class ContentStore {
+
+    private final static ESLogger logger = Loggers.getLogger(ContentStore.class);
+
+    private final static String ALGORITHM = "SHA-256";
+
+    private final static Method toPath;
+
+    private final static Method createLink;
+
+    static {
+        Method m1 = null;
+        Method m2 = null;
+        try {
+            // java.nio.file is not available before Java 7
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> filesClass = Class.forName("java.nio.file.Files");
+            m1 = File.class.getMethod("toPath");
+            m2 = filesClass.getMethod("createLink", pathClass, pathClass);
+        } catch (Exception e) {
+            m1 = null;
+            m2 = null;
+        }
+        toPath = m1;
+        createLink = m2;
+    }
+
+    private final File dir;
+
+    /**
+     * Create a content store
+     *
+     * @param dir the folder of the store
+     */
+    public ContentStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * The checksum of a file, as used for the keys of this store
+     *
+     * @param file the file
+     * @return the hex encoded SHA-256 checksum
+     * @throws IOException if the file can not be read
+     */
+    public static String checksum(File file) throws IOException {
+        return Checksums.checksum(file, ALGORITHM);
+    }
+
+    /**
+     * A new digest for computing keys of this store while streaming
+     *
+     * @return the digest
+     */
+    public static MessageDigest digest() {
+        return Checksums.digest(ALGORITHM);
+    }
+
+    /**
+     * The file of a key, whether present or not
+     *
+     * @param sha256 the key
+     * @return the file
+     */
+    public File file(String sha256) {
+        String key = sha256.toLowerCase();
+        return new File(new File(dir, key.substring(0, 2)), key);
+    }
+
+    /**
+     * Check if the content of a key is present
+     *
+     * @param sha256 the key
+     * @return true if present
+     */
+    public boolean contains(String sha256) {
+        return sha256 != null && sha256.length() > 2 && file(sha256).exists();
+    }
+
+    /**
+     * A new temporary file in the store, for downloading content that is
+     * moved into the store later
+     *
+     * @return the temporary file
+     * @throws IOException if the file can not be created
+     */
+    public File tempFile() throws IOException {
+        File tmp = new File(dir, "tmp");
+        tmp.mkdirs();
+        return File.createTempFile("content", ".tmp", tmp);
+    }
+
+    /**
+     * Move a file into the store. If the content is already present, the
+     * file is deleted.
+     *
+     * @param file the file
+     * @param sha256 the checksum of the file, or null if it should be
+     * computed
+     * @return the file in the store
+     * @throws IOException if the file can not be moved
+     */
+    public File put(File file, String sha256) throws IOException {
+        if (sha256 == null) {
+            sha256 = checksum(file);
+        }
+        File target = file(sha256);
+        if (target.exists()) {
+            file.delete();
+            return target;
+        }
+        target.getParentFile().mkdirs();
+        if (!file.renameTo(target)) {
+            add(file, target);
+            file.delete();
+        }
+        return target;
+    }
+
+    /**
+     * Replace the files with the given extensions in a folder by links to
+     * the store, adding content that is not present yet
+     *
+     * @param folder the folder
+     * @param extensions the file name extensions, e.g. ".jar"
+     * @return the number of files that were already present in the store,
+     * always 0 if hard links are not supported
+     * @throws IOException if the files can not be replaced
+     */
+    public int deduplicate(File folder, String... extensions) throws IOException {
+        int count = 0;
+        File[] files = folder.listFiles();
+        if (files == null || createLink == null) {
+            // without hard links, deduplication would only add copies
+            return count;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                count += deduplicate(file, extensions);
+                continue;
+            }
+            boolean match = false;
+            for (String extension : extensions) {
+                match |= file.getName().endsWith(extension);
+            }
+            if (!match) {
+                continue;
+            }
+            File stored = file(checksum(file));
+            if (!stored.exists()) {
+                stored.getParentFile().mkdirs();
+                if (link(file, stored)) {
+                    continue;
+                }
+                if (!stored.exists()) {
+                    add(file, stored);
+                    continue;
+                }
+                // added by a concurrent install meanwhile, with the same content
+            }
+            File tmp = new File(file.getPath() + ".tmp");
+            tmp.delete();
+            if (materialize(stored, tmp)) {
+                if (!tmp.renameTo(file)) {
+                    file.delete();
+                    tmp.renameTo(file);
+                }
+                count++;
+            } else {
+                tmp.delete();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Add a copy of a file to the store. The stored file may already be
+     * linked into the folders of other apps and be open by their class
+     * loaders, so it is never written in place. The copy is written to a
+     * temporary file and renamed. If the content was added concurrently,
+     * the copy is dropped.
+     *
+     * @param file the file
+     * @param stored the file in the store
+     * @throws IOException if the file can not be copied
+     */
+    private void add(File file, File stored) throws IOException {
+        File tmp = tempFile();
+        try {
+            Streams.copy(file, tmp);
+            if (!stored.exists() && !tmp.renameTo(stored) && !stored.exists()) {
+                throw new IOException("can't move " + tmp + " to " + stored);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Materialize a file of the store at another location, as a hard link
+     * or as a copy
+     *
+     * @param stored the file in the store
+     * @param target the target file, must not exist
+     * @return true if the file was materialized
+     */
+    public boolean materialize(File stored, File target) {
+        if (link(stored, target)) {
+            return true;
+        }
+        try {
+            Streams.copy(stored, target);
+            return true;
+        } catch (IOException e) {
+            logger.warn("failed to copy {} to {}", e, stored, target);
+            return false;
+        }
+    }
+
+    /**
+     * Create a hard link
+     *
+     * @param existing the existing file
+     * @param link the new link
+     * @return true if the link was created, false if hard links are not
+     * supported
+     */
+    static boolean link(File existing, File link) {
+        if (createLink == null) {
+            return false;
+        }
+        try {
+            createLink.invoke(null, toPath.invoke(link), toPath.invoke(existing));
+            return true;
+        } catch (Exception e) {
+            logger.debug("can't link {} to {}: {}", link, existing, e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Sets;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Injector;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+
+/**
+ * Starts, stops and closes the services of apps concurrently.
+ *
+ * The services listed in apps.lifecycle.order, by class name or simple
+ * class name, are started one after another in that order, and stopped
+ * and closed in reverse order. All other services run at once, on at most
+ * apps.lifecycle.concurrency threads. A service that takes longer than
+ * apps.lifecycle.timeout is logged and left running in the background, and
+ * the services ordered after it go on. Its late completion or failure is
+ * logged when it happens. A failure to start a service fails the start,
+ * failures to stop or close are logged.
+ *
+ * @author joerg
+ */
+public class LifecycleRunner {
+
+    private final static ESLogger logger = Loggers.getLogger(LifecycleRunner.class);
+
+    /**
+     * The lifecycle phase to run
+     */
+    public enum Phase {
+        START, STOP, CLOSE
+    }
+
+    private final int concurrency;
+
+    private final TimeValue timeout;
+
+    private final String[] order;
+
+    public LifecycleRunner(Settings settings) {
+        this.concurrency = Math.max(1, settings.getAsInt("apps.lifecycle.concurrency",
+                Runtime.getRuntime().availableProcessors()));
+        this.timeout = settings.getAsTime("apps.lifecycle.timeout", TimeValue.timeValueSeconds(30));
+        this.order = settings.getAsArray("apps.lifecycle.order");
+    }
+
+    /**
+     * Run a lifecycle phase on services
+     *
+     * @param phase the phase
+     * @param services the service classes
+     * @param injector the injector holding the service instances
+     * @return the time each service took, by class name, in the order of
+     * completion
+     */
+    public Map<String, TimeValue> run(Phase phase, Collection<Class<? extends LifecycleComponent>> services,
+            Injector injector) {
+        Map<String, TimeValue> timings = new LinkedHashMap<String, TimeValue>();
+        if (services.isEmpty()) {
+            return timings;
+        }
+        long t0 = System.nanoTime();
+        // the injector is only used from this thread
+        Map<Class<?>, LifecycleComponent> instances = new LinkedHashMap<Class<?>, LifecycleComponent>();
+        for (Class<? extends LifecycleComponent> service : services) {
+            instances.put(service, injector.getInstance(service));
+        }
+        Map<Class<?>, Class<?>> after = constraints(instances.keySet(), phase != Phase.START);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, instances.size()),
+                EsExecutors.daemonThreadFactory("apps_lifecycle"));
+        CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+        Map<Class<?>, Long> running = newHashMap();
+        Set<Class<?>> waiting = Sets.newLinkedHashSet(instances.keySet());
+        Throwable failure = null;
+        Class<?> failed = null;
+        // services that timed out and have not completed yet
+        int late = 0;
+        try {
+            while (!waiting.isEmpty() || !running.isEmpty()) {
+                // submit the services whose predecessor is done
+                for (Iterator<Class<?>> it = waiting.iterator(); it.hasNext(); ) {
+                    Class<?> service = it.next();
+                    Class<?> predecessor = after.get(service);
+                    if (predecessor == null || (!waiting.contains(predecessor) && !running.containsKey(predecessor))) {
+                        it.remove();
+                        running.put(service, System.nanoTime() + timeout.nanos());
+                        completion.submit(task(phase, service, instances.get(service)));
+                    }
+                }
+                if (running.isEmpty()) {
+                    // the rest is ordered after a failed service
+                    break;
+                }
+                long deadline = Long.MAX_VALUE;
+                for (Long l : running.values()) {
+                    deadline = Math.min(deadline, l);
+                }
+                Future<Result> future = completion.poll(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    long now = System.nanoTime();
+                    for (Iterator<Map.Entry<Class<?>, Long>> it = running.entrySet().iterator(); it.hasNext(); ) {
+                        Map.Entry<Class<?>, Long> entry = it.next();
+                        if (entry.getValue() <= now) {
+                            it.remove();
+                            late++;
+                            timings.put(entry.getKey().getName(), timeout);
+                            logger.warn("{} of app service [{}] takes longer than {}, going on",
+                                    phase.name().toLowerCase(), entry.getKey().getName(), timeout);
+                        }
+                    }
+                    continue;
+                }
+                Result result = future.get();
+                if (running.remove(result.service) == null) {
+                    late--;
+                    logLate(phase, result);
+                    continue;
+                }
+                timings.put(result.service.getName(), TimeValue.timeValueNanos(result.nanos));
+                if (result.error != null) {
+                    if (phase == Phase.START) {
+                        if (failure == null) {
+                            failure = result.error;
+                            failed = result.service;
+                        }
+                        // do not start the services ordered after it
+                        waiting.clear();
+                    } else {
+                        logger.warn("failed to {} app service [{}]", result.error, phase.name().toLowerCase(),
+                                result.service.getName());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while running {} of app services {}", phase.name().toLowerCase(),
+                    running.keySet());
+        } catch (ExecutionException e) {
+            // tasks catch their failures
+            logger.warn("unexpected failure", e.getCause());
+        } finally {
+            // services that timed out may still be running
+            executor.shutdown();
+        }
+        if (late > 0) {
+            awaitLate(phase, completion, late);
+        }
+        if (failure != null) {
+            throw new ElasticSearchException("failed to start app service [" + failed.getName() + "]", failure);
+        }
+        logger.debug("{} of app services took {}: {}", phase.name().toLowerCase(),
+                TimeValue.timeValueNanos(System.nanoTime() - t0), timings);
+        return timings;
+    }
+
+    /**
+     * The ordering constraints between the services, from apps.lifecycle.order
+     *
+     * @param services the service classes
+     * @param reverse true if the order is reversed
+     * @return the predecessor of each ordered service
+     */
+    private Map<Class<?>, Class<?>> constraints(Collection<Class<?>> services, boolean reverse) {
+        List<Class<?>> ordered = Lists.newArrayList();
+        for (String name : order) {
+            for (Class<?> service : services) {
+                if ((name.equals(service.getName()) || name.equals(service.getSimpleName()))
+                        && !ordered.contains(service)) {
+                    ordered.add(service);
+                }
+            }
+        }
+        Map<Class<?>, Class<?>> after = newHashMap();
+        for (int i = 1; i < ordered.size(); i++) {
+            if (reverse) {
+                after.put(ordered.get(i - 1), ordered.get(i));
+            } else {
+                after.put(ordered.get(i), ordered.get(i - 1));
+            }
+        }
+        return after;
+    }
+
+    /**
+     * Log the completion of services that timed out, in the background
+     *
+     * @param phase the phase
+     * @param completion the completion service of the phase
+     * @param late the number of services that have not completed yet
+     */
+    private static void awaitLate(final Phase phase, final CompletionService<Result> completion, final int late) {
+        EsExecutors.daemonThreadFactory("apps_lifecycle_late").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < late; i++) {
+                        logLate(phase, completion.take().get());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // tasks catch their failures
+                    logger.warn("unexpected failure", e.getCause());
+                }
+            }
+        }).start();
+    }
+
+    private static void logLate(Phase phase, Result result) {
+        if (result.error != null) {
+            logger.warn("{} of app service [{}] failed after {}", result.error, phase.name().toLowerCase(),
+                    result.service.getName(), TimeValue.timeValueNanos(result.nanos));
+        } else {
+            logger.info("{} of app service [{}] completed after {}", phase.name().toLowerCase(),
+                    result.service.getName(), TimeValue.timeValueNanos(result.nanos));
+        }
+    }
+
+    private static Callable<Result> task(final Phase phase, final Class<?> service, final LifecycleComponent component) {
+        return new Callable<Result>() {
+            @Override
+            public Result call() {
+                long t0 = System.nanoTime();
+                Throwable error = null;
+                try {
+                    switch (phase) {
+                        case START:
+                            component.start();
+                            break;
+                        case STOP:
+                            component.stop();
+                            break;
+                        default:
+                            component.close();
+                    }
+                } catch (Throwable t) {
+                    error = t;
+                }
+                return new Result(service, System.nanoTime() - t0, error);
+            }
+        };
+    }
+
+    private static class Result {
+
+        final Class<?> service;
+        final long nanos;
+        final Throwable error;
+
+        Result(Class<?> service, long nanos, Throwable error) {
+            this.service = service;
+            this.nanos = nanos;
+            this.error = error;
+        }
+    }
+}
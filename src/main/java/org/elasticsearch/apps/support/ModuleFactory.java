@@ -0,0 +1,81 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentMap;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * Creates modules of apps, like Modules.createModule, but looks up the
+ * constructor of a module class only once.
+ *
+ * A constructor taking the settings is preferred over the default
+ * constructor.
+ *
+ * @author joerg
+ */
+public class ModuleFactory {
+
+    private final ConcurrentMap<Class<? extends Module>, Constructor<? extends Module>> constructors =
+            ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * Create a module
+     *
+     * @param moduleClass the module class
+     * @param settings the settings, passed if the module takes them
+     * @return the module
+     */
+    public Module createModule(Class<? extends Module> moduleClass, Settings settings) {
+        Constructor<? extends Module> constructor = constructors.get(moduleClass);
+        if (constructor == null) {
+            constructor = constructor(moduleClass);
+            constructors.put(moduleClass, constructor);
+        }
+        try {
+            return constructor.getParameterTypes().length == 1
+                    ? constructor.newInstance(settings) : constructor.newInstance();
+        } catch (InvocationTargetException e) {
+            throw new ElasticSearchException("Failed to create module [" + moduleClass + "]", e.getCause());
+        } catch (Exception e) {
+            throw new ElasticSearchException("Failed to create module [" + moduleClass + "]", e);
+        }
+    }
+
+    private static Constructor<? extends Module> constructor(Class<? extends Module> moduleClass) {
+        Constructor<? extends Module> constructor;
+        try {
+            constructor = moduleClass.getConstructor(Settings.class);
+        } catch (NoSuchMethodException e) {
+            try {
+                constructor = moduleClass.getConstructor();
+            } catch (NoSuchMethodException e1) {
+                throw new ElasticSearchException("No constructor for [" + moduleClass + "]");
+            }
+        }
+        // skip the access checks on every call
+        constructor.setAccessible(true);
+        return constructor;
+    }
+}
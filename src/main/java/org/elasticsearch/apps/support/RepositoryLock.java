@@ -0,0 +1,208 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ElasticSearchInterruptedException;
+import org.elasticsearch.ElasticSearchTimeoutException;
+
+/**
+ * An exclusive lock on a local repository, across the threads of this
+ * process and across processes, like a node and the bin/apps tool
+ * working on the same repository.
+ *
+ * Threads are serialized by a reentrant lock, processes by a file lock on
+ * a lock file in the repository. File locks are held per process, so the
+ * file lock is only taken by the outermost holder of the reentrant lock.
+ *
+ * Repository locks on the same folder share their state, because the file
+ * lock of a process can not be taken twice. This happens when a node and a
+ * transport client in the same JVM use the same local repository.
+ *
+ * @author joerg
+ */
+public class RepositoryLock {
+
+    private final static String LOCK_FILE = ".lock";
+
+    private final static long POLL_MILLIS = 50L;
+
+    private final static ConcurrentMap<String, Shared> shared = new ConcurrentHashMap<String, Shared>();
+
+    private final File file;
+
+    private final ReentrantLock lock;
+
+    private final Shared state;
+
+    /**
+     * Create a repository lock
+     *
+     * @param repository the folder of the local repository
+     */
+    public RepositoryLock(File repository) {
+        File lockFile = new File(repository, LOCK_FILE);
+        try {
+            lockFile = lockFile.getCanonicalFile();
+        } catch (IOException e) {
+            lockFile = lockFile.getAbsoluteFile();
+        }
+        Shared newState = new Shared();
+        Shared oldState = shared.putIfAbsent(lockFile.getPath(), newState);
+        this.file = lockFile;
+        this.state = oldState != null ? oldState : newState;
+        this.lock = state.lock;
+    }
+
+    /**
+     * Run a task while holding the lock
+     *
+     * @param callable the task
+     * @return the result of the task
+     */
+    public <V> V execute(Callable<V> callable) {
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticSearchInterruptedException("interrupted while waiting for the lock on " + file);
+        }
+        return locked(callable, Long.MAX_VALUE);
+    }
+
+    /**
+     * Run a task while holding the lock, waiting at most the given time for
+     * the lock. A task that does not return in time, e.g. a resolution that
+     * was abandoned, keeps the lock, so later tasks must not wait for it
+     * forever.
+     *
+     * @param callable the task
+     * @param timeout the maximum time to wait for the lock
+     * @param unit the unit of the timeout
+     * @return the result of the task
+     * @throws ElasticSearchTimeoutException if the lock was not acquired in
+     * time
+     */
+    public <V> V execute(Callable<V> callable, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            if (!lock.tryLock(timeout, unit)) {
+                throw new ElasticSearchTimeoutException("timed out waiting for the lock on " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticSearchInterruptedException("interrupted while waiting for the lock on " + file);
+        }
+        return locked(callable, deadline);
+    }
+
+    private <V> V locked(Callable<V> callable, long deadline) {
+        try {
+            if (lock.getHoldCount() == 1) {
+                acquire(deadline);
+            }
+            try {
+                return callable.call();
+            } finally {
+                if (lock.getHoldCount() == 1) {
+                    release();
+                }
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ElasticSearchException(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void acquire(long deadline) throws IOException, InterruptedException {
+        file.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileLock fileLock;
+        try {
+            if (deadline == Long.MAX_VALUE) {
+                // blocks until other processes have released the lock
+                fileLock = raf.getChannel().lock();
+            } else {
+                // poll, other processes may hold the lock longer than we can wait
+                while ((fileLock = raf.getChannel().tryLock()) == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0L) {
+                        throw new ElasticSearchTimeoutException("timed out waiting for the lock on " + file);
+                    }
+                    Thread.sleep(Math.min(POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(remaining) + 1L));
+                }
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw e;
+        } catch (InterruptedException e) {
+            raf.close();
+            throw e;
+        }
+        state.raf = raf;
+        state.fileLock = fileLock;
+    }
+
+    private void release() {
+        try {
+            if (state.fileLock != null) {
+                state.fileLock.release();
+            }
+        } catch (IOException e) {
+            // closing the file releases the lock, too
+        } finally {
+            state.fileLock = null;
+            try {
+                if (state.raf != null) {
+                    state.raf.close();
+                }
+            } catch (IOException e) {
+                // ignore
+            }
+            state.raf = null;
+        }
+    }
+
+    /**
+     * The state of the locks on one lock file, guarded by the reentrant lock
+     */
+    private static class Shared {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        RandomAccessFile raf;
+
+        FileLock fileLock;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+
+/**
+ * Retries failed tasks in the background with exponential backoff.
+ *
+ * The delay starts at the initial delay and doubles after each failed
+ * attempt, up to the maximum delay, with a random jitter of up to a tenth,
+ * so nodes that failed together do not retry together. A task that still
+ * fails after the maximum number of attempts is given up, but kept as
+ * failed for reporting.
+ *
+ * @author joerg
+ */
+public class RetryQueue {
+
+    private final static ESLogger logger = Loggers.getLogger(RetryQueue.class);
+
+    /**
+     * The state of a task waiting for the next attempt
+     */
+    public final static String PENDING = "pending";
+    /**
+     * The state of a task that was given up
+     */
+    public final static String FAILED = "failed";
+
+    private final TimeValue initialDelay;
+
+    private final TimeValue maxDelay;
+
+    private final int maxAttempts;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<String, Item> items = ConcurrentCollections.newConcurrentMap();
+
+    private final Random random = new Random();
+
+    /**
+     * Create a retry queue
+     *
+     * @param initialDelay the delay before the first retry
+     * @param maxDelay the maximum delay between retries
+     * @param maxAttempts the maximum number of retries, 0 for unlimited
+     */
+    public RetryQueue(TimeValue initialDelay, TimeValue maxDelay, int maxAttempts) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("apps_retry"));
+    }
+
+    /**
+     * Submit a failed task for retrying. A task with the same key that is
+     * already pending is not submitted again.
+     *
+     * @param key the key of the task
+     * @param task the task, returns normally if successful
+     * @param error the failure of the first attempt
+     */
+    public void submit(String key, Callable<?> task, Throwable error) {
+        Item item = new Item(key, task);
+        Item existing = items.get(key);
+        if (existing != null && PENDING.equals(existing.state)) {
+            return;
+        }
+        items.put(key, item);
+        item.error = error != null ? message(error) : null;
+        schedule(item);
+    }
+
+    /**
+     * The tasks that are pending or were given up
+     *
+     * @return the tasks
+     */
+    public Collection<Item> items() {
+        return ImmutableList.copyOf(items.values());
+    }
+
+    /**
+     * Stop retrying
+     */
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void schedule(final Item item) {
+        long delay = initialDelay.millis() << Math.min(item.attempts, 30);
+        if (delay <= 0 || delay > maxDelay.millis()) {
+            delay = maxDelay.millis();
+        }
+        delay += (long) (random.nextDouble() * delay / 10);
+        item.nextAttempt = System.currentTimeMillis() + delay;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attempt(item);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(Item item) {
+        item.attempts++;
+        try {
+            item.task.call();
+            items.remove(item.key, item);
+            logger.info("[{}] succeeded after {} retries", item.key, item.attempts);
+        } catch (Throwable t) {
+            item.error = message(t);
+            if (maxAttempts > 0 && item.attempts >= maxAttempts) {
+                item.state = FAILED;
+                logger.warn("[{}] failed after {} retries, giving up: {}", item.key, item.attempts, item.error);
+            } else {
+                schedule(item);
+                logger.debug("[{}] failed after {} retries, retrying in {}: {}", item.key, item.attempts,
+                        TimeValue.timeValueMillis(item.nextAttempt - System.currentTimeMillis()), item.error);
+            }
+        }
+    }
+
+    private static String message(Throwable t) {
+        return t.getMessage() != null ? t.getMessage() : t.toString();
+    }
+
+    /**
+     * A task in the retry queue
+     */
+    public static class Item {
+
+        private final String key;
+
+        private final Callable<?> task;
+
+        private volatile String state = PENDING;
+
+        private volatile int attempts;
+
+        private volatile long nextAttempt;
+
+        private volatile String error;
+
+        Item(String key, Callable<?> task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        /**
+         * The key of the task
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * The state of the task, pending or failed
+         */
+        public String getState() {
+            return state;
+        }
+
+        /**
+         * The number of retries so far
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * The time of the next retry, in milliseconds since the epoch, if
+         * pending
+         */
+        public long getNextAttempt() {
+            return nextAttempt;
+        }
+
+        /**
+         * The reason of the last failure
+         */
+        public String getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.ElasticSearchInterruptedException;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+/**
+ * Runs a task only once at a time per key. Callers that arrive while the
+ * task for their key is running do not run it again, but wait for the
+ * running task and share its result or its failure.
+ *
+ * @param <K> the key type
+ * @param <V> the result type
+ * @author joerg
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, FutureTask<V>> calls = ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * Run a task, or wait for the task already running for the key
+     *
+     * @param key the key
+     * @param callable the task
+     * @return the result of the task
+     */
+    public V execute(K key, Callable<V> callable) {
+        FutureTask<V> task = new FutureTask<V>(callable);
+        FutureTask<V> running = calls.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                calls.remove(key, task);
+            }
+            running = task;
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticSearchInterruptedException("interrupted while waiting for " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ElasticSearchException("failed to execute " + key, cause);
+        }
+    }
+
+    /**
+     * The number of keys with a running task
+     *
+     * @return the number of running tasks
+     */
+    public int running() {
+        return calls.size();
+    }
+}
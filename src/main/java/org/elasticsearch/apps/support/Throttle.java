@@ -0,0 +1,144 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * A token bucket limiting the rate of bytes per second.
+ *
+ * The bucket holds at most one second worth of bytes, so a short burst
+ * after an idle period is allowed, but the average rate never exceeds the
+ * limit. Callers may take more bytes than the bucket holds. The bucket goes
+ * into debt, and the time until the debt is paid off is the delay the
+ * caller has to wait. The rate can be changed at any time, a rate of 0
+ * disables the throttle.
+ *
+ * @author joerg
+ */
+public class Throttle {
+
+    private final static long MIN_BURST = 64 * 1024;
+
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    private volatile long bytesPerSec;
+
+    private long tokens;
+
+    private long last;
+
+    /**
+     * Create a throttle
+     *
+     * @param rate the maximum rate per second, 0 for unlimited
+     */
+    public Throttle(ByteSizeValue rate) {
+        setRate(rate);
+    }
+
+    /**
+     * Change the maximum rate
+     *
+     * @param rate the maximum rate per second, 0 for unlimited
+     */
+    public synchronized void setRate(ByteSizeValue rate) {
+        this.bytesPerSec = rate != null ? Math.max(0L, rate.bytes()) : 0L;
+        this.tokens = Math.min(tokens, burst());
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * The maximum rate
+     *
+     * @return the maximum rate per second, 0 if unlimited
+     */
+    public ByteSizeValue getRate() {
+        return new ByteSizeValue(bytesPerSec);
+    }
+
+    /**
+     * Check if the throttle limits the rate
+     *
+     * @return true if limited
+     */
+    public boolean isEnabled() {
+        return bytesPerSec > 0;
+    }
+
+    /**
+     * The total time callers were asked to wait
+     *
+     * @return the throttled time in milliseconds
+     */
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    /**
+     * Take bytes from the bucket without waiting
+     *
+     * @param bytes the number of bytes
+     * @return the time in nanoseconds the caller should wait before going on
+     */
+    public long reserve(long bytes) {
+        long rate = bytesPerSec;
+        if (rate <= 0 || bytes <= 0) {
+            return 0L;
+        }
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            double refill = (now - last) / 1e9 * rate;
+            tokens = (long) Math.min(burst(), tokens + refill);
+            last = now;
+            tokens -= bytes;
+            delay = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0L;
+        }
+        if (delay > 0) {
+            throttledNanos.addAndGet(delay);
+        }
+        return delay;
+    }
+
+    /**
+     * Take bytes from the bucket, waiting until the rate allows it
+     *
+     * @param bytes the number of bytes
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long delay = reserve(bytes);
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while throttled");
+            }
+        }
+    }
+
+    private long burst() {
+        return Math.max(bytesPerSec, MIN_BURST);
+    }
+}
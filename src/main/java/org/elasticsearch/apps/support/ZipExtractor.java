@@ -0,0 +1,425 @@
+/*
+ * Licensed to ElasticSearch and Shay Banon under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. ElasticSearch licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.apps.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.collect.Sets;
+
+/**
+ * Extracts zip archives into a folder, writing the entries in parallel.
+ *
+ * All folders are created once before any entry is written. Target files
+ * are preallocated to the size of the entry. Stored entries are transferred
+ * by the file channel, deflated entries are inflated with a per-thread
+ * buffer. Small entries are grouped into batches, so archives with thousands
+ * of small files, like site plugins, do not create thousands of tasks.
+ *
+ * If the first entry of the archive is a folder, it is taken as the base
+ * folder of the archive and is stripped from the entry names.
+ *
+ * The bytes written by all threads can be limited by a throttle.
+ *
+ * @author joerg
+ */
+public class ZipExtractor {
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final static long BATCH_SIZE = 1024 * 1024;
+
+    private final static int SMALL_ENTRY = 256 * 1024;
+
+    private final static int MAX_PENDING = 8 * 1024 * 1024;
+
+    private final static ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final ExecutorService executor;
+
+    private final Throttle throttle;
+
+    /**
+     * Create a zip extractor
+     *
+     * @param executor the bounded executor for writing entries
+     */
+    public ZipExtractor(ExecutorService executor) {
+        this(executor, new Throttle(null));
+    }
+
+    /**
+     * Create a zip extractor with a limited write rate
+     *
+     * @param executor the bounded executor for writing entries
+     * @param throttle the throttle for the bytes written
+     */
+    public ZipExtractor(ExecutorService executor, Throttle throttle) {
+        this.executor = executor;
+        this.throttle = throttle;
+    }
+
+    /**
+     * The throttle of this extractor. The rate can be changed while
+     * extracting.
+     *
+     * @return the throttle
+     */
+    public Throttle throttle() {
+        return throttle;
+    }
+
+    /**
+     * Shut down the executor for writing entries
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Extract a zip file. The zip file is closed.
+     *
+     * @param zipFile the zip file
+     * @param targetFile the target folder
+     * @throws IOException if the zip file can not be extracted
+     */
+    public void extract(final ZipFile zipFile, File targetFile) throws IOException {
+        try {
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            if (!zipEntries.hasMoreElements()) {
+                throw new IOException("the zip archive has no entries");
+            }
+            String baseDirSuffix = null;
+            ZipEntry firstEntry = zipEntries.nextElement();
+            if (firstEntry.isDirectory()) {
+                baseDirSuffix = firstEntry.getName();
+            }
+            // plan the folders and the batches
+            Set<File> dirs = new TreeSet<File>();
+            dirs.add(targetFile);
+            List<List<Entry>> batches = Lists.newArrayList();
+            List<Entry> batch = Lists.newArrayList();
+            long batchSize = 0L;
+            zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                File target = target(targetFile, zipEntry, baseDirSuffix);
+                if (target == null) {
+                    continue;
+                }
+                if (zipEntry.isDirectory()) {
+                    dirs.add(target);
+                    continue;
+                }
+                dirs.add(target.getParentFile());
+                batch.add(new Entry(zipEntry, target));
+                batchSize += Math.max(zipEntry.getSize(), 0L);
+                if (batchSize >= BATCH_SIZE) {
+                    batches.add(batch);
+                    batch = Lists.newArrayList();
+                    batchSize = 0L;
+                }
+            }
+            if (!batch.isEmpty()) {
+                batches.add(batch);
+            }
+            mkdirs(dirs);
+            List<Future<Object>> futures = Lists.newArrayList();
+            for (final List<Entry> entries : batches) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        for (Entry entry : entries) {
+                            InputStream in = zipFile.getInputStream(entry.zipEntry);
+                            try {
+                                write(in, entry.zipEntry, entry.target);
+                            } finally {
+                                in.close();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            await(futures);
+        } finally {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Extract a zip stream. The entries are inflated in the order of the
+     * stream. Small entries are buffered and written in parallel, large
+     * entries are written by the calling thread. The buffered entries not
+     * yet written are limited to a few megabytes, so if writing is slower
+     * than inflating, e.g. when throttled, the calling thread waits instead
+     * of buffering the archive on the heap. The stream is not closed.
+     *
+     * @param zipStream the zip stream
+     * @param targetFile the target folder
+     * @throws IOException if the zip stream can not be extracted
+     */
+    public void extract(ZipInputStream zipStream, File targetFile) throws IOException {
+        Set<File> dirs = Sets.newHashSet();
+        mkdirs(dirs, targetFile);
+        String baseDirSuffix = null;
+        boolean first = true;
+        List<Future<Object>> futures = Lists.newArrayList();
+        // the bytes of the buffered entries that are not written yet
+        final Semaphore pending = new Semaphore(MAX_PENDING);
+        byte[] buffer = buffers.get();
+        try {
+            ZipEntry zipEntry;
+            while ((zipEntry = zipStream.getNextEntry()) != null) {
+                if (first) {
+                    first = false;
+                    if (zipEntry.isDirectory()) {
+                        baseDirSuffix = zipEntry.getName();
+                        continue;
+                    }
+                }
+                final File target = target(targetFile, zipEntry, baseDirSuffix);
+                if (target == null) {
+                    continue;
+                }
+                if (zipEntry.isDirectory()) {
+                    mkdirs(dirs, target);
+                    continue;
+                }
+                mkdirs(dirs, target.getParentFile());
+                // the size is often unknown in a stream, read up to the limit of a small entry
+                ByteArrayOutputStream small = new ByteArrayOutputStream(8192);
+                boolean large = false;
+                int n;
+                while ((n = zipStream.read(buffer)) != -1) {
+                    small.write(buffer, 0, n);
+                    if (small.size() > SMALL_ENTRY) {
+                        large = true;
+                        break;
+                    }
+                }
+                if (!large) {
+                    final byte[] content = small.toByteArray();
+                    try {
+                        pending.acquire(content.length);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while extracting");
+                    }
+                    try {
+                        futures.add(executor.submit(new Callable<Object>() {
+                            @Override
+                            public Object call() throws IOException {
+                                try {
+                                    throttle.acquire(content.length);
+                                    RandomAccessFile file = new RandomAccessFile(target, "rw");
+                                    try {
+                                        file.setLength(content.length);
+                                        FileChannel channel = file.getChannel();
+                                        ByteBuffer bb = ByteBuffer.wrap(content);
+                                        while (bb.hasRemaining()) {
+                                            channel.write(bb);
+                                        }
+                                    } finally {
+                                        file.close();
+                                    }
+                                    return null;
+                                } finally {
+                                    pending.release(content.length);
+                                }
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        pending.release(content.length);
+                        throw new IOException("extractor is closed");
+                    }
+                } else {
+                    RandomAccessFile file = new RandomAccessFile(target, "rw");
+                    try {
+                        long size = zipEntry.getSize();
+                        if (size >= 0) {
+                            file.setLength(size);
+                        }
+                        small.writeTo(new RandomAccessFileOutputStream(file));
+                        long written = small.size();
+                        throttle.acquire(written);
+                        while ((n = zipStream.read(buffer)) != -1) {
+                            file.write(buffer, 0, n);
+                            written += n;
+                            throttle.acquire(n);
+                        }
+                        file.setLength(written);
+                    } finally {
+                        file.close();
+                    }
+                }
+            }
+        } finally {
+            await(futures);
+        }
+    }
+
+    private static File target(File targetFile, ZipEntry zipEntry, String baseDirSuffix) throws IOException {
+        String zipEntryName = zipEntry.getName().replace('\\', '/');
+        if (baseDirSuffix != null && zipEntryName.startsWith(baseDirSuffix)) {
+            zipEntryName = zipEntryName.substring(baseDirSuffix.length());
+        }
+        if (zipEntryName.length() == 0) {
+            return null;
+        }
+        if (zipEntryName.startsWith("/") || ("/" + zipEntryName + "/").contains("/../")) {
+            throw new IOException("zip entry " + zipEntry.getName() + " is outside of the target folder");
+        }
+        return new File(targetFile, zipEntryName);
+    }
+
+    private void write(InputStream in, ZipEntry zipEntry, File target) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            long size = zipEntry.getSize();
+            if (size >= 0) {
+                // preallocate
+                file.setLength(size);
+            }
+            FileChannel channel = file.getChannel();
+            long written = 0L;
+            if (zipEntry.getMethod() == ZipEntry.STORED && size >= 0) {
+                ReadableByteChannel source = Channels.newChannel(in);
+                while (written < size) {
+                    long count = throttle.isEnabled() ? Math.min(size - written, BUFFER_SIZE) : size - written;
+                    long n = channel.transferFrom(source, written, count);
+                    if (n <= 0) {
+                        break;
+                    }
+                    written += n;
+                    throttle.acquire(n);
+                }
+            } else {
+                byte[] buffer = buffers.get();
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    file.write(buffer, 0, n);
+                    written += n;
+                    throttle.acquire(n);
+                }
+            }
+            if (written != size) {
+                file.setLength(written);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void mkdirs(Set<File> dirs) throws IOException {
+        // parents sort before their children
+        for (File dir : dirs) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can't create folder " + dir);
+            }
+        }
+    }
+
+    private static void mkdirs(Set<File> dirs, File dir) throws IOException {
+        if (dirs.add(dir) && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create folder " + dir);
+        }
+    }
+
+    private static void await(List<Future<Object>> futures) throws IOException {
+        IOException failure = null;
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new IOException("interrupted while extracting");
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static class RandomAccessFileOutputStream extends OutputStream {
+
+        private final RandomAccessFile file;
+
+        RandomAccessFileOutputStream(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            file.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            file.write(b, off, len);
+        }
+    }
+
+    private static class Entry {
+
+        final ZipEntry zipEntry;
+        final File target;
+
+        Entry(ZipEntry zipEntry, File target) {
+            this.zipEntry = zipEntry;
+            this.target = target;
+        }
+    }
+}
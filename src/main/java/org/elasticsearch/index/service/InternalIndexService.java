@@ -79,6 +79,7 @@ import java.util.concurrent.Executor;
 import static org.elasticsearch.common.collect.Maps.newHashMap;
 import static org.elasticsearch.common.collect.MapBuilder.newMapBuilder;
 
+import org.elasticsearch.apps.ActiveApps;
 import org.elasticsearch.apps.AppService;
 import org.elasticsearch.apps.ShardsAppModule;
 
@@ -304,7 +305,7 @@ public class InternalIndexService extends AbstractIndexComponent implements Inde
         logger.debug("creating shard_id [{}]", shardId.id());
 
         ModulesBuilder modules = new ModulesBuilder();
-        modules.add(new ShardsAppModule(indexSettings, appService));
+        modules.add(new ShardsAppModule(indexSettings, appService, injector.getInstance(ActiveApps.class)));
         modules.add(new IndexShardModule(indexSettings, shardId));
         modules.add(new ShardIndexingModule());
         modules.add(new ShardSearchModule());
@@ -373,13 +374,8 @@ public class InternalIndexService extends AbstractIndexComponent implements Inde
 
         indicesLifecycle.beforeIndexShardClosed(sId, indexShard, delete);
 
-        for (Class<? extends CloseableIndexComponent> closeable : appService.shardServices()) {
-            try {
-                shardInjector.getInstance(closeable).close(delete);
-            } catch (Exception e) {
-                logger.debug("failed to clean plugin shard service [{}]", e, closeable);
-            }
-        }
+        appService.componentCloser().close(sId, shardInjector.getInstance(ActiveApps.class).shardServices(),
+                shardInjector, delete);
 
         try {
             // now we can close the translog service, we need to close it before the we close the shard
@@ -85,6 +85,7 @@ import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_NUMBER_OF
 import static org.elasticsearch.common.collect.MapBuilder.newMapBuilder;
 import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
 
+import org.elasticsearch.apps.ActiveApps;
 import org.elasticsearch.apps.AppService;
 import org.elasticsearch.apps.IndexAppModule;
 
@@ -335,9 +336,8 @@ public class InternalIndicesService extends AbstractLifecycleComponent<IndicesSe
 
         indicesLifecycle.beforeIndexClosed(indexService, delete);
 
-        for (Class<? extends CloseableIndexComponent> closeable : appService.indexServices()) {
-            indexInjector.getInstance(closeable).close(delete);
-        }
+        appService.componentCloser().close(new Index(index), indexInjector.getInstance(ActiveApps.class).indexServices(),
+                indexInjector, delete);
 
         ((InternalIndexService) indexService).close(delete, reason, executor);
 
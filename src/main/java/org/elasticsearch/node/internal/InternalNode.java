@@ -36,7 +36,6 @@ import org.elasticsearch.common.CacheRecycler;
 import org.elasticsearch.common.StopWatch;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.component.Lifecycle;
-import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.compress.CompressorFactory;
 import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.inject.Injectors;
@@ -49,6 +48,7 @@ import org.elasticsearch.common.network.NetworkService;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsModule;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.ThreadLocals;
 import org.elasticsearch.discovery.DiscoveryModule;
 import org.elasticsearch.discovery.DiscoveryService;
@@ -87,9 +87,12 @@ import org.elasticsearch.transport.TransportModule;
 import org.elasticsearch.transport.TransportService;
 
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import org.elasticsearch.apps.AppModule;
+import org.elasticsearch.apps.AppSettingsUpdater;
 import org.elasticsearch.apps.AppService;
+import org.elasticsearch.apps.support.LifecycleRunner;
 
 /**
  *
@@ -106,6 +109,8 @@ public final class InternalNode implements Node {
 
     private final AppService appService;
 
+    private final LifecycleRunner appLifecycle;
+
     private final Client client;
 
     public InternalNode() throws ElasticSearchException {
@@ -125,9 +130,12 @@ public final class InternalNode implements Node {
                     env.workFile(), env.pluginsFile());
         }
 
-        this.appService = new AppService(tuple.v1(), tuple.v2(), true);
+        // site apps are refreshed in the background after the node has started
+        this.appService = new AppService(tuple.v1(), tuple.v2(), true,
+                tuple.v1().getAsBoolean("apps.sites.background", true));
         this.settings = appService.updatedSettings();
         this.environment = tuple.v2();
+        this.appLifecycle = new LifecycleRunner(settings);
 
         CompressorFactory.configure(settings);
 
@@ -164,6 +172,9 @@ public final class InternalNode implements Node {
 
         injector = modules.createInjector();
 
+        // follow the dynamic apps settings of the cluster
+        injector.getInstance(AppSettingsUpdater.class);
+
         client = injector.getInstance(Client.class);
 
         logger.info("{{}}[{}]: initialized", Version.CURRENT, JvmInfo.jvmInfo().pid());
@@ -187,9 +198,7 @@ public final class InternalNode implements Node {
         ESLogger logger = Loggers.getLogger(Node.class, settings.get("name"));
         logger.info("{{}}[{}]: starting ...", Version.CURRENT, JvmInfo.jvmInfo().pid());
 
-        for (Class<? extends LifecycleComponent> plugin : appService.services()) {
-            injector.getInstance(plugin).start();
-        }
+        appLifecycle.run(LifecycleRunner.Phase.START, appService.services(), injector);
 
         injector.getInstance(IndicesService.class).start();
         injector.getInstance(IndexingMemoryController.class).start();
@@ -213,6 +222,10 @@ public final class InternalNode implements Node {
         injector.getInstance(BulkUdpService.class).start();
         injector.getInstance(JmxService.class).connectAndRegister(discoService.nodeDescription(), injector.getInstance(NetworkService.class));
 
+        if (settings.getAsBoolean("apps.sites.background", true)) {
+            appService.refreshSiteApps();
+        }
+
         logger.info("{{}}[{}]: started", Version.CURRENT, JvmInfo.jvmInfo().pid());
 
         return this;
@@ -255,9 +268,7 @@ public final class InternalNode implements Node {
         injector.getInstance(TransportService.class).stop();
         injector.getInstance(JmxService.class).close();
 
-        for (Class<? extends LifecycleComponent> plugin : appService.services()) {
-            injector.getInstance(plugin).stop();
-        }
+        appLifecycle.run(LifecycleRunner.Phase.STOP, appService.services(), injector);
 
         logger.info("{{}}[{}]: stopped", Version.CURRENT, JvmInfo.jvmInfo().pid());
 
@@ -312,10 +323,9 @@ public final class InternalNode implements Node {
         stopWatch.stop().start("transport");
         injector.getInstance(TransportService.class).close();
 
-        for (Class<? extends LifecycleComponent> app : appService.services()) {
-            stopWatch.stop().start("app(" + app.getName() + ")");
-            injector.getInstance(app).close();
-        }
+        stopWatch.stop().start("apps");
+        Map<String, TimeValue> appTimes = appLifecycle.run(LifecycleRunner.Phase.CLOSE, appService.services(), injector);
+        appService.close();
 
         stopWatch.stop().start("node_cache");
         injector.getInstance(NodeCache.class).close();
@@ -344,6 +354,7 @@ public final class InternalNode implements Node {
 
         if (logger.isTraceEnabled()) {
             logger.trace("Close times for each service:\n{}", stopWatch.prettyPrint());
+            logger.trace("Close times for each app service: {}", appTimes);
         }
 
         injector.getInstance(NodeEnvironment.class).close();
@@ -19,6 +19,7 @@
 
 package org.elasticsearch.river;
 
+import org.elasticsearch.apps.AppCosts;
 import org.elasticsearch.apps.AppService;
 import org.elasticsearch.common.inject.AbstractModule;
 import org.elasticsearch.common.inject.Module;
@@ -42,7 +43,7 @@ public class RiversPluginsModule extends AbstractModule implements PreProcessMod
 
     @Override
     public void processModule(Module module) {
-        appService.processModule(module);
+        appService.activeApps().processModule(AppCosts.RIVER, module);
     }
 
     @Override
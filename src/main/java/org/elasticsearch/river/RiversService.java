@@ -40,6 +40,7 @@ import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.inject.Injectors;
 import org.elasticsearch.common.inject.ModulesBuilder;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -121,8 +122,31 @@ public class RiversService extends AbstractLifecycleComponent<RiversService> {
     protected void doClose() throws ElasticSearchException {
     }
 
-    public synchronized void createRiver(RiverName riverName, Map<String, Object> settings) throws ElasticSearchException {
+    public void createRiver(RiverName riverName, Map<String, Object> settings) throws ElasticSearchException {
+        synchronized (this) {
+            if (riversInjectors.containsKey(riverName)) {
+                logger.warn("ignoring river [{}][{}] creation, already exists", riverName.type(), riverName.name());
+                return;
+            }
+        }
+
+        // a lazy river app is resolved and loaded into a class loader of its own, which may take
+        // up to apps.resolve.timeout, so it is done without holding the monitor
+        AppService appService = injector.getInstance(AppService.class);
+        ClassLoader riverClassLoader;
+        try {
+            riverClassLoader = appService.riverClassLoader(riverName.type());
+        } catch (Exception e) {
+            failedToCreate(riverName, e);
+            return;
+        }
+        createRiver(riverName, settings, appService, riverClassLoader);
+    }
+
+    private synchronized void createRiver(RiverName riverName, Map<String, Object> settings,
+                                          AppService appService, ClassLoader riverClassLoader) {
         if (riversInjectors.containsKey(riverName)) {
+            // created while the river class loader was resolved
             logger.warn("ignoring river [{}][{}] creation, already exists", riverName.type(), riverName.name());
             return;
         }
@@ -130,10 +154,15 @@ public class RiversService extends AbstractLifecycleComponent<RiversService> {
         logger.debug("creating river [{}][{}]", riverName.type(), riverName.name());
 
         try {
+            Settings globalSettings = this.settings;
+            if (riverClassLoader != null) {
+                globalSettings = ImmutableSettings.settingsBuilder().put(this.settings)
+                        .classLoader(riverClassLoader).build();
+            }
             ModulesBuilder modules = new ModulesBuilder();
             modules.add(new RiverNameModule(riverName));
-            modules.add(new RiverModule(riverName, settings, this.settings, typesRegistry));
-            modules.add(new RiversPluginsModule(this.settings, injector.getInstance(AppService.class)));
+            modules.add(new RiverModule(riverName, settings, globalSettings, typesRegistry));
+            modules.add(new RiversPluginsModule(this.settings, appService));
 
             Injector indexInjector = modules.createChildInjector(injector);
             riversInjectors.put(riverName, indexInjector);
@@ -161,28 +190,32 @@ public class RiversService extends AbstractLifecycleComponent<RiversService> {
                     .setConsistencyLevel(WriteConsistencyLevel.ONE)
                     .setSource(builder).execute().actionGet();
         } catch (Exception e) {
-            logger.warn("failed to create river [{}][{}]", e, riverName.type(), riverName.name());
-
-            try {
-                XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
-                builder.field("error", ExceptionsHelper.detailedMessage(e));
-
-                builder.startObject("node");
-                builder.field("id", clusterService.localNode().id());
-                builder.field("name", clusterService.localNode().name());
-                builder.field("transport_address", clusterService.localNode().address().toString());
-                builder.endObject();
-
-                client.prepareIndex(riverIndexName, riverName.name(), "_status")
-                        .setConsistencyLevel(WriteConsistencyLevel.ONE)
-                        .setSource(builder).execute().actionGet();
-            } catch (Exception e1) {
-                logger.warn("failed to write failed status for river creation", e);
-            }
+            failedToCreate(riverName, e);
+        }
+    }
+
+    private void failedToCreate(RiverName riverName, Exception e) {
+        logger.warn("failed to create river [{}][{}]", e, riverName.type(), riverName.name());
+
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            builder.field("error", ExceptionsHelper.detailedMessage(e));
+
+            builder.startObject("node");
+            builder.field("id", clusterService.localNode().id());
+            builder.field("name", clusterService.localNode().name());
+            builder.field("transport_address", clusterService.localNode().address().toString());
+            builder.endObject();
+
+            client.prepareIndex(riverIndexName, riverName.name(), "_status")
+                    .setConsistencyLevel(WriteConsistencyLevel.ONE)
+                    .setSource(builder).execute().actionGet();
+        } catch (Exception e1) {
+            logger.warn("failed to write failed status for river creation", e);
         }
     }
 
-    public synchronized void closeRiver(RiverName riverName) throws ElasticSearchException {
+    public void closeRiver(RiverName riverName) throws ElasticSearchException {
         Injector riverInjector;
         River river;
         synchronized (this) {
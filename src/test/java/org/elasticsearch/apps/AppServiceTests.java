@@ -0,0 +1,117 @@
+package org.elasticsearch.apps;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.node.internal.InternalSettingsPerparer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class AppServiceTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(AppServiceTests.class.getName());
+
+    private HttpServer server;
+
+    private String base;
+
+    private File dir;
+
+    @BeforeMethod
+    public void start() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // a plugin is a zip with jars, a site a zip without
+        byte[] jar = zip("plugin.txt", "plugin".getBytes("UTF-8"));
+        server.createContext("/plugin.zip", handler(zip("lib/plugin.jar", jar)));
+        server.createContext("/site.zip", handler(zip("_site/index.html", "<html></html>".getBytes("UTF-8"))));
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        dir = new File(System.getProperty("java.io.tmpdir"), "apps-service-test-" + System.nanoTime());
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void stop() {
+        server.stop(0);
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Test(timeOut = 120000)
+    public void testRefreshWithDownloadsAndDependency() {
+        logger.info("testRefreshWithDownloadsAndDependency");
+        refresh(true);
+    }
+
+    @Test(timeOut = 120000)
+    public void testRefreshWithoutStreaming() {
+        logger.info("testRefreshWithoutStreaming");
+        // the zips are downloaded to files and unpacked from there
+        refresh(false);
+    }
+
+    private void refresh(boolean streaming) {
+        Settings pSettings = settingsBuilder()
+                .put("path.plugins", new File(dir, "plugins").getAbsolutePath())
+                .put("apps.settings", AppService.DEFAULT_SETTINGS)
+                .put("apps.resolve.timeout", "10s")
+                .put("apps.dependencies.river-rabbitmq.dependency", "org.elasticsearch:elasticsearch-river-rabbitmq:0.17.10")
+                .put("apps.plugins.test-plugin.url", base + "/plugin.zip")
+                .put("apps.sites.test-site.url", base + "/site.zip")
+                .put("apps.download.streaming", streaming)
+                .build();
+        Tuple<Settings, Environment> tuple = InternalSettingsPerparer.prepareSettings(pSettings, false);
+        Settings settings = settingsBuilder().put(tuple.v1()).build();
+        Environment environment = tuple.v2();
+        // the refresh stages create the helpers of the service while the refresh waits for them
+        AppService service = new AppService(settings, environment, true);
+        try {
+            assertThat(new File(environment.pluginsFile(), "test-plugin/lib/plugin.jar").exists(), equalTo(true));
+            assertThat(service.siteApps().size(), equalTo(1));
+        } finally {
+            service.close();
+        }
+    }
+
+    private static byte[] zip(String name, byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content);
+        out.closeEntry();
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static HttpHandler handler(final byte[] content) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, content.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(content);
+                } finally {
+                    exchange.close();
+                }
+            }
+        };
+    }
+}
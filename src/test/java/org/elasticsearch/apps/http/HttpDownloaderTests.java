@@ -0,0 +1,216 @@
+package org.elasticsearch.apps.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import org.elasticsearch.apps.support.Checksums;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class HttpDownloaderTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(HttpDownloaderTests.class.getName());
+
+    private final byte[] content = new byte[256 * 1024];
+
+    private final List<String> ranges = Lists.newArrayList();
+
+    private final AtomicInteger drops = new AtomicInteger();
+
+    private volatile String etag;
+
+    private HttpServer server;
+
+    private HttpDownloader downloader;
+
+    private File dir;
+
+    @BeforeMethod
+    public void start() throws Exception {
+        new Random(42).nextBytes(content);
+        ranges.clear();
+        drops.set(0);
+        etag = "\"v1\"";
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/plugin.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                synchronized (ranges) {
+                    ranges.add(range);
+                }
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                if (ifRange != null && !ifRange.equals(etag)) {
+                    // changed since, send all of it
+                    range = null;
+                }
+                if (etag != null) {
+                    exchange.getResponseHeaders().set("ETag", etag);
+                }
+                int offset = 0;
+                if (range != null) {
+                    offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                    exchange.getResponseHeaders().set("Content-Range",
+                            "bytes " + offset + "-" + (content.length - 1) + "/" + content.length);
+                }
+                exchange.sendResponseHeaders(range != null ? 206 : 200, content.length - offset);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    if (drops.getAndDecrement() > 0) {
+                        // drop the connection in the middle of the body
+                        out.write(content, offset, (content.length - offset) / 2);
+                        out.flush();
+                        throw new IOException("dropped");
+                    }
+                    out.write(content, offset, content.length - offset);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        downloader = new HttpDownloader(SSLContext.getDefault(), TimeValue.timeValueSeconds(5), 3);
+        dir = new File(System.getProperty("java.io.tmpdir"), "apps-downloader-" + System.nanoTime());
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void stop() {
+        downloader.close();
+        server.stop(0);
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        logger.info("testDownload");
+        File target = new File(dir, "plugin.zip");
+        downloader.download(url(), target, sha1(), null, null);
+        assertThat(Streams.copyToByteArray(target), equalTo(content));
+        assertThat(new File(dir, "plugin.zip.part").exists(), equalTo(false));
+        assertThat(downloader.stats().getDownloads(), equalTo(1L));
+        assertThat(downloader.stats().getBytes(), equalTo((long) content.length));
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        logger.info("testKeepAlive");
+        downloader.download(url(), new File(dir, "a.zip"), sha1(), null, null);
+        downloader.download(url(), new File(dir, "b.zip"), sha1(), null, null);
+        assertThat(downloader.stats().getConnections(), equalTo(1L));
+        assertThat(downloader.stats().getReusedConnections(), equalTo(1L));
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        logger.info("testResume");
+        drops.set(1);
+        File target = new File(dir, "plugin.zip");
+        downloader.download(url(), target, sha1(), null, null);
+        assertThat(Streams.copyToByteArray(target), equalTo(content));
+        assertThat(downloader.stats().getResumes(), equalTo(1L));
+        assertThat(ranges.size(), equalTo(2));
+        assertThat(ranges.get(1), notNullValue());
+        assertThat(Integer.parseInt(ranges.get(1).substring("bytes=".length(), ranges.get(1).indexOf('-'))), greaterThan(0));
+    }
+
+    @Test
+    public void testResumeLaterDownload() throws Exception {
+        logger.info("testResumeLaterDownload");
+        File target = new File(dir, "plugin.zip");
+        interrupt(target);
+        downloader.download(url(), target, sha1(), null, null);
+        assertThat(Streams.copyToByteArray(target), equalTo(content));
+        assertThat(ranges.get(ranges.size() - 1), notNullValue());
+        assertThat(new File(dir, "plugin.zip.part.info").exists(), equalTo(false));
+    }
+
+    @Test
+    public void testChangedFileIsNotResumed() throws Exception {
+        logger.info("testChangedFileIsNotResumed");
+        File target = new File(dir, "plugin.zip");
+        interrupt(target);
+        // a new version under the same URL, without declared checksums
+        new Random(7).nextBytes(content);
+        etag = "\"v2\"";
+        downloader.download(url(), target, null, null, null);
+        assertThat(Streams.copyToByteArray(target), equalTo(content));
+    }
+
+    @Test
+    public void testPartOfOtherURLIsNotResumed() throws Exception {
+        logger.info("testPartOfOtherURLIsNotResumed");
+        File target = new File(dir, "plugin.zip");
+        interrupt(target);
+        downloader.download(new URL(url(), "/plugin.zip?version=2"), target, null, null, null);
+        assertThat(Streams.copyToByteArray(target), equalTo(content));
+        assertThat(ranges.get(ranges.size() - 1), nullValue());
+    }
+
+    @Test
+    public void testPartWithoutValidatorIsNotResumed() throws Exception {
+        logger.info("testPartWithoutValidatorIsNotResumed");
+        File target = new File(dir, "plugin.zip");
+        Streams.copy(new byte[1024], new File(dir, "plugin.zip.part"));
+        downloader.download(url(), target, null, null, null);
+        assertThat(Streams.copyToByteArray(target), equalTo(content));
+        assertThat(ranges.get(0), nullValue());
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testChecksumMismatch() throws Exception {
+        logger.info("testChecksumMismatch");
+        File target = new File(dir, "plugin.zip");
+        try {
+            downloader.download(url(), target, "0000000000000000000000000000000000000000", null, null);
+        } finally {
+            assertThat(target.exists(), equalTo(false));
+            assertThat(new File(dir, "plugin.zip.part").exists(), equalTo(false));
+        }
+    }
+
+    /**
+     * Leave a ".part" file of an interrupted download behind
+     */
+    private void interrupt(File target) throws Exception {
+        drops.set(4);
+        try {
+            downloader.download(url(), target, sha1(), null, null);
+        } catch (IOException e) {
+            // expected
+        }
+        assertThat(new File(dir, "plugin.zip.part").exists(), equalTo(true));
+        drops.set(0);
+        ranges.clear();
+    }
+
+    private URL url() throws Exception {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/plugin.zip");
+    }
+
+    private String sha1() {
+        return Checksums.hex(Checksums.digest("SHA-1").digest(content));
+    }
+}
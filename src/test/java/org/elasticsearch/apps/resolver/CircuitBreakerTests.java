@@ -0,0 +1,71 @@
+package org.elasticsearch.apps.resolver;
+
+import java.util.Arrays;
+import java.util.List;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class CircuitBreakerTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(CircuitBreakerTests.class.getName());
+
+    private final RemoteRepository central = new RemoteRepository("central", "http://repo1.maven.org/maven2/");
+
+    private final RemoteRepository mirror = new RemoteRepository("mirror", "http://mirror.example.org/maven2/");
+
+    @Test
+    public void testOpensAfterThreshold() throws Exception {
+        logger.info("testOpensAfterThreshold");
+        CircuitBreaker breaker = new CircuitBreaker(3, TimeValue.timeValueMinutes(1));
+        breaker.failure("central");
+        breaker.failure("central");
+        assertThat(breaker.isOpen("central"), equalTo(false));
+        assertThat(breaker.allow("central"), equalTo(true));
+        breaker.failure("central");
+        assertThat(breaker.isOpen("central"), equalTo(true));
+        assertThat(breaker.allow("central"), equalTo(false));
+        // other repositories are not affected
+        assertThat(breaker.allow("mirror"), equalTo(true));
+        List<RemoteRepository> available = breaker.available(Arrays.asList(central, mirror));
+        assertThat(available.size(), equalTo(1));
+        assertThat(available.get(0).getId(), equalTo("mirror"));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() throws Exception {
+        logger.info("testSuccessResetsFailures");
+        CircuitBreaker breaker = new CircuitBreaker(2, TimeValue.timeValueMinutes(1));
+        breaker.failure("central");
+        breaker.success("central");
+        breaker.failure("central");
+        // not consecutive
+        assertThat(breaker.isOpen("central"), equalTo(false));
+    }
+
+    @Test
+    public void testHalfOpenAfterCoolDown() throws Exception {
+        logger.info("testHalfOpenAfterCoolDown");
+        CircuitBreaker breaker = new CircuitBreaker(1, TimeValue.timeValueMillis(100));
+        breaker.failure("central");
+        assertThat(breaker.allow("central"), equalTo(false));
+        Thread.sleep(200L);
+        // one trial request, the others wait for its outcome
+        assertThat(breaker.allow("central"), equalTo(true));
+        assertThat(breaker.allow("central"), equalTo(false));
+        // the trial fails, open for another cool-down
+        breaker.failure("central");
+        assertThat(breaker.isOpen("central"), equalTo(true));
+        Thread.sleep(200L);
+        assertThat(breaker.allow("central"), equalTo(true));
+        // the trial succeeds, closed again
+        breaker.success("central");
+        assertThat(breaker.isOpen("central"), equalTo(false));
+        assertThat(breaker.allow("central"), equalTo(true));
+        assertThat(breaker.allow("central"), equalTo(true));
+    }
+}
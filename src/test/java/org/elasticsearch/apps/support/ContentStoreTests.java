@@ -0,0 +1,140 @@
+package org.elasticsearch.apps.support;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ContentStoreTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(ContentStoreTests.class.getName());
+
+    private final byte[] content = new byte[64 * 1024];
+
+    private File dir;
+
+    private ContentStore store;
+
+    @BeforeMethod
+    public void start() {
+        new Random(42).nextBytes(content);
+        dir = new File(System.getProperty("java.io.tmpdir"), "apps-cas-" + System.nanoTime());
+        dir.mkdirs();
+        store = new ContentStore(new File(dir, "cas"));
+    }
+
+    @AfterMethod
+    public void stop() {
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        logger.info("testPut");
+        File file = jar("a", "lib/a.jar", content);
+        String sha256 = ContentStore.checksum(file);
+        File stored = store.put(file, null);
+        assertThat(stored, equalTo(store.file(sha256)));
+        assertThat(store.contains(sha256), equalTo(true));
+        assertThat(file.exists(), equalTo(false));
+        // the same content again is dropped
+        File again = store.put(jar("b", "lib/a.jar", content), sha256);
+        assertThat(again, equalTo(stored));
+        assertThat(Streams.copyToByteArray(stored), equalTo(content));
+    }
+
+    @Test
+    public void testDeduplicate() throws Exception {
+        logger.info("testDeduplicate");
+        File a = jar("a", "lib/common.jar", content);
+        File b = jar("b", "lib/common.jar", content);
+        jar("b", "lib/readme.txt", content);
+        assertThat(store.deduplicate(new File(dir, "a"), ".jar"), equalTo(0));
+        store.deduplicate(new File(dir, "b"), ".jar");
+        String sha256 = ContentStore.checksum(a);
+        if (store.contains(sha256)) {
+            // hard links are supported
+            assertThat(Streams.copyToByteArray(store.file(sha256)), equalTo(content));
+        }
+        assertThat(Streams.copyToByteArray(a), equalTo(content));
+        assertThat(Streams.copyToByteArray(b), equalTo(content));
+        assertThat(new File(dir, "b/lib/readme.txt").exists(), equalTo(true));
+    }
+
+    @Test
+    public void testDeduplicateKeepsLinkedContent() throws Exception {
+        logger.info("testDeduplicateKeepsLinkedContent");
+        File a = jar("a", "lib/common.jar", content);
+        store.deduplicate(new File(dir, "a"), ".jar");
+        // the stored file is linked into app a, installing app b must not write to it
+        for (int i = 0; i < 3; i++) {
+            File b = jar("b" + i, "lib/common.jar", content);
+            store.deduplicate(new File(dir, "b" + i), ".jar");
+            assertThat(Streams.copyToByteArray(b), equalTo(content));
+        }
+        assertThat(Streams.copyToByteArray(a), equalTo(content));
+        assertThat(a.length(), equalTo((long) content.length));
+    }
+
+    @Test
+    public void testConcurrentDeduplicate() throws Exception {
+        logger.info("testConcurrentDeduplicate");
+        int n = 8;
+        final List<File> jars = Lists.newArrayList();
+        for (int i = 0; i < n; i++) {
+            jars.add(jar("app" + i, "lib/common.jar", content));
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(n);
+        try {
+            List<Future<Integer>> futures = Lists.newArrayList();
+            for (final File jar : jars) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        latch.await();
+                        return store.deduplicate(jar.getParentFile().getParentFile(), ".jar");
+                    }
+                }));
+            }
+            latch.countDown();
+            for (Future<Integer> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (File jar : jars) {
+            assertThat(Streams.copyToByteArray(jar), equalTo(content));
+        }
+        String sha256 = ContentStore.checksum(jars.get(0));
+        if (store.contains(sha256)) {
+            assertThat(Streams.copyToByteArray(store.file(sha256)), equalTo(content));
+        }
+        // no temporary files are left behind
+        File[] tmp = new File(new File(dir, "cas"), "tmp").listFiles();
+        assertThat(tmp == null ? 0 : tmp.length, equalTo(0));
+    }
+
+    private File jar(String app, String path, byte[] bytes) throws Exception {
+        File file = new File(new File(dir, app), path);
+        file.getParentFile().mkdirs();
+        Streams.copy(bytes, file);
+        return file;
+    }
+}
@@ -0,0 +1,189 @@
+package org.elasticsearch.apps.support;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.ElasticSearchException;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.common.inject.Guice;
+import org.elasticsearch.common.inject.Injector;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+
+public class LifecycleRunnerTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(LifecycleRunnerTests.class.getName());
+
+    private List<String> events;
+
+    @BeforeMethod
+    public void start() {
+        events = Collections.synchronizedList(Lists.<String>newArrayList());
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        logger.info("testOrder");
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("apps.lifecycle.order", "First," + Second.class.getName())
+                .put("apps.lifecycle.concurrency", 4)
+                .build();
+        // the first ordered service is slow, the second must still wait for it
+        final First first = new First(events, 300L, false);
+        final Second second = new Second(events, 0L, false);
+        final Unordered unordered = new Unordered(events, 0L, false);
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(First.class).toInstance(first);
+                bind(Second.class).toInstance(second);
+                bind(Unordered.class).toInstance(unordered);
+            }
+        });
+        LifecycleRunner runner = new LifecycleRunner(settings);
+        runner.run(LifecycleRunner.Phase.START, services(Second.class, Unordered.class, First.class), injector);
+        assertThat(events.size(), equalTo(3));
+        assertThat(events.indexOf("start First"), lessThan(events.indexOf("start Second")));
+        // the unordered service does not wait for the slow one
+        assertThat(events.indexOf("start Unordered"), lessThan(events.indexOf("start First")));
+        events.clear();
+        runner.run(LifecycleRunner.Phase.STOP, services(Second.class, Unordered.class, First.class), injector);
+        assertThat(events.indexOf("stop Second"), lessThan(events.indexOf("stop First")));
+    }
+
+    @Test
+    public void testTimeoutCompletesLate() throws Exception {
+        logger.info("testTimeoutCompletesLate");
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("apps.lifecycle.order", "First,Second")
+                .put("apps.lifecycle.timeout", "200ms")
+                .put("apps.lifecycle.concurrency", 2)
+                .build();
+        final First first = new First(events, 2000L, false);
+        final Second second = new Second(events, 0L, false);
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(First.class).toInstance(first);
+                bind(Second.class).toInstance(second);
+            }
+        });
+        long t0 = System.nanoTime();
+        Map<String, TimeValue> timings = new LifecycleRunner(settings)
+                .run(LifecycleRunner.Phase.START, services(First.class, Second.class), injector);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0), lessThan(1500L));
+        assertThat(timings.get(First.class.getName()).millis(), equalTo(200L));
+        // the service ordered after the slow one goes on
+        assertThat(events, hasItem("start Second"));
+        assertThat(events, not(hasItem("start First")));
+        // and the slow one completes in the background
+        assertThat(first.done.await(10, TimeUnit.SECONDS), equalTo(true));
+        assertThat(events, hasItem("start First"));
+    }
+
+    @Test
+    public void testStartFailureSkipsLaterServices() throws Exception {
+        logger.info("testStartFailureSkipsLaterServices");
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("apps.lifecycle.order", "First,Second")
+                .build();
+        final First first = new First(events, 0L, true);
+        final Second second = new Second(events, 0L, false);
+        Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(First.class).toInstance(first);
+                bind(Second.class).toInstance(second);
+            }
+        });
+        try {
+            new LifecycleRunner(settings).run(LifecycleRunner.Phase.START, services(First.class, Second.class), injector);
+            throw new AssertionError("expected failure");
+        } catch (ElasticSearchException e) {
+            assertThat(e.getMessage(), equalTo("failed to start app service [" + First.class.getName() + "]"));
+        }
+        assertThat(events, not(hasItem("start Second")));
+    }
+
+    private static List<Class<? extends LifecycleComponent>> services(Class<? extends LifecycleComponent>... classes) {
+        List<Class<? extends LifecycleComponent>> list = Lists.newArrayList();
+        Collections.addAll(list, classes);
+        return list;
+    }
+
+    private static class Recorded extends AbstractLifecycleComponent<Recorded> {
+
+        final List<String> events;
+        final long millis;
+        final boolean fail;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Recorded(List<String> events, long millis, boolean fail) {
+            super(ImmutableSettings.EMPTY);
+            this.events = events;
+            this.millis = millis;
+            this.fail = fail;
+        }
+
+        @Override
+        protected void doStart() throws ElasticSearchException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (fail) {
+                throw new ElasticSearchException("failure of " + getClass().getSimpleName());
+            }
+            events.add("start " + getClass().getSimpleName());
+            done.countDown();
+        }
+
+        @Override
+        protected void doStop() throws ElasticSearchException {
+            events.add("stop " + getClass().getSimpleName());
+        }
+
+        @Override
+        protected void doClose() throws ElasticSearchException {
+            events.add("close " + getClass().getSimpleName());
+        }
+    }
+
+    private static class First extends Recorded {
+
+        First(List<String> events, long millis, boolean fail) {
+            super(events, millis, fail);
+        }
+    }
+
+    private static class Second extends Recorded {
+
+        Second(List<String> events, long millis, boolean fail) {
+            super(events, millis, fail);
+        }
+    }
+
+    private static class Unordered extends Recorded {
+
+        Unordered(List<String> events, long millis, boolean fail) {
+            super(events, millis, fail);
+        }
+    }
+}
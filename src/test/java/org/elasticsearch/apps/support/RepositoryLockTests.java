@@ -0,0 +1,159 @@
+package org.elasticsearch.apps.support;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.ElasticSearchTimeoutException;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class RepositoryLockTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(RepositoryLockTests.class.getName());
+
+    private ExecutorService executor;
+
+    private File dir;
+
+    @BeforeMethod
+    public void start() {
+        executor = Executors.newCachedThreadPool();
+        dir = new File(System.getProperty("java.io.tmpdir"), "apps-lock-" + System.nanoTime());
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void stop() {
+        executor.shutdownNow();
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testReentrant() throws Exception {
+        logger.info("testReentrant");
+        final RepositoryLock lock = new RepositoryLock(dir);
+        String result = lock.execute(new Callable<String>() {
+            @Override
+            public String call() {
+                return lock.execute(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "inner";
+                    }
+                }, 1, TimeUnit.SECONDS);
+            }
+        });
+        assertThat(result, equalTo("inner"));
+    }
+
+    @Test
+    public void testTwoLocksOnSameRepository() throws Exception {
+        logger.info("testTwoLocksOnSameRepository");
+        // e.g. a node and a transport client in the same JVM
+        final RepositoryLock lock1 = new RepositoryLock(dir);
+        final RepositoryLock lock2 = new RepositoryLock(new File(dir, "../" + dir.getName()));
+        String result = lock1.execute(new Callable<String>() {
+            @Override
+            public String call() {
+                return lock2.execute(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return "inner";
+                    }
+                }, 1, TimeUnit.SECONDS);
+            }
+        });
+        assertThat(result, equalTo("inner"));
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Object> holder = executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return lock1.execute(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        held.countDown();
+                        release.await();
+                        return null;
+                    }
+                });
+            }
+        });
+        held.await(10, TimeUnit.SECONDS);
+        try {
+            lock2.execute(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return null;
+                }
+            }, 200, TimeUnit.MILLISECONDS);
+            throw new AssertionError("expected timeout");
+        } catch (ElasticSearchTimeoutException e) {
+            // held by the other lock
+        }
+        release.countDown();
+        holder.get(10, TimeUnit.SECONDS);
+        assertThat(lock2.execute(new Callable<String>() {
+            @Override
+            public String call() {
+                return "ok";
+            }
+        }, 1, TimeUnit.SECONDS), equalTo("ok"));
+    }
+
+    @Test
+    public void testTimeoutWhileHeld() throws Exception {
+        logger.info("testTimeoutWhileHeld");
+        final RepositoryLock lock = new RepositoryLock(dir);
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // an abandoned resolution that keeps the lock
+        Future<Object> holder = executor.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return lock.execute(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        held.countDown();
+                        release.await();
+                        return null;
+                    }
+                });
+            }
+        });
+        held.await(10, TimeUnit.SECONDS);
+        long t0 = System.nanoTime();
+        try {
+            lock.execute(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return null;
+                }
+            }, 200, TimeUnit.MILLISECONDS);
+            throw new AssertionError("expected timeout");
+        } catch (ElasticSearchTimeoutException e) {
+            assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0), lessThan(5000L));
+        }
+        release.countDown();
+        holder.get(10, TimeUnit.SECONDS);
+        // free again
+        assertThat(lock.execute(new Callable<String>() {
+            @Override
+            public String call() {
+                return "ok";
+            }
+        }, 1, TimeUnit.SECONDS), equalTo("ok"));
+    }
+}
@@ -0,0 +1,114 @@
+package org.elasticsearch.apps.support;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+public class RetryQueueTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(RetryQueueTests.class.getName());
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private RetryQueue queue;
+
+    @BeforeMethod
+    public void start() {
+        calls.set(0);
+        queue = new RetryQueue(TimeValue.timeValueMillis(50), TimeValue.timeValueMillis(200), 3);
+    }
+
+    @AfterMethod
+    public void stop() {
+        queue.close();
+    }
+
+    @Test
+    public void testSucceedsAfterFailures() throws Exception {
+        logger.info("testSucceedsAfterFailures");
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.submit("plugin", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                if (calls.incrementAndGet() < 2) {
+                    throw new IOException("connection refused");
+                }
+                done.countDown();
+                return null;
+            }
+        }, new IOException("connection refused"));
+        assertThat(queue.items().size(), equalTo(1));
+        RetryQueue.Item item = queue.items().iterator().next();
+        assertThat(item.getKey(), equalTo("plugin"));
+        assertThat(item.getState(), equalTo(RetryQueue.PENDING));
+        assertThat(item.getError(), equalTo("connection refused"));
+        assertThat(done.await(10, TimeUnit.SECONDS), equalTo(true));
+        awaitEmpty();
+        assertThat(calls.get(), equalTo(2));
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        logger.info("testGivesUpAfterMaxAttempts");
+        queue.submit("plugin", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                throw new IOException("attempt " + calls.incrementAndGet());
+            }
+        }, new IOException("attempt 0"));
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!RetryQueue.FAILED.equals(queue.items().iterator().next().getState())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20L);
+        }
+        RetryQueue.Item item = queue.items().iterator().next();
+        assertThat(item.getState(), equalTo(RetryQueue.FAILED));
+        assertThat(item.getAttempts(), equalTo(3));
+        assertThat(item.getError(), equalTo("attempt 3"));
+        // no further attempts
+        Thread.sleep(500L);
+        assertThat(calls.get(), equalTo(3));
+    }
+
+    @Test
+    public void testPendingKeyIsNotSubmittedTwice() throws Exception {
+        logger.info("testPendingKeyIsNotSubmittedTwice");
+        queue.close();
+        queue = new RetryQueue(TimeValue.timeValueSeconds(10), TimeValue.timeValueSeconds(10), 3);
+        Callable<Object> task = new Callable<Object>() {
+            @Override
+            public Object call() {
+                calls.incrementAndGet();
+                return null;
+            }
+        };
+        long t0 = System.currentTimeMillis();
+        queue.submit("plugin", task, new IOException("first"));
+        queue.submit("plugin", task, new IOException("second"));
+        assertThat(queue.items().size(), equalTo(1));
+        RetryQueue.Item item = queue.items().iterator().next();
+        assertThat(item.getError(), equalTo("first"));
+        assertThat(item.getNextAttempt(), greaterThanOrEqualTo(t0 + 10000L));
+        assertThat(calls.get(), equalTo(0));
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!queue.items().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20L);
+        }
+        assertThat(queue.items().isEmpty(), equalTo(true));
+    }
+}
@@ -0,0 +1,142 @@
+package org.elasticsearch.apps.support;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class SingleFlightTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(SingleFlightTests.class.getName());
+
+    private final SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void start() {
+        calls.set(0);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneCall() throws Exception {
+        logger.info("testConcurrentCallersShareOneCall");
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Integer> first = submit("a", release);
+        awaitRunning(1);
+        List<Future<Integer>> others = Lists.newArrayList();
+        for (int i = 0; i < 4; i++) {
+            others.add(submit("a", release));
+        }
+        // give the others time to find the running call
+        Thread.sleep(200L);
+        release.countDown();
+        assertThat(first.get(10, TimeUnit.SECONDS), equalTo(1));
+        for (Future<Integer> future : others) {
+            assertThat(future.get(10, TimeUnit.SECONDS), equalTo(1));
+        }
+        assertThat(calls.get(), equalTo(1));
+        assertThat(flight.running(), equalTo(0));
+    }
+
+    @Test
+    public void testDifferentKeysRunConcurrently() throws Exception {
+        logger.info("testDifferentKeysRunConcurrently");
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Integer> a = submit("a", release);
+        Future<Integer> b = submit("b", release);
+        awaitRunning(2);
+        assertThat(calls.get(), equalTo(2));
+        release.countDown();
+        a.get(10, TimeUnit.SECONDS);
+        b.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        logger.info("testFailureIsShared");
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<Integer> failing = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                throw new IllegalStateException("failed");
+            }
+        };
+        Future<Integer> first = executor.submit(execute("a", failing));
+        awaitRunning(1);
+        Future<Integer> second = executor.submit(execute("a", failing));
+        Thread.sleep(200L);
+        release.countDown();
+        assertFailed(first);
+        assertFailed(second);
+        assertThat(flight.running(), equalTo(0));
+    }
+
+    @Test
+    public void testNextCallRunsAgain() throws Exception {
+        logger.info("testNextCallRunsAgain");
+        CountDownLatch release = new CountDownLatch(0);
+        assertThat(submit("a", release).get(10, TimeUnit.SECONDS), equalTo(1));
+        assertThat(submit("a", release).get(10, TimeUnit.SECONDS), equalTo(2));
+    }
+
+    private Future<Integer> submit(String key, final CountDownLatch release) {
+        return executor.submit(execute(key, new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int n = calls.incrementAndGet();
+                release.await();
+                return n;
+            }
+        }));
+    }
+
+    private Callable<Integer> execute(final String key, final Callable<Integer> callable) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return flight.execute(key, callable);
+            }
+        };
+    }
+
+    private void awaitRunning(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (calls.get() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+    }
+
+    private static void assertFailed(Future<Integer> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            throw new AssertionError("expected failure");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof IllegalStateException, equalTo(true));
+        }
+    }
+}
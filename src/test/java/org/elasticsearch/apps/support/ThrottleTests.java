@@ -0,0 +1,71 @@
+package org.elasticsearch.apps.support;
+
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+
+public class ThrottleTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(ThrottleTests.class.getName());
+
+    @Test
+    public void testDisabled() throws Exception {
+        logger.info("testDisabled");
+        Throttle throttle = new Throttle(null);
+        assertThat(throttle.isEnabled(), equalTo(false));
+        assertThat(throttle.reserve(1024L * 1024L * 1024L), equalTo(0L));
+        throttle = new Throttle(new ByteSizeValue(0));
+        assertThat(throttle.isEnabled(), equalTo(false));
+        assertThat(throttle.reserve(1024L * 1024L * 1024L), equalTo(0L));
+        assertThat(throttle.getThrottledMillis(), equalTo(0L));
+    }
+
+    @Test
+    public void testReserveOverRate() throws Exception {
+        logger.info("testReserveOverRate");
+        Throttle throttle = new Throttle(new ByteSizeValue(1, ByteSizeUnit.MB));
+        assertThat(throttle.isEnabled(), equalTo(true));
+        // two seconds worth of bytes at once
+        long delay = throttle.reserve(2L * 1024L * 1024L);
+        assertThat(delay, greaterThan(TimeUnit.SECONDS.toNanos(1)));
+        assertThat(delay, lessThan(TimeUnit.SECONDS.toNanos(3)));
+        assertThat(throttle.getThrottledMillis(), greaterThan(1000L));
+        assertThat(throttle.reserve(0L), equalTo(0L));
+    }
+
+    @Test
+    public void testAcquireKeepsRate() throws Exception {
+        logger.info("testAcquireKeepsRate");
+        Throttle throttle = new Throttle(new ByteSizeValue(512, ByteSizeUnit.KB));
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 64; i++) {
+            throttle.acquire(16 * 1024);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        // one megabyte at 512 kilobytes per second takes about two seconds
+        assertThat(millis, greaterThanOrEqualTo(1500L));
+        assertThat(millis, lessThan(10000L));
+    }
+
+    @Test
+    public void testSetRate() throws Exception {
+        logger.info("testSetRate");
+        Throttle throttle = new Throttle(new ByteSizeValue(1, ByteSizeUnit.MB));
+        throttle.setRate(new ByteSizeValue(2, ByteSizeUnit.MB));
+        assertThat(throttle.getRate().bytes(), equalTo(2L * 1024L * 1024L));
+        long delay = throttle.reserve(2L * 1024L * 1024L);
+        assertThat(delay, lessThan(TimeUnit.MILLISECONDS.toNanos(1500)));
+        throttle.setRate(new ByteSizeValue(0));
+        assertThat(throttle.isEnabled(), equalTo(false));
+        assertThat(throttle.reserve(2L * 1024L * 1024L), equalTo(0L));
+    }
+}
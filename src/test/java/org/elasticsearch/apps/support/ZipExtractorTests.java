@@ -0,0 +1,205 @@
+package org.elasticsearch.apps.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ZipExtractorTests {
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(ZipExtractorTests.class.getName());
+
+    private final byte[] small = new byte[4 * 1024];
+
+    private final byte[] large = new byte[3 * 1024 * 1024];
+
+    private ExecutorService executor;
+
+    private ZipExtractor extractor;
+
+    private File dir;
+
+    @BeforeMethod
+    public void start() {
+        Random random = new Random(42);
+        random.nextBytes(small);
+        random.nextBytes(large);
+        executor = Executors.newFixedThreadPool(4);
+        extractor = new ZipExtractor(executor);
+        dir = new File(System.getProperty("java.io.tmpdir"), "apps-zip-" + System.nanoTime());
+        dir.mkdirs();
+    }
+
+    @AfterMethod
+    public void stop() {
+        extractor.close();
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testStoredAndDeflatedEntries() throws Exception {
+        logger.info("testStoredAndDeflatedEntries");
+        File zip = storedAndDeflated("plugin.zip");
+        File target = new File(dir, "file");
+        extractor.extract(new ZipFile(zip), target);
+        assertContent(target);
+    }
+
+    @Test
+    public void testStoredAndDeflatedEntriesFromStream() throws Exception {
+        logger.info("testStoredAndDeflatedEntriesFromStream");
+        File zip = storedAndDeflated("plugin.zip");
+        File target = new File(dir, "stream");
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+        try {
+            extractor.extract(in, target);
+        } finally {
+            in.close();
+        }
+        assertContent(target);
+    }
+
+    @Test(timeOut = 60000)
+    public void testManySmallEntriesFromStreamWithSlowWriter() throws Exception {
+        logger.info("testManySmallEntriesFromStreamWithSlowWriter");
+        // more small entries than may be buffered, with one throttled writer
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        ZipExtractor slow = new ZipExtractor(single, new Throttle(new ByteSizeValue(32, ByteSizeUnit.MB)));
+        File zip = new File(dir, "site.zip");
+        byte[] entry = new byte[64 * 1024];
+        System.arraycopy(large, 0, entry, 0, entry.length);
+        int n = 200;
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (int i = 0; i < n; i++) {
+                put(out, "_site/file" + i + ".html", entry, ZipEntry.DEFLATED);
+            }
+        } finally {
+            out.close();
+        }
+        File target = new File(dir, "site");
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+        try {
+            slow.extract(in, target);
+        } finally {
+            in.close();
+            slow.close();
+        }
+        for (int i = 0; i < n; i++) {
+            assertThat(Streams.copyToByteArray(new File(target, "_site/file" + i + ".html")), equalTo(entry));
+        }
+    }
+
+    @Test
+    public void testBaseFolderIsStripped() throws Exception {
+        logger.info("testBaseFolderIsStripped");
+        File zip = new File(dir, "site.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            out.putNextEntry(new ZipEntry("site-1.0/"));
+            out.closeEntry();
+            put(out, "site-1.0/index.html", small, ZipEntry.DEFLATED);
+        } finally {
+            out.close();
+        }
+        File target = new File(dir, "site");
+        extractor.extract(new ZipFile(zip), target);
+        assertThat(Streams.copyToByteArray(new File(target, "index.html")), equalTo(small));
+        assertThat(new File(target, "site-1.0").exists(), equalTo(false));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testZipSlip() throws Exception {
+        logger.info("testZipSlip");
+        File zip = slip("evil.zip");
+        try {
+            extractor.extract(new ZipFile(zip), new File(dir, "target"));
+        } finally {
+            assertThat(new File(dir, "evil.txt").exists(), equalTo(false));
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testZipSlipFromStream() throws Exception {
+        logger.info("testZipSlipFromStream");
+        File zip = slip("evil.zip");
+        ZipInputStream in = new ZipInputStream(new FileInputStream(zip));
+        try {
+            extractor.extract(in, new File(dir, "target"));
+        } finally {
+            in.close();
+            assertThat(new File(dir, "evil.txt").exists(), equalTo(false));
+        }
+    }
+
+    private File storedAndDeflated(String name) throws IOException {
+        File zip = new File(dir, name);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            put(out, "stored-small.bin", small, ZipEntry.STORED);
+            put(out, "lib/stored-large.jar", large, ZipEntry.STORED);
+            put(out, "deflated-small.txt", small, ZipEntry.DEFLATED);
+            put(out, "lib/deflated-large.jar", large, ZipEntry.DEFLATED);
+            out.putNextEntry(new ZipEntry("empty/"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+
+    private File slip(String name) throws IOException {
+        File zip = new File(dir, name);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            put(out, "readme.txt", small, ZipEntry.DEFLATED);
+            put(out, "../evil.txt", small, ZipEntry.DEFLATED);
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+
+    private void assertContent(File target) throws IOException {
+        assertThat(Streams.copyToByteArray(new File(target, "stored-small.bin")), equalTo(small));
+        assertThat(Streams.copyToByteArray(new File(target, "lib/stored-large.jar")), equalTo(large));
+        assertThat(Streams.copyToByteArray(new File(target, "deflated-small.txt")), equalTo(small));
+        assertThat(Streams.copyToByteArray(new File(target, "lib/deflated-large.jar")), equalTo(large));
+        assertThat(new File(target, "empty").isDirectory(), equalTo(true));
+    }
+
+    private static void put(ZipOutputStream out, String name, byte[] content, int method) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,94 @@
+package org.elasticsearch.benchmark.apps;
+
+import java.util.List;
+import org.elasticsearch.apps.support.ModuleFactory;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.collect.Lists;
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.inject.Modules;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Spawns the shard modules of 20 apps per shard, once with
+ * Modules.createModule, and once with the cached constructors of the
+ * ModuleFactory.
+ */
+public class ModuleSpawnBenchmark {
+
+    private final static int APPS = 20;
+
+    private final static int SHARDS = 100000;
+
+    private final static int WARMUP = 20000;
+
+    public static void main(String[] args) {
+        Settings settings = ImmutableSettings.settingsBuilder().put("index.number_of_shards", 5).build();
+        List<Class<? extends Module>> moduleClasses = Lists.newArrayList();
+        for (int i = 0; i < APPS; i++) {
+            moduleClasses.add(i % 2 == 0 ? SettingsModule.class : DefaultModule.class);
+        }
+        ModuleFactory moduleFactory = new ModuleFactory();
+        // warm up
+        spawnUncached(moduleClasses, settings, WARMUP);
+        spawnCached(moduleFactory, moduleClasses, settings, WARMUP);
+
+        StopWatch stopWatch = new StopWatch().start();
+        long count = spawnUncached(moduleClasses, settings, SHARDS);
+        stopWatch.stop();
+        System.out.println("Modules.createModule: " + SHARDS + " shards with " + APPS + " apps took "
+                + stopWatch.totalTime() + ", " + (stopWatch.totalTime().nanos() / SHARDS) + "ns per shard (" + count + ")");
+
+        stopWatch = new StopWatch().start();
+        count = spawnCached(moduleFactory, moduleClasses, settings, SHARDS);
+        stopWatch.stop();
+        System.out.println("ModuleFactory: " + SHARDS + " shards with " + APPS + " apps took "
+                + stopWatch.totalTime() + ", " + (stopWatch.totalTime().nanos() / SHARDS) + "ns per shard (" + count + ")");
+    }
+
+    private static long spawnUncached(List<Class<? extends Module>> moduleClasses, Settings settings, int shards) {
+        long count = 0;
+        for (int i = 0; i < shards; i++) {
+            List<Module> modules = Lists.newArrayList();
+            for (Class<? extends Module> moduleClass : moduleClasses) {
+                modules.add(Modules.createModule(moduleClass, settings));
+            }
+            count += modules.size();
+        }
+        return count;
+    }
+
+    private static long spawnCached(ModuleFactory moduleFactory, List<Class<? extends Module>> moduleClasses,
+            Settings settings, int shards) {
+        long count = 0;
+        for (int i = 0; i < shards; i++) {
+            List<Module> modules = Lists.newArrayList();
+            for (Class<? extends Module> moduleClass : moduleClasses) {
+                modules.add(moduleFactory.createModule(moduleClass, settings));
+            }
+            count += modules.size();
+        }
+        return count;
+    }
+
+    public static class SettingsModule extends AbstractModule {
+
+        private final Settings settings;
+
+        public SettingsModule(Settings settings) {
+            this.settings = settings;
+        }
+
+        @Override
+        protected void configure() {
+        }
+    }
+
+    public static class DefaultModule extends AbstractModule {
+
+        @Override
+        protected void configure() {
+        }
+    }
+}